@@ -0,0 +1,101 @@
+package org.appledash.dashmap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Benchmarks of turning a sampled tile into texture pixels on the client thread: storing and shading it in the
+ * TileStore, then writing it into the map textures. None of this touches the GPU, so it runs headless.
+ *
+ * fullRebuild is a whole chunk written at full resolution, and fullRebuildPerPixel the same thing per pixel.
+ * incrementalRebuild writes back a single block change. downsampledRebuild writes a whole chunk to the most zoomed
+ * out level, which has to average the colors down.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RasterBenchmark {
+    private static final int AREA_SIZE = 8; /* Chunks along each edge of the area written, so that the working set isn't a single chunk */
+    private static final int PIXEL_COUNT = CHUNK_SIZE * CHUNK_SIZE;
+
+    @Param({"FLAT", "OCEAN", "FOREST", "NETHER"})
+    public SyntheticWorld world;
+
+    private final TileStore store = new TileStore();
+    private final MapLayer fullLayer = new MapLayer(0);
+    private final MapLayer downsampledLayer = new MapLayer(MapLayer.LEVEL_COUNT - 1);
+    private final int[] colors = new int[PIXEL_COUNT];
+    private final ColumnMask blockChangeMask = new ColumnMask();
+    private MapTile[] tiles;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticWorld.bootstrap();
+
+        final ChunkSampler sampler = new ChunkSampler(new MapColorPalette());
+
+        this.tiles = new MapTile[AREA_SIZE * AREA_SIZE];
+        this.blockChangeMask.set(7, 7);
+
+        for (int i = 0; i < this.tiles.length; i++) {
+            this.tiles[i] = sampler.sampleTile(this.world.createSnapshot(i % AREA_SIZE, i / AREA_SIZE), ColumnMask.full(), null);
+            this.store.put(i % AREA_SIZE, i / AREA_SIZE, this.tiles[i], 0);
+        }
+    }
+
+    @Benchmark
+    public int[] fullRebuild() {
+        return this.rebuild(this.fullLayer, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXEL_COUNT)
+    public int[] fullRebuildPerPixel() {
+        return this.rebuild(this.fullLayer, null);
+    }
+
+    @Benchmark
+    public int[] incrementalRebuild() {
+        return this.rebuild(this.fullLayer, this.blockChangeMask);
+    }
+
+    @Benchmark
+    public int[] downsampledRebuild() {
+        return this.rebuild(this.downsampledLayer, null);
+    }
+
+    /**
+     * Store, shade and write out the next chunk of the area, the same way MapManager does when a sampled tile arrives.
+     */
+    private int[] rebuild(MapLayer layer, ColumnMask mask) {
+        this.next = (this.next + 1) % this.tiles.length;
+
+        final int chunkX = this.next % AREA_SIZE;
+        final int chunkZ = this.next / AREA_SIZE;
+
+        this.store.put(chunkX, chunkZ, this.tiles[this.next], 0);
+        this.store.copyColors(chunkX, chunkZ, this.colors);
+        layer.writeChunk(chunkX, chunkZ, this.colors, mask);
+
+        return this.colors;
+    }
+}
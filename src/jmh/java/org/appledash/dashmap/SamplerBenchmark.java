@@ -0,0 +1,98 @@
+package org.appledash.dashmap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Benchmarks of ChunkSampler, which finds the surface and color of every column of a chunk - what a chunk costs the
+ * worker threads whenever it loads or changes.
+ *
+ * fullRebuild is the cost of a whole chunk, and fullRebuildPerColumn the same thing per column. incrementalRebuild
+ * is a single block change, which only samples the column the block is in. Run with -prof gc (the jmh task does) for
+ * the allocation rate of each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamplerBenchmark {
+    private static final int AREA_SIZE = 8; /* Chunks along each edge of the area sampled, so that the working set isn't a single chunk */
+    private static final int COLUMN_COUNT = CHUNK_SIZE * CHUNK_SIZE;
+
+    @Param({"FLAT", "OCEAN", "FOREST", "NETHER"})
+    public SyntheticWorld world;
+
+    private ChunkSampler sampler;
+    private ChunkSnapshot[] snapshots;
+    private MapTile[] tiles;
+    private final ColumnMask fullMask = ColumnMask.full();
+    private final ColumnMask blockChangeMask = new ColumnMask();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticWorld.bootstrap();
+
+        this.sampler = new ChunkSampler(new MapColorPalette());
+        this.snapshots = new ChunkSnapshot[AREA_SIZE * AREA_SIZE];
+        this.tiles = new MapTile[AREA_SIZE * AREA_SIZE];
+        this.blockChangeMask.set(7, 7);
+
+        for (int i = 0; i < this.snapshots.length; i++) {
+            this.snapshots[i] = this.world.createSnapshot(i % AREA_SIZE, i / AREA_SIZE);
+            this.tiles[i] = this.sampler.sampleTile(this.snapshots[i], this.fullMask, null);
+        }
+    }
+
+    @Benchmark
+    public MapTile fullRebuild() {
+        return this.sampler.sampleTile(this.nextSnapshot(), this.fullMask, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMN_COUNT)
+    public MapTile fullRebuildPerColumn() {
+        return this.sampler.sampleTile(this.nextSnapshot(), this.fullMask, null);
+    }
+
+    @Benchmark
+    public MapTile incrementalRebuild() {
+        final ChunkSnapshot snapshot = this.nextSnapshot();
+
+        return this.sampler.sampleTile(snapshot, this.blockChangeMask, this.tiles[this.next]);
+    }
+
+    /**
+     * Move on to the next chunk of the area. In the nether, the surface heights found last time are forgotten, as they
+     * would be for a chunk that has just loaded - otherwise only the first sample of each chunk would search for them.
+     */
+    private ChunkSnapshot nextSnapshot() {
+        this.next = (this.next + 1) % this.snapshots.length;
+
+        final ChunkSnapshot snapshot = this.snapshots[this.next];
+
+        if (snapshot.isSliced()) {
+            Arrays.fill(snapshot.getCeilingSurfaceHeights(), SurfaceHeightCache.UNKNOWN);
+        }
+
+        return snapshot;
+    }
+}
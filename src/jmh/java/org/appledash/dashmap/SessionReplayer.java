@@ -0,0 +1,222 @@
+package org.appledash.dashmap;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.level.ChunkPos;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static org.appledash.dashmap.MapLayer.TEXTURE_SIZE;
+
+/**
+ * Replays a session recorded by SessionRecorder through a headless MapManager, timing every tick, so that map
+ * rebuilding can be profiled and compared between changes on exactly the same input: ./gradlew replaySession -Precording=<file>
+ *
+ * Ticks are replayed back to back rather than at the recorded pace, and whatever is still dirty at the end of the
+ * recording is drained. Which chunks a tick gets through depends on the tick budget and the machine, so the map may
+ * get there along a different path than the client did - but chunks are always sampled from the latest content that
+ * was recorded for them, and a chunk sampled before its latest content arrived is sampled again, so the final textures
+ * only depend on the recording. Their checksums are printed so that two runs can be compared.
+ */
+public final class SessionReplayer implements MapManager.SnapshotSource {
+    private static final int MAX_DRAIN_TICKS = 100000; /* Give up draining after this many ticks, in case something never settles */
+
+    private final MapManager mapManager = new MapManager();
+    private final Long2ObjectOpenHashMap<ChunkSnapshot> snapshots = new Long2ObjectOpenHashMap<>(); /* latest recorded content of each chunk */
+    private final LongOpenHashSet staleChunks = new LongOpenHashSet(); /* chunks sampled without their latest content, which is yet to come */
+    private final LongArrayList tickTimes = new LongArrayList(); /* time taken by each replayed tick, in nanoseconds */
+    private boolean hasCeiling;
+    private double eyeY; /* player's eye Y as of the last recorded tick */
+
+    private SessionReplayer() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: SessionReplayer <recording.dmrec>");
+            System.exit(1);
+        }
+
+        SyntheticWorld.bootstrap();
+
+        final SessionReplayer replayer = new SessionReplayer();
+        final long start = System.nanoTime();
+
+        replayer.replay(Path.of(args[0]));
+        replayer.drain();
+        replayer.printReport(System.nanoTime() - start);
+    }
+
+    @Override
+    public boolean hasCeiling() {
+        return this.hasCeiling;
+    }
+
+    @Override
+    public ChunkSnapshot takeSnapshot(int chunkX, int chunkZ, int originY, short[] ceilingSurfaceY, long contentHash) {
+        final long chunkKey = ChunkPos.asLong(chunkX, chunkZ);
+        final ChunkSnapshot snapshot = this.snapshots.get(chunkKey);
+
+        /* Either nothing has been recorded for the chunk yet, or something newer may still be - sample it again if so */
+        this.staleChunks.add(chunkKey);
+
+        return snapshot == null ? null : snapshot.withSurfaceSearch(originY, ceilingSurfaceY);
+    }
+
+    private void replay(Path file) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (input.readInt() != SessionRecorder.MAGIC) {
+                throw new IOException(file + " is not a DashMap session recording");
+            }
+
+            final int version = input.readInt();
+
+            if (version != SessionRecorder.VERSION) {
+                throw new IOException("Unsupported recording version " + version + ", expected " + SessionRecorder.VERSION);
+            }
+
+            byte[] event = new byte[4096];
+
+            while (true) {
+                final int length;
+
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break; /* the client may have been closed mid-event, so anything after the last whole event is ignored */
+                }
+
+                if (length > event.length) {
+                    event = new byte[Math.max(length, event.length * 2)];
+                }
+
+                try {
+                    input.readFully(event, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                this.applyEvent(new FriendlyByteBuf(Unpooled.wrappedBuffer(event, 0, length)));
+            }
+        }
+    }
+
+    private void applyEvent(FriendlyByteBuf buf) throws IOException {
+        final int eventCode = buf.readByte();
+
+        switch (eventCode) {
+            case SessionRecorder.EVENT_CLEAR -> {
+                this.mapManager.clearMap();
+                this.snapshots.clear();
+                this.staleChunks.clear();
+            }
+            case SessionRecorder.EVENT_RADIUS -> this.mapManager.setRadius(buf.readVarInt());
+            case SessionRecorder.EVENT_CENTER -> this.mapManager.setCenterPosition(new ChunkPos(buf.readLong()));
+            case SessionRecorder.EVENT_REFRESH -> this.mapManager.refreshChunk(new ChunkPos(buf.readLong()), buf.readBoolean(), buf.readLong());
+            case SessionRecorder.EVENT_REMOVE -> this.mapManager.removeChunk(new ChunkPos(buf.readLong()));
+            case SessionRecorder.EVENT_CHUNK_DIRTY -> this.mapManager.markChunkDirty(new ChunkPos(buf.readLong()));
+            case SessionRecorder.EVENT_BLOCK_DIRTY -> this.mapManager.markBlockDirty(buf.readBlockPos());
+            case SessionRecorder.EVENT_SURFACE_CHANGE -> this.mapManager.invalidateSurfaceHeight(buf.readBlockPos());
+            case SessionRecorder.EVENT_CAVE_MODE -> this.mapManager.setCaveMode(buf.readBoolean());
+            case SessionRecorder.EVENT_SNAPSHOT -> {
+                final ChunkSnapshot snapshot = ChunkSnapshot.read(buf);
+                final long chunkKey = snapshot.getPos().toLong();
+
+                this.snapshots.put(chunkKey, snapshot);
+
+                if (this.staleChunks.remove(chunkKey)) {
+                    this.mapManager.markChunkDirty(snapshot.getPos());
+                }
+            }
+            case SessionRecorder.EVENT_TICK -> {
+                this.eyeY = buf.readDouble();
+                this.hasCeiling = buf.readBoolean();
+                this.tick();
+            }
+            default -> throw new IOException("Unknown event " + eventCode + " in recording");
+        }
+    }
+
+    private void tick() {
+        final long start = System.nanoTime();
+
+        this.mapManager.rebuildChunks(this, this.eyeY);
+        this.tickTimes.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Keep ticking until everything that was left dirty at the end of the recording has been sampled and applied.
+     */
+    private void drain() {
+        for (int i = 0; i < MAX_DRAIN_TICKS; i++) {
+            if (this.mapManager.getDirtyChunkCount() == 0 && this.mapManager.getPendingRebuildCount() == 0) {
+                return;
+            }
+
+            this.tick();
+        }
+
+        System.err.println("Map didn't settle after " + MAX_DRAIN_TICKS + " ticks, checksums will vary between runs");
+    }
+
+    private void printReport(long elapsedNanos) {
+        final long[] sortedTimes = this.tickTimes.toLongArray();
+        final double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+
+        Arrays.sort(sortedTimes);
+
+        System.out.printf("Replayed %d ticks in %.2f s (%.0f ticks/s)%n", sortedTimes.length, seconds, sortedTimes.length / seconds);
+        System.out.printf("Applied %d tiles (%.0f tiles/s)%n", this.mapManager.getSampledTileCount(), this.mapManager.getSampledTileCount() / seconds);
+
+        if (sortedTimes.length > 0) {
+            System.out.printf("Tick time: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                              percentile(sortedTimes, 0.50), percentile(sortedTimes, 0.90), percentile(sortedTimes, 0.99),
+                              sortedTimes[sortedTimes.length - 1] / 1.0e6);
+        }
+
+        final ByteBuffer row = ByteBuffer.allocate(TEXTURE_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int level = 0; level < MapLayer.LEVEL_COUNT; level++) {
+            final IntBuffer pixels = this.mapManager.getLayer(level).getPixels();
+            final CRC32 crc = new CRC32();
+            int drawnPixels = 0;
+
+            for (int y = 0; y < TEXTURE_SIZE; y++) {
+                row.clear();
+
+                for (int x = 0; x < TEXTURE_SIZE; x++) {
+                    final int pixel = pixels.get((y * TEXTURE_SIZE) + x);
+
+                    row.putInt(pixel);
+
+                    if (pixel != 0) {
+                        drawnPixels++;
+                    }
+                }
+
+                crc.update(row.array());
+            }
+
+            System.out.printf("Level %d: %d pixels drawn, CRC32 %08x%n", level, drawnPixels, crc.getValue());
+        }
+    }
+
+    private static double percentile(long[] sortedTimes, double fraction) {
+        return sortedTimes[Math.min((int) (sortedTimes.length * fraction), sortedTimes.length - 1)] / 1.0e6;
+    }
+}
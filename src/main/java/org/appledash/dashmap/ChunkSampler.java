@@ -0,0 +1,332 @@
+package org.appledash.dashmap;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Samples the surface heights and colours of the top blocks of a chunk, producing the map tile that the texture is built from.
+ * This only ever reads from a ChunkSnapshot, and the only state it keeps is scratch space for each thread that uses it,
+ * so it is safe to use from any thread.
+ */
+public class ChunkSampler {
+    private static final byte KIND_UNKNOWN = 0;     /* Section hasn't been looked at yet */
+    private static final byte KIND_EMPTY = 1;       /* Section only contains air */
+    private static final byte KIND_UNIFORM = 2;     /* Section is made of a single block state */
+    private static final byte KIND_TRANSPARENT = 3; /* Nothing in the section's palette can stop the surface search */
+    private static final byte KIND_MIXED = 4;       /* Section has to be searched block by block */
+
+    private final MapColorPalette palette;
+    private final ThreadLocal<BlockPos.MutableBlockPos> blockPos = ThreadLocal.withInitial(BlockPos.MutableBlockPos::new); /* Reused between chunks to avoid constructing a lot of new objects */
+    private final ThreadLocal<SectionInfo> sectionInfo = ThreadLocal.withInitial(SectionInfo::new);
+
+    public ChunkSampler(MapColorPalette palette) {
+        this.palette = palette;
+    }
+
+    /**
+     * Sample the surface height and map color of the given columns of a chunk snapshot.
+     *
+     * @param snapshot Snapshot of the chunk to sample.
+     * @param mask Columns to sample.
+     * @param baseTile Tile to take the columns that aren't sampled from, or null if every column is being sampled.
+     * @return Unshaded map tile for the chunk.
+     */
+    public MapTile sampleTile(ChunkSnapshot snapshot, ColumnMask mask, @Nullable MapTile baseTile) {
+        final ChunkPos chunkPos = snapshot.getPos();
+        final short[] heights = baseTile == null ? new short[CHUNK_SIZE * CHUNK_SIZE] : baseTile.getHeights().clone();
+        final byte[] colorIds = baseTile == null ? new byte[CHUNK_SIZE * CHUNK_SIZE] : baseTile.getColorIds().clone();
+        final BlockPos.MutableBlockPos blockPos = this.blockPos.get();
+        final SectionInfo sections = this.sectionInfo.get();
+
+        sections.reset(snapshot);
+
+        for (int offsetX = 0; offsetX < CHUNK_SIZE; offsetX++) {
+            for (int offsetZ = 0; offsetZ < CHUNK_SIZE; offsetZ++) {
+                if (!mask.get(offsetX, offsetZ)) {
+                    continue;
+                }
+
+                final int index = (offsetX * CHUNK_SIZE) + offsetZ;
+
+                /* Each column's surface is only found once - shading compares it against the stored height of its neighbour later. */
+                blockPos.set(chunkPos.getBlockX(offsetX), 0, chunkPos.getBlockZ(offsetZ));
+                heights[index] = (short) this.getRealTopY(snapshot, sections, blockPos);
+                colorIds[index] = (byte) (this.palette.lookup(snapshot.getBlockState(blockPos)) & MapColorPalette.COLOR_ID_MASK);
+                sections.blocksSampled++;
+            }
+        }
+
+        sections.reset(null); /* don't hold on to the snapshot until this thread samples another chunk */
+
+        return new MapTile(heights, colorIds);
+    }
+
+    /**
+     * Get the number of block states the last call to sampleTile on this thread looked at. A section made of a single
+     * state counts once for every time the search reaches it, and sections skipped by their palette don't count at all.
+     */
+    public int getBlocksSampled() {
+        return this.sectionInfo.get().blocksSampled;
+    }
+
+    /**
+     * Get top Y at the given position in the world, excluding blocks that lack a map color.
+     * In addition, if we are dealing with a pool of water, this will return the Y of the lowest water source in the pool.
+     *
+     * Rather than reading every block, this works a section at a time where it can: sections that are only air, or
+     * whose palette has nothing that could stop the search, are skipped over whole, and sections made of a single
+     * block state are decided by that one state.
+     *
+     * @param snapshot Snapshot of the chunk we are working in.
+     * @param sections Palette information for the snapshot's sections.
+     * @param pos BlockPos to get the top Y at.
+     * @return Top Y.
+     */
+    private int getRealTopY(ChunkSnapshot snapshot, SectionInfo sections, BlockPos.MutableBlockPos pos) {
+        final int localX = pos.getX() & 15;
+        final int localZ = pos.getZ() & 15;
+        int y = this.getInitialTopY(snapshot, sections, pos);
+        int lastY = y; /* lowest Y that has been looked at so far */
+        int fluidBlockCount = 0;
+
+        /* If we encountered fluid, we want to return the height of the lowest fluid. This is used so the shadow effect takes into account
+         * the depth of the fluid.
+         */
+        while (y >= snapshot.getMinBuildHeight()) {
+            final int sectionIndex = snapshot.getSectionIndex(y);
+            final boolean keepLooking;
+
+            if (sectionIndex >= snapshot.getSectionsCount()) { /* Above the top of the world, which is all air */
+                lastY = snapshot.getMaxBuildHeight();
+                keepLooking = true;
+            } else {
+                final int sectionBottomY = SectionPos.sectionToBlockCoord(SectionPos.blockToSectionCoord(y));
+                final byte kind = sections.getKind(sectionIndex);
+
+                if (kind == KIND_EMPTY || kind == KIND_TRANSPARENT) {
+                    lastY = sectionBottomY;
+                    keepLooking = true;
+                } else if (kind == KIND_UNIFORM) {
+                    final int entry = this.palette.lookup(sections.getUniformState(sectionIndex));
+
+                    sections.blocksSampled++;
+                    keepLooking = isLookedThrough(entry) || isCountedFluid(entry);
+
+                    if (keepLooking) {
+                        if (isCountedFluid(entry)) {
+                            fluidBlockCount += (y - sectionBottomY) + 1;
+                        }
+
+                        lastY = sectionBottomY;
+                    } else {
+                        lastY = y;
+                    }
+                } else {
+                    final int entry = this.palette.lookup(snapshot.getSectionStates(sectionIndex).get(localX, y & 15, localZ));
+
+                    sections.blocksSampled++;
+                    keepLooking = isLookedThrough(entry) || isCountedFluid(entry);
+                    lastY = y;
+
+                    if (isCountedFluid(entry)) {
+                        fluidBlockCount++;
+                    }
+                }
+            }
+
+            if (!keepLooking) {
+                break;
+            }
+
+            y = lastY - 1;
+        }
+
+        pos.setY(fluidBlockCount > 0 ? lastY + 1 : lastY);
+
+        return pos.getY();
+    }
+
+    /**
+     * Whether the search for the surface should carry on straight through a block with the given palette entry.
+     * Sometimes the official top Y doesn't have a map color (eg: double tall grass), and some blocks look bad on the map
+     * (eg: grass, configurable in the ignoredBlocks option), so we keep going down until we find something better.
+     */
+    private static boolean isLookedThrough(int entry) {
+        return (entry & MapColorPalette.NO_COLOR) != 0 ||
+               ((entry & MapColorPalette.SKIP) != 0 && (entry & MapColorPalette.FLUID_SOURCE) == 0);
+    }
+
+    /**
+     * Whether a block with the given palette entry counts towards the depth of a pool of fluid.
+     */
+    private static boolean isCountedFluid(int entry) {
+        return (entry & MapColorPalette.NO_COLOR) == 0 && (entry & MapColorPalette.FLUID_SOURCE) != 0;
+    }
+
+    /**
+     * Get the top Y-level to begin searching for a valid "surface" block at.
+     * In the overworld, this is just the surface according to the heightmap, but in the nether and in cave mode we have
+     * to do a bit of manual work.
+     *
+     * @param snapshot Snapshot of the chunk we are working in.
+     * @param sections Palette information for the snapshot's sections.
+     * @param blockPos Position to find the top Y-level at.
+     * @return Top y-level, possibly guessed based on heuristics.
+     */
+    private int getInitialTopY(ChunkSnapshot snapshot, SectionInfo sections, BlockPos.MutableBlockPos blockPos) {
+        if (snapshot.isSliced()) {
+            final int cachedY = snapshot.getCeilingSurfaceY(blockPos.getX(), blockPos.getZ());
+
+            if (cachedY != SurfaceHeightCache.UNKNOWN) {
+                return cachedY;
+            }
+
+            /* do a manual search for the first solid block around where the player is standing, skipping sections that
+             * are all air. This is still slow, so the result is recorded in the snapshot and ends up in the SurfaceHeightCache.
+             */
+            final int localX = blockPos.getX() & 15;
+            final int localZ = blockPos.getZ() & 15;
+            final int wallBottomY = Math.max(snapshot.getOriginY() - SurfaceHeightCache.WINDOW_HEIGHT, snapshot.getMinBuildHeight());
+            int topY = snapshot.getMaxBuildHeight();
+            int y = Math.min(snapshot.getOriginY(), snapshot.getMaxBuildHeight() - 1);
+
+            /* Underground, the search usually starts inside rock. Look down through it for open space, and if the
+             * column is solid all the way through the window, it is a wall and shows as the block at the top.
+             */
+            while (y >= wallBottomY && !this.isOpen(snapshot, sections, localX, y, localZ)) {
+                y--;
+            }
+
+            if (y < wallBottomY) {
+                topY = Math.min(snapshot.getOriginY(), snapshot.getMaxBuildHeight() - 1);
+                snapshot.setCeilingSurfaceY(blockPos.getX(), blockPos.getZ(), topY);
+
+                return topY;
+            }
+
+            while (y >= snapshot.getMinBuildHeight()) {
+                final int sectionIndex = snapshot.getSectionIndex(y);
+                final byte kind = sections.getKind(sectionIndex);
+
+                if (kind == KIND_EMPTY || (kind == KIND_UNIFORM && sections.getUniformState(sectionIndex).isAir())) {
+                    y = SectionPos.sectionToBlockCoord(SectionPos.blockToSectionCoord(y)) - 1;
+                } else if (kind == KIND_UNIFORM || !snapshot.getSectionStates(sectionIndex).get(localX, y & 15, localZ).isAir()) {
+                    sections.blocksSampled++;
+                    topY = y;
+                    break;
+                } else {
+                    sections.blocksSampled++;
+                    y--;
+                }
+            }
+
+            snapshot.setCeilingSurfaceY(blockPos.getX(), blockPos.getZ(), topY);
+
+            return topY;
+        }
+
+        /* Not the nether, just use the height map we already have. */
+        return snapshot.getSurfaceY(blockPos.getX(), blockPos.getZ());
+    }
+
+    /**
+     * Check whether a block of a snapshot is air, judging whole sections by their palette where possible.
+     */
+    private boolean isOpen(ChunkSnapshot snapshot, SectionInfo sections, int localX, int y, int localZ) {
+        final int sectionIndex = snapshot.getSectionIndex(y);
+
+        if (sectionIndex >= snapshot.getSectionsCount()) { /* Above the top of the world, which is all air */
+            return true;
+        }
+
+        final byte kind = sections.getKind(sectionIndex);
+
+        if (kind == KIND_EMPTY) {
+            return true;
+        }
+
+        sections.blocksSampled++;
+
+        if (kind == KIND_UNIFORM) {
+            return sections.getUniformState(sectionIndex).isAir();
+        }
+
+        return snapshot.getSectionStates(sectionIndex).get(localX, y & 15, localZ).isAir();
+    }
+
+    /**
+     * What the surface search needs to know about each section of a snapshot, worked out from the section's palette the
+     * first time the search reaches it. Only checks the palette, never the blocks themselves, so the answers are
+     * conservative: a palette can still hold states that are no longer used anywhere in the section.
+     */
+    private final class SectionInfo {
+        private ChunkSnapshot snapshot;
+        private byte[] kinds = new byte[0];
+        private BlockState[] uniformStates = new BlockState[0];
+        private int blocksSampled; /* block states looked at since the last snapshot was started on */
+
+        /**
+         * Forget everything about the previous snapshot, and start on another. The arrays are only reallocated when the
+         * new snapshot has more sections than any before it.
+         *
+         * @param snapshot Snapshot to classify the sections of, or null to just let go of the previous one.
+         */
+        private void reset(@Nullable ChunkSnapshot snapshot) {
+            this.snapshot = snapshot;
+
+            if (snapshot == null) {
+                return;
+            }
+
+            this.blocksSampled = 0;
+
+            if (this.kinds.length < snapshot.getSectionsCount()) {
+                this.kinds = new byte[snapshot.getSectionsCount()];
+                this.uniformStates = new BlockState[snapshot.getSectionsCount()];
+            } else {
+                Arrays.fill(this.kinds, KIND_UNKNOWN);
+            }
+        }
+
+        private byte getKind(int sectionIndex) {
+            if (this.kinds[sectionIndex] == KIND_UNKNOWN) {
+                this.kinds[sectionIndex] = this.classify(sectionIndex);
+            }
+
+            return this.kinds[sectionIndex];
+        }
+
+        private BlockState getUniformState(int sectionIndex) {
+            return this.uniformStates[sectionIndex];
+        }
+
+        private byte classify(int sectionIndex) {
+            final PalettedContainer<BlockState> states = this.snapshot.getSectionStates(sectionIndex);
+
+            if (states == null) {
+                return KIND_EMPTY;
+            }
+
+            final BlockState firstState = states.get(0, 0, 0);
+
+            if (!states.maybeHas(state -> state != firstState)) {
+                this.uniformStates[sectionIndex] = firstState;
+                return KIND_UNIFORM;
+            }
+
+            if (!states.maybeHas(state -> !isLookedThrough(ChunkSampler.this.palette.lookup(state)))) {
+                return KIND_TRANSPARENT;
+            }
+
+            return KIND_MIXED;
+        }
+    }
+}
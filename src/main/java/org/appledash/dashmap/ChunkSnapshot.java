@@ -0,0 +1,326 @@
+package org.appledash.dashmap;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.level.BlockGetter;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelAccessor;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.EmptyLevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.world.level.material.FluidState;
+
+import javax.annotation.Nullable;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * An immutable copy of the block data that the map needs from a chunk, so that it can be sampled away from the client thread.
+ *
+ * In dimensions with a ceiling it also carries the surface heights from the SurfaceHeightCache, and records the heights
+ * of any columns that had to be searched, so that they can be put back in the cache. A snapshot must therefore only be
+ * used by one thread at a time.
+ */
+public final class ChunkSnapshot implements BlockGetter {
+    private final ChunkPos pos;
+    private final PalettedContainer<BlockState>[] sections; /* copies of the chunk's block states, null for sections that are only air */
+    private final int[] surfaceY;      /* first free Y above the WORLD_SURFACE heightmap, indexed by (z * CHUNK_SIZE) + x */
+    private final int minBuildHeight;
+    private final int height;
+    private final boolean hasCeiling;
+    private final boolean placeholder; /* chunk is a placeholder for one the server hasn't sent yet */
+    private final long contentHash;    /* content hash of the chunk if it was already known, or 0 to work it out when asked for */
+    private final int originY;         /* Y to start searching down from in dimensions with a ceiling */
+    private final short[] ceilingSurfaceY; /* surface heights in dimensions with a ceiling, indexed by (z * CHUNK_SIZE) + x */
+
+    private ChunkSnapshot(ChunkPos pos, PalettedContainer<BlockState>[] sections, int[] surfaceY, int minBuildHeight, boolean hasCeiling,
+                          boolean placeholder, long contentHash, int originY, short[] ceilingSurfaceY) {
+        this.pos = pos;
+        this.sections = sections;
+        this.surfaceY = surfaceY;
+        this.minBuildHeight = minBuildHeight;
+        this.height = sections.length * CHUNK_SIZE;
+        this.hasCeiling = hasCeiling;
+        this.placeholder = placeholder;
+        this.contentHash = contentHash;
+        this.originY = originY;
+        this.ceilingSurfaceY = ceilingSurfaceY;
+    }
+
+    /**
+     * Take a snapshot of the given chunk. Must be called on the thread that owns the chunk. The content hash isn't
+     * worked out here, but from the copied block data by whichever thread asks for it.
+     *
+     * @param chunk Chunk to take a snapshot of.
+     * @param originY Y to start searching down from in dimensions with a ceiling, usually just above the player's eyes.
+     * @param ceilingSurfaceY Known surface heights in dimensions with a ceiling, which the snapshot takes ownership of.
+     * @param contentHash Content hash of the chunk if it has already been worked out since the chunk last changed, or 0.
+     * @return Snapshot of the chunk.
+     */
+    public static ChunkSnapshot of(ChunkAccess chunk, int originY, short[] ceilingSurfaceY, long contentHash) {
+        final LevelAccessor level = chunk.getWorldForge();
+
+        assert level != null;
+
+        final int[] surfaceY = new int[CHUNK_SIZE * CHUNK_SIZE];
+        final boolean hasCeiling = level.dimensionType().hasCeiling();
+        final boolean placeholder = chunk instanceof EmptyLevelChunk;
+
+        for (int z = 0; z < CHUNK_SIZE; z++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                surfaceY[(z * CHUNK_SIZE) + x] = chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x, z) + 1;
+            }
+        }
+
+        return new ChunkSnapshot(chunk.getPos(), copySections(chunk), surfaceY, chunk.getMinBuildHeight(), hasCeiling,
+                                 placeholder, placeholder ? 0 : contentHash, originY, ceilingSurfaceY);
+    }
+
+    /**
+     * Make a snapshot out of block data that didn't come from a loaded chunk, such as a synthetic world. The snapshot
+     * takes ownership of all the arrays it is given.
+     *
+     * @param pos Position of the chunk.
+     * @param sections Block states of each section, counting up from the bottom of the world, null for sections that are only air.
+     * @param surfaceY First free Y above the surface of each column, indexed by (z * CHUNK_SIZE) + x.
+     * @param minBuildHeight Y of the bottom of the world.
+     * @param hasCeiling Whether the chunk is in a dimension with a ceiling.
+     * @param originY Y to start searching down from in dimensions with a ceiling.
+     * @param ceilingSurfaceY Known surface heights in dimensions with a ceiling.
+     * @return Snapshot of the block data, with no content hash.
+     */
+    public static ChunkSnapshot of(ChunkPos pos, PalettedContainer<BlockState>[] sections, int[] surfaceY, int minBuildHeight, boolean hasCeiling, int originY, short[] ceilingSurfaceY) {
+        return new ChunkSnapshot(pos, sections, surfaceY, minBuildHeight, hasCeiling, false, 0, originY, ceilingSurfaceY);
+    }
+
+    /**
+     * Read the block data of a snapshot written by write. The Y to search from and the surface heights in dimensions with
+     * a ceiling aren't part of it - use withSurfaceSearch to provide them.
+     *
+     * @param buf Buffer to read from.
+     * @return Snapshot of the block data.
+     */
+    @SuppressWarnings("unchecked")
+    public static ChunkSnapshot read(FriendlyByteBuf buf) {
+        final ChunkPos pos = new ChunkPos(buf.readInt(), buf.readInt());
+        final int minBuildHeight = buf.readInt();
+        final boolean hasCeiling = buf.readBoolean();
+        final boolean placeholder = buf.readBoolean();
+        final long contentHash = buf.readLong();
+        final int[] surfaceY = new int[CHUNK_SIZE * CHUNK_SIZE];
+        final PalettedContainer<BlockState>[] sections = new PalettedContainer[buf.readVarInt()];
+
+        for (int i = 0; i < surfaceY.length; i++) {
+            surfaceY[i] = minBuildHeight + buf.readVarInt();
+        }
+
+        for (int i = 0; i < sections.length; i++) {
+            if (buf.readBoolean()) {
+                sections[i] = new PalettedContainer<>(Block.BLOCK_STATE_REGISTRY, Blocks.AIR.defaultBlockState(), PalettedContainer.Strategy.SECTION_STATES);
+                sections[i].read(buf);
+            }
+        }
+
+        return new ChunkSnapshot(pos, sections, surfaceY, minBuildHeight, hasCeiling, placeholder, contentHash, 0, null);
+    }
+
+    /**
+     * Write the block data of this snapshot, in the same compact form the server sends chunks in. Block states are
+     * written as registry ids, so they can only be read back with the same blocks registered.
+     *
+     * @param buf Buffer to write to.
+     */
+    public void write(FriendlyByteBuf buf) {
+        buf.writeInt(this.pos.x);
+        buf.writeInt(this.pos.z);
+        buf.writeInt(this.minBuildHeight);
+        buf.writeBoolean(this.hasCeiling);
+        buf.writeBoolean(this.placeholder);
+        buf.writeLong(this.contentHash);
+        buf.writeVarInt(this.sections.length);
+
+        for (final int y : this.surfaceY) {
+            buf.writeVarInt(y - this.minBuildHeight);
+        }
+
+        for (final PalettedContainer<BlockState> section : this.sections) {
+            buf.writeBoolean(section != null);
+
+            if (section != null) {
+                section.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Make a snapshot of the same block data that searches for the surface from a different Y, with different known
+     * surface heights. The block data is shared, which is safe since it is never written to.
+     *
+     * @param originY Y to start searching down from in dimensions with a ceiling.
+     * @param ceilingSurfaceY Known surface heights in dimensions with a ceiling, which the snapshot takes ownership of.
+     * @return Snapshot of the same block data.
+     */
+    public ChunkSnapshot withSurfaceSearch(int originY, short[] ceilingSurfaceY) {
+        return new ChunkSnapshot(this.pos, this.sections, this.surfaceY, this.minBuildHeight, this.hasCeiling, this.placeholder, this.contentHash, originY, ceilingSurfaceY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PalettedContainer<BlockState>[] copySections(ChunkAccess chunk) {
+        final LevelChunkSection[] chunkSections = chunk.getSections();
+        final PalettedContainer<BlockState>[] copies = new PalettedContainer[chunkSections.length];
+
+        for (int i = 0; i < chunkSections.length; i++) {
+            final LevelChunkSection section = chunkSections[i];
+
+            if (section != null && !section.hasOnlyAir()) {
+                copies[i] = section.getStates().copy();
+            }
+        }
+
+        return copies;
+    }
+
+    public ChunkPos getPos() {
+        return this.pos;
+    }
+
+    public boolean hasCeiling() {
+        return this.hasCeiling;
+    }
+
+    /**
+     * Check whether the snapshot was taken of a placeholder for a chunk the server hasn't sent yet, which is all air.
+     */
+    public boolean isPlaceholder() {
+        return this.placeholder;
+    }
+
+    /**
+     * Get the content hash of the chunk at the time the snapshot was taken, working it out from the snapshot the same way
+     * TileCache.contentHash does from the chunk if it wasn't known when the snapshot was taken.
+     *
+     * @return Content hash, or 0 if the chunk can't be hashed.
+     */
+    public long getContentHash() {
+        if (this.contentHash != 0 || this.placeholder || this.hasCeiling) {
+            return this.contentHash;
+        }
+
+        final BlockPos.MutableBlockPos blockPos = new BlockPos.MutableBlockPos();
+        long hash = 1;
+
+        for (int z = 0; z < CHUNK_SIZE; z++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                final int topY = this.surfaceY[(z * CHUNK_SIZE) + x] - 1;
+
+                blockPos.set(this.pos.getMinBlockX() + x, topY, this.pos.getMinBlockZ() + z);
+                hash = TileCache.hashColumn(hash, topY, this.getBlockState(blockPos));
+            }
+        }
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Check whether the map shows a slice of this chunk, searching for the surface down from the origin Y rather than
+     * using the heightmap. This is the case in dimensions with a ceiling, and in cave mode.
+     */
+    public boolean isSliced() {
+        return this.ceilingSurfaceY != null;
+    }
+
+    public int getOriginY() {
+        return this.originY;
+    }
+
+    /**
+     * Get the copied block states of a section of this chunk.
+     *
+     * @param sectionIndex Index of the section, counting up from the bottom of the world.
+     * @return Block states of the section, or null if the section is only air.
+     */
+    @Nullable
+    public PalettedContainer<BlockState> getSectionStates(int sectionIndex) {
+        return this.sections[sectionIndex];
+    }
+
+    /**
+     * Get the first free Y above the surface at the given world position, according to the WORLD_SURFACE heightmap.
+     * Positions outside this chunk are treated as empty.
+     */
+    public int getSurfaceY(int x, int z) {
+        if ((x >> 4) != this.pos.x || (z >> 4) != this.pos.z) {
+            return this.minBuildHeight;
+        }
+
+        return this.surfaceY[((z & 15) * CHUNK_SIZE) + (x & 15)];
+    }
+
+    /**
+     * Get the surface height at the given world position in a sliced snapshot, if it is known.
+     *
+     * @return Surface height, or SurfaceHeightCache.UNKNOWN if it needs to be searched for.
+     */
+    public int getCeilingSurfaceY(int x, int z) {
+        if ((x >> 4) != this.pos.x || (z >> 4) != this.pos.z) {
+            return SurfaceHeightCache.UNKNOWN;
+        }
+
+        return this.ceilingSurfaceY[((z & 15) * CHUNK_SIZE) + (x & 15)];
+    }
+
+    /**
+     * Record the surface height found at the given world position in a sliced snapshot.
+     */
+    public void setCeilingSurfaceY(int x, int z, int y) {
+        if ((x >> 4) == this.pos.x && (z >> 4) == this.pos.z) {
+            this.ceilingSurfaceY[((z & 15) * CHUNK_SIZE) + (x & 15)] = (short) y;
+        }
+    }
+
+    /**
+     * Get the surface heights of this chunk in a sliced snapshot, including any found while sampling.
+     */
+    public short[] getCeilingSurfaceHeights() {
+        return this.ceilingSurfaceY;
+    }
+
+    @Override
+    public BlockState getBlockState(BlockPos blockPos) {
+        final int sectionIndex = (blockPos.getY() >> 4) - (this.minBuildHeight >> 4);
+
+        if ((blockPos.getX() >> 4) != this.pos.x || (blockPos.getZ() >> 4) != this.pos.z ||
+            sectionIndex < 0 || sectionIndex >= this.sections.length || this.sections[sectionIndex] == null) {
+            return Blocks.AIR.defaultBlockState();
+        }
+
+        return this.sections[sectionIndex].get(blockPos.getX() & 15, blockPos.getY() & 15, blockPos.getZ() & 15);
+    }
+
+    @Override
+    public FluidState getFluidState(BlockPos blockPos) {
+        return this.getBlockState(blockPos).getFluidState();
+    }
+
+    @Nullable
+    @Override
+    public BlockEntity getBlockEntity(BlockPos blockPos) {
+        return null; /* Block entities aren't needed for map colours, and aren't safe to touch off-thread anyway. */
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public int getMinBuildHeight() {
+        return this.minBuildHeight;
+    }
+}
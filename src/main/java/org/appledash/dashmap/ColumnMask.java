@@ -0,0 +1,113 @@
+package org.appledash.dashmap;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * A set of columns within a chunk, stored as a 256-bit mask. Used to keep track of which columns of a chunk need to be
+ * sampled again, so that changing a single block doesn't cost a whole chunk rebuild.
+ *
+ * Columns are indexed by (x * CHUNK_SIZE) + z, the same as in MapTile.
+ */
+public final class ColumnMask {
+    private static final int WORD_COUNT = (CHUNK_SIZE * CHUNK_SIZE) / Long.SIZE;
+
+    private final long[] words = new long[WORD_COUNT];
+
+    /**
+     * Create a mask containing every column of a chunk.
+     */
+    public static ColumnMask full() {
+        final ColumnMask mask = new ColumnMask();
+
+        mask.setAll();
+
+        return mask;
+    }
+
+    public void set(int x, int z) {
+        final int index = (x * CHUNK_SIZE) + z;
+
+        this.words[index >> 6] |= 1L << index;
+    }
+
+    public boolean get(int x, int z) {
+        final int index = (x * CHUNK_SIZE) + z;
+
+        return (this.words[index >> 6] & (1L << index)) != 0;
+    }
+
+    public void setAll() {
+        for (int i = 0; i < WORD_COUNT; i++) {
+            this.words[i] = -1L;
+        }
+    }
+
+    /**
+     * Add every column of another mask to this one.
+     */
+    public void or(ColumnMask other) {
+        for (int i = 0; i < WORD_COUNT; i++) {
+            this.words[i] |= other.words[i];
+        }
+    }
+
+    public boolean isFull() {
+        for (int i = 0; i < WORD_COUNT; i++) {
+            if (this.words[i] != -1L) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean isEmpty() {
+        for (int i = 0; i < WORD_COUNT; i++) {
+            if (this.words[i] != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the number of columns in the mask.
+     */
+    public int count() {
+        int count = 0;
+
+        for (int i = 0; i < WORD_COUNT; i++) {
+            count += Long.bitCount(this.words[i]);
+        }
+
+        return count;
+    }
+
+    public ColumnMask copy() {
+        final ColumnMask copy = new ColumnMask();
+
+        System.arraycopy(this.words, 0, copy.words, 0, WORD_COUNT);
+
+        return copy;
+    }
+
+    /**
+     * Get a copy of this mask that also contains every column whose shading depends on a column in it, which is the
+     * column directly to the south of it. Columns to the south of the southmost row are in the next chunk, and are
+     * not included.
+     */
+    public ColumnMask withShadingDependents() {
+        final ColumnMask dependents = this.copy();
+
+        for (int x = 0; x < CHUNK_SIZE; x++) {
+            for (int z = 0; z < CHUNK_SIZE - 1; z++) {
+                if (this.get(x, z)) {
+                    dependents.set(x, z + 1);
+                }
+            }
+        }
+
+        return dependents;
+    }
+}
@@ -0,0 +1,101 @@
+package org.appledash.dashmap;
+
+import net.minecraft.network.chat.Style;
+import net.minecraft.util.FormattedCharSequence;
+import net.minecraft.util.FormattedCharSink;
+
+/**
+ * The player's coordinates as shown beneath the minimap, such as "X: 12.34 Z: -5.60".
+ *
+ * The text lives in a reused buffer that the font reads straight from, and is only written again when the coordinates
+ * change at the two decimal places shown - so drawing it every frame, walking or not, never allocates a String.
+ */
+public final class CoordinateLabel implements FormattedCharSequence {
+    private static final int MAX_LENGTH = 64; /* Long enough for both coordinates at their largest, with signs */
+
+    private final char[] chars = new char[MAX_LENGTH];
+    private int length;
+    private long shownX = Long.MIN_VALUE; /* coordinates in the buffer, in hundredths of a block */
+    private long shownZ = Long.MIN_VALUE;
+
+    /**
+     * Bring the label up to date with the player's position.
+     *
+     * @param x X coordinate of the player.
+     * @param z Z coordinate of the player.
+     * @return True if the text changed.
+     */
+    public boolean update(double x, double z) {
+        final long hundredthsX = toHundredths(x);
+        final long hundredthsZ = toHundredths(z);
+
+        if (hundredthsX == this.shownX && hundredthsZ == this.shownZ) {
+            return false;
+        }
+
+        this.shownX = hundredthsX;
+        this.shownZ = hundredthsZ;
+        this.length = 0;
+        this.append("X: ");
+        this.appendHundredths(hundredthsX);
+        this.append(" Z: ");
+        this.appendHundredths(hundredthsZ);
+
+        return true;
+    }
+
+    @Override
+    public boolean accept(FormattedCharSink sink) {
+        for (int i = 0; i < this.length; i++) {
+            if (!sink.accept(i, Style.EMPTY, this.chars[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.chars, 0, this.length);
+    }
+
+    /**
+     * Round a coordinate to hundredths the same way String.format("%.2f") does, with halves rounded away from zero.
+     */
+    private static long toHundredths(double value) {
+        return value < 0 ? -Math.round(-value * 100) : Math.round(value * 100);
+    }
+
+    private void append(String text) {
+        text.getChars(0, text.length(), this.chars, this.length);
+        this.length += text.length();
+    }
+
+    private void appendHundredths(long hundredths) {
+        if (hundredths < 0) {
+            this.chars[this.length++] = '-';
+            hundredths = -hundredths;
+        }
+
+        /* Whole blocks go in backwards, and are then reversed in place */
+        final int start = this.length;
+        long whole = hundredths / 100;
+
+        do {
+            this.chars[this.length++] = (char) ('0' + (whole % 10));
+            whole /= 10;
+        } while (whole > 0);
+
+        for (int i = start, j = this.length - 1; i < j; i++, j--) {
+            final char swap = this.chars[i];
+
+            this.chars[i] = this.chars[j];
+            this.chars[j] = swap;
+        }
+
+        this.chars[this.length++] = '.';
+        this.chars[this.length++] = (char) ('0' + ((hundredths / 10) % 10));
+        this.chars[this.length++] = (char) ('0' + (hundredths % 10));
+    }
+}
@@ -5,6 +5,9 @@ import net.minecraftforge.fml.DistExecutor;
 import net.minecraftforge.fml.IExtensionPoint;
 import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.config.ModConfig;
+import net.minecraftforge.fml.event.config.ModConfigEvent;
+import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
 import net.minecraftforge.network.NetworkConstants;
 
 @Mod("dashmap")
@@ -12,6 +15,7 @@ public class DashMap {
     public static DashMap instance;
     private final MapManager mapManager = new MapManager();
     private final MapRenderer renderer = new MapRenderer();
+    private final EntityMarkers entityMarkers = new EntityMarkers();
 
     public DashMap() {
         DashMap.instance = this;
@@ -25,10 +29,24 @@ public class DashMap {
                 )
         );
 
+        ModLoadingContext.get().registerConfig(ModConfig.Type.CLIENT, DashMapConfig.SPEC);
+        FMLJavaModLoadingContext.get().getModEventBus().addListener(this::onConfigReload);
+
         /* Only register our events on the client side */
         DistExecutor.safeRunWhenOn(Dist.CLIENT, () -> DashMapEventHandler::register);
     }
 
+    /**
+     * The config decides which blocks the map skips over, so cached block state lookups have to be redone when it changes,
+     * and how many worker threads sample chunks, so the worker pool has to be rebuilt.
+     */
+    private void onConfigReload(ModConfigEvent.Reloading evt) {
+        if (evt.getConfig().getSpec() == DashMapConfig.SPEC) {
+            this.mapManager.invalidatePalette();
+            this.mapManager.invalidateWorkerPool();
+        }
+    }
+
     public MapManager getMapManager() {
         return this.mapManager;
     }
@@ -36,4 +54,8 @@ public class DashMap {
     public MapRenderer getMapRenderer() {
         return this.renderer;
     }
+
+    public EntityMarkers getEntityMarkers() {
+        return this.entityMarkers;
+    }
 }
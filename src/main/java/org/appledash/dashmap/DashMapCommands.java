@@ -0,0 +1,70 @@
+package org.appledash.dashmap;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import net.minecraft.client.Minecraft;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.network.chat.TranslatableComponent;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Client-side commands for the map, which only exist on the client and are never sent to the server.
+ *
+ * /dashmap export tiles [radius] - export the explored map as a pyramid of PNG tiles
+ * /dashmap export image [radius] - export the explored map as a single PNG
+ */
+public final class DashMapCommands {
+    private static final DateTimeFormatter DIRECTORY_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss");
+    private static final int MAX_EXPORT_RADIUS = 100000; /* Radius in chunks, well past the edge of the world */
+
+    private DashMapCommands() {
+    }
+
+    public static void register(CommandDispatcher<CommandSourceStack> dispatcher, DashMap dashMap) {
+        dispatcher.register(Commands.literal("dashmap")
+                .then(Commands.literal("export")
+                        .then(export("tiles", MapExporter.Layout.TILES, dashMap))
+                        .then(export("image", MapExporter.Layout.IMAGE, dashMap))));
+    }
+
+    private static LiteralArgumentBuilder<CommandSourceStack> export(String name, MapExporter.Layout layout, DashMap dashMap) {
+        return Commands.literal(name)
+                .executes(ctx -> startExport(ctx.getSource(), dashMap, layout, 0))
+                .then(Commands.argument("radius", IntegerArgumentType.integer(1, MAX_EXPORT_RADIUS))
+                        .executes(ctx -> startExport(ctx.getSource(), dashMap, layout, IntegerArgumentType.getInteger(ctx, "radius"))));
+    }
+
+    /**
+     * Start exporting the map of the current dimension in the background. The player is told where it went once it is done.
+     *
+     * @param radius Radius in chunks around the player to export, or 0 for everything that has been explored.
+     */
+    private static int startExport(CommandSourceStack source, DashMap dashMap, MapExporter.Layout layout, int radius) {
+        final Minecraft mc = Minecraft.getInstance();
+        final TileCache tileCache = dashMap.getMapManager().getTileCache();
+
+        /* Only the cache has every explored chunk, the map itself only keeps what is around the player */
+        if (tileCache == null || mc.player == null) {
+            source.sendFailure(new TranslatableComponent("commands.dashmap.export.no_cache"));
+            return 0;
+        }
+
+        final Path directory = mc.gameDirectory.toPath().resolve("dashmap").resolve("exports").resolve(LocalDateTime.now().format(DIRECTORY_NAME_FORMAT));
+        final boolean started = MapExporter.start(tileCache, directory, layout, mc.player.chunkPosition(), radius,
+                                                  message -> mc.execute(() -> mc.gui.getChat().addMessage(message)));
+
+        if (!started) {
+            source.sendFailure(new TranslatableComponent("commands.dashmap.export.busy"));
+            return 0;
+        }
+
+        source.sendSuccess(new TranslatableComponent("commands.dashmap.export.started", MapExporter.fileLink(directory)), false);
+
+        return 1;
+    }
+}
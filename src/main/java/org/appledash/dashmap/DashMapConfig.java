@@ -0,0 +1,94 @@
+package org.appledash.dashmap;
+
+import net.minecraftforge.common.ForgeConfigSpec;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+
+/**
+ * Client-side configuration for DashMap, stored in dashmap-client.toml.
+ */
+public final class DashMapConfig {
+    public static final int DEFAULT_MAP_RADIUS = 3; /* the radius the map always had before it was configurable */
+    public static final ForgeConfigSpec SPEC;
+    public static final DashMapConfig CLIENT;
+
+    static {
+        final Pair<DashMapConfig, ForgeConfigSpec> pair = new ForgeConfigSpec.Builder().configure(DashMapConfig::new);
+
+        CLIENT = pair.getLeft();
+        SPEC = pair.getRight();
+    }
+
+    public final ForgeConfigSpec.IntValue mapRadius;
+    public final ForgeConfigSpec.BooleanValue cachedMinimap;
+    public final ForgeConfigSpec.BooleanValue asyncRebuild;
+    public final ForgeConfigSpec.IntValue workerThreads;
+    public final ForgeConfigSpec.IntValue tickBudgetMicros;
+    public final ForgeConfigSpec.BooleanValue tileCache;
+    public final ForgeConfigSpec.IntValue tileMemoryMB;
+    public final ForgeConfigSpec.ConfigValue<List<? extends String>> ignoredBlocks;
+    public final ForgeConfigSpec.IntValue maxPlayerMarkers;
+    public final ForgeConfigSpec.IntValue maxHostileMarkers;
+    public final ForgeConfigSpec.IntValue maxPassiveMarkers;
+    public final ForgeConfigSpec.BooleanValue recordSession;
+
+    private DashMapConfig(ForgeConfigSpec.Builder builder) {
+        builder.push("map");
+
+        this.mapRadius = builder
+                .comment("Radius of chunks around the player that the map keeps up to date. Zoomed out, the map shows distant chunks at a lower level of detail. Takes effect on changing dimension or rejoining.")
+                .defineInRange("mapRadius", DEFAULT_MAP_RADIUS, 1, MapManager.MAX_RADIUS);
+        this.cachedMinimap = builder
+                .comment("Draw the minimap into an offscreen buffer and only redraw it when the map, the player's position or the direction they are facing has changed enough to show. Turn off if the minimap doesn't show up with shader mods.")
+                .define("cachedMinimap", true);
+
+        builder.pop();
+        builder.push("markers");
+
+        this.maxPlayerMarkers = builder
+                .comment("Most other players shown on the minimap at once, nearest first. 0 hides players.")
+                .defineInRange("maxPlayerMarkers", 64, 0, 1024);
+        this.maxHostileMarkers = builder
+                .comment("Most hostile mobs shown on the minimap at once, nearest first. 0 hides hostile mobs.")
+                .defineInRange("maxHostileMarkers", 48, 0, 1024);
+        this.maxPassiveMarkers = builder
+                .comment("Most other mobs shown on the minimap at once, nearest first. 0 hides them.")
+                .defineInRange("maxPassiveMarkers", 32, 0, 1024);
+
+        builder.pop();
+        builder.push("rebuild");
+
+        this.asyncRebuild = builder
+                .comment("Sample chunk colours on background worker threads instead of on the client tick thread.")
+                .define("asyncRebuild", true);
+        this.workerThreads = builder
+                .comment("Number of worker threads used for sampling chunk colours when asyncRebuild is enabled.")
+                .defineInRange("workerThreads", 2, 1, 8);
+        this.tickBudgetMicros = builder
+                .comment("Time in microseconds that map rebuilding may spend on the client tick thread each tick. Chunks closest to the player go first, and the rest wait for later ticks.")
+                .defineInRange("tickBudgetMicros", 1500, 100, 50000);
+        this.ignoredBlocks = builder
+                .comment("Blocks that look bad on the map, and are looked through to whatever is beneath them. Entries starting with # are block tags.")
+                .defineList("ignoredBlocks", List.of("minecraft:grass", "minecraft:tall_grass"), entry -> entry instanceof String);
+
+        builder.pop();
+        builder.push("cache");
+
+        this.tileCache = builder
+                .comment("Keep sampled map tiles on disk, per server and dimension, so explored terrain shows up immediately on login.")
+                .define("tileCache", true);
+        this.tileMemoryMB = builder
+                .comment("Memory in megabytes used to keep map tiles of chunks that have been unloaded, so going back to them is instant. The surface and the cave layers share this limit, and the least recently used areas of any of them are dropped first.")
+                .defineInRange("tileMemoryMB", 64, 8, 4096);
+
+        builder.pop();
+        builder.push("debug");
+
+        this.recordSession = builder
+                .comment("Record everything the map does to dashmap/recordings, one file per dimension visited, so that map rebuilding can be replayed and profiled without a client. Recordings grow quickly. Takes effect on changing dimension or rejoining.")
+                .define("recordSession", false);
+
+        builder.pop();
+    }
+}
@@ -1,23 +1,30 @@
 package org.appledash.dashmap;
 
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.multiplayer.ClientLevel;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
 import net.minecraftforge.client.event.ClientPlayerNetworkEvent;
+import net.minecraftforge.client.event.RegisterClientCommandsEvent;
 import net.minecraftforge.client.event.RenderGameOverlayEvent;
 import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TagsUpdatedEvent;
 import net.minecraftforge.event.TickEvent;
 import net.minecraftforge.event.world.BlockEvent;
 import net.minecraftforge.event.world.ChunkEvent;
 import net.minecraftforge.eventbus.api.EventPriority;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
-
-import static org.appledash.dashmap.MapManager.RADIUS;
+import net.minecraftforge.fml.event.lifecycle.FMLClientSetupEvent;
+import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
 
 public final class DashMapEventHandler {
     private final DashMap dashMap;
+    private final MetricsOverlay metricsOverlay = new MetricsOverlay();
     private ChunkPos lastChunkPos;
+    private Level lastLevel;
 
     private DashMapEventHandler(DashMap dashMap) {
         this.dashMap = dashMap;
@@ -35,22 +42,88 @@ public final class DashMapEventHandler {
         }
 
         final Player player = evt.player;
-        final ChunkPos chunkPos = player.chunkPosition();
+        final int playerChunkX = SectionPos.blockToSectionCoord(player.getBlockX());
+        final int playerChunkZ = SectionPos.blockToSectionCoord(player.getBlockZ());
         final MapManager mapManager = this.dashMap.getMapManager();
 
-        /* Player moved chunks, so rebuild the map. */
-        if (!chunkPos.equals(this.lastChunkPos)) {
+        /* Player changed dimension (or server), so none of the map data we have applies anymore. */
+        if (player.level != this.lastLevel) {
+            this.lastLevel = player.level;
+            this.lastChunkPos = null;
+            mapManager.setRecorder(null); /* closed before the next recording is created, so it can't be written over while still open */
+            mapManager.setRecorder(DashMapConfig.CLIENT.recordSession.get() ? createRecorder(player.level) : null);
+            mapManager.clearMap();
+            mapManager.setRadius(DashMapConfig.CLIENT.mapRadius.get());
+            mapManager.setTileCache(DashMapConfig.CLIENT.tileCache.get() ? createTileCache(player.level) : null);
+            this.dashMap.getEntityMarkers().clear();
+        }
+
+        /* Player moved chunks, so rebuild the map. Checked without a ChunkPos, since this runs every tick. */
+        if (this.lastChunkPos == null || playerChunkX != this.lastChunkPos.x || playerChunkZ != this.lastChunkPos.z) {
+            final ChunkPos chunkPos = new ChunkPos(playerChunkX, playerChunkZ);
+            final ChunkPos previousUpperLeft = mapManager.getUpperLeftPosition();
+
             this.lastChunkPos = chunkPos;
             mapManager.setCenterPosition(chunkPos);
 
-            for (int chunkX = chunkPos.x - RADIUS; chunkX <= chunkPos.x + RADIUS; chunkX++) {
-                for (int chunkZ = chunkPos.z - RADIUS; chunkZ <= chunkPos.z + RADIUS; chunkZ++) {
-                    mapManager.markChunkDirty(player.level.getChunk(chunkX, chunkZ));
+            final int radius = mapManager.getRadius();
+
+            for (int chunkX = chunkPos.x - radius; chunkX <= chunkPos.x + radius; chunkX++) {
+                for (int chunkZ = chunkPos.z - radius; chunkZ <= chunkPos.z + radius; chunkZ++) {
+                    /* Chunks that were already on the map keep their place in the texture, so only the newly exposed edge needs sampling. */
+                    if (previousUpperLeft == null || !mapManager.isOnMap(previousUpperLeft, chunkX, chunkZ)) {
+                        mapManager.refreshChunk(player.level, chunkX, chunkZ);
+                    }
                 }
             }
         }
 
-        mapManager.rebuildChunks();
+        mapManager.rebuildChunks(player.level, player.getEyeY());
+
+        if (player.level instanceof ClientLevel clientLevel) {
+            final EntityMarkers entityMarkers = this.dashMap.getEntityMarkers();
+
+            entityMarkers.setCap(EntityMarkers.Category.PLAYER, DashMapConfig.CLIENT.maxPlayerMarkers.get());
+            entityMarkers.setCap(EntityMarkers.Category.HOSTILE, DashMapConfig.CLIENT.maxHostileMarkers.get());
+            entityMarkers.setCap(EntityMarkers.Category.PASSIVE, DashMapConfig.CLIENT.maxPassiveMarkers.get());
+            entityMarkers.update(clientLevel, player);
+        }
+    }
+
+    /**
+     * Handle the map's key bindings.
+     */
+    @SubscribeEvent
+    public void onClientTick(TickEvent.ClientTickEvent evt) {
+        if (evt.phase != TickEvent.Phase.END) {
+            return;
+        }
+
+        while (DashMapKeys.ZOOM_IN.consumeClick()) {
+            this.dashMap.getMapRenderer().zoomIn();
+        }
+
+        while (DashMapKeys.ZOOM_OUT.consumeClick()) {
+            this.dashMap.getMapRenderer().zoomOut();
+        }
+
+        while (DashMapKeys.WORLD_MAP.consumeClick()) {
+            final Minecraft mc = Minecraft.getInstance();
+
+            if (mc.screen == null) {
+                WorldMapScreen.open(mc, this.dashMap.getMapManager());
+            }
+        }
+
+        while (DashMapKeys.CAVE_MODE.consumeClick()) {
+            final MapManager mapManager = this.dashMap.getMapManager();
+
+            mapManager.setCaveMode(!mapManager.isCaveMode());
+        }
+
+        while (DashMapKeys.METRICS.consumeClick()) {
+            this.metricsOverlay.toggle();
+        }
     }
 
     /**
@@ -67,11 +140,40 @@ public final class DashMapEventHandler {
         }
 
         /* Haven't built the map yet (ie: getting frames before player ticks) */
-        if (mapManager.getUpperLeftPosition() == null) {
+        if (mapManager.getUpperLeftPosition() != null) {
+            this.dashMap.getMapRenderer().renderMap(mc, mapManager, this.dashMap.getEntityMarkers(), evt.getMatrixStack());
+        }
+
+        if (this.metricsOverlay.isVisible()) {
+            this.metricsOverlay.render(mc, evt.getMatrixStack());
+        }
+    }
+
+    /**
+     * Show how far behind map rebuilding is on the F3 screen.
+     */
+    @SubscribeEvent
+    public void onDebugText(RenderGameOverlayEvent.Text evt) {
+        final Minecraft mc = Minecraft.getInstance();
+        final MapManager mapManager = this.dashMap.getMapManager();
+
+        if (!mc.options.renderDebug) {
             return;
         }
 
-        this.dashMap.getMapRenderer().renderMap(mc, mapManager, evt.getMatrixStack());
+        evt.getRight().add("");
+        evt.getRight().add(String.format("DashMap: %d dirty, %d sampling, %d MB tiles", mapManager.getDirtyChunkCount(), mapManager.getPendingRebuildCount(),
+                                         mapManager.getTileMemoryUsage() / (1024 * 1024)));
+    }
+
+    /**
+     * Put chunks on the map as the server sends them, rather than sampling them before they have arrived.
+     */
+    @SubscribeEvent
+    public void onChunkLoad(ChunkEvent.Load evt) {
+        if (evt.getWorld() != null && evt.getWorld().isClientSide()) {
+            this.dashMap.getMapManager().onChunkLoaded(evt.getChunk());
+        }
     }
 
     /**
@@ -79,17 +181,40 @@ public final class DashMapEventHandler {
      */
     @SubscribeEvent
     public void onChunkUnload(ChunkEvent.Unload evt) {
-        if (evt.getWorld().isClientSide()) {
-            this.dashMap.getMapManager().removeChunk(evt.getChunk());
+        if (evt.getWorld() != null && evt.getWorld().isClientSide()) {
+            this.dashMap.getMapManager().onChunkUnloaded(evt.getChunk());
         }
     }
 
+    /**
+     * Register the map's commands, which run entirely on the client.
+     */
+    @SubscribeEvent
+    public void onRegisterClientCommands(RegisterClientCommandsEvent evt) {
+        DashMapCommands.register(evt.getDispatcher(), this.dashMap);
+    }
+
     /**
      * Clear all map data for the server when we disconnect.
      */
     @SubscribeEvent
     public void onPlayerLogOut(ClientPlayerNetworkEvent.LoggedOutEvent evt) {
         this.dashMap.getMapManager().clearMap();
+        this.dashMap.getMapManager().setTileCache(null);
+        this.dashMap.getMapManager().setRecorder(null);
+        this.dashMap.getMapManager().forgetLoadedChunks();
+        this.dashMap.getMapManager().shutdownWorkerPool();
+        this.dashMap.getMapManager().getWorldMapAtlas().close();
+        this.dashMap.getEntityMarkers().clear();
+        this.lastLevel = null;
+    }
+
+    /**
+     * Block tags feed into what the map skips over, so cached block state lookups have to be redone when they change.
+     */
+    @SubscribeEvent
+    public void onTagsUpdated(TagsUpdatedEvent evt) {
+        this.dashMap.getMapManager().invalidatePalette();
     }
 
     /**
@@ -105,16 +230,43 @@ public final class DashMapEventHandler {
         }
 
         final BlockPos pos = evt.getPos();
-        final int maxDistance = ((RADIUS * 2) + 1) * MapManager.CHUNK_SIZE;
+        final int maxDistance = this.dashMap.getMapManager().getMapSize() * MapManager.CHUNK_SIZE;
         final int offsetX = pos.getX() - mapStart.getMinBlockX();
         final int offsetZ = pos.getZ() - mapStart.getMinBlockZ();
 
         /* We can get block modification events outside the map area, and we don't care about those. */
         if (offsetX >= 0 && offsetZ >= 0 && offsetX < maxDistance && offsetZ < maxDistance) {
-            this.dashMap.getMapManager().markChunkDirty(evt.getWorld().getChunk(evt.getPos()));
+            this.dashMap.getMapManager().invalidateSurfaceHeight(pos);
+            this.dashMap.getMapManager().markBlockDirty(pos);
         }
     }
 
+    /**
+     * Open the on-disk tile cache for the server we are connected to and the dimension of the given level.
+     */
+    private static TileCache createTileCache(Level level) {
+        final Minecraft mc = Minecraft.getInstance();
+        final String serverName;
+
+        if (mc.getSingleplayerServer() != null) {
+            serverName = "singleplayer-" + mc.getSingleplayerServer().getWorldData().getLevelName();
+        } else if (mc.getCurrentServer() != null) {
+            serverName = mc.getCurrentServer().ip;
+        } else {
+            serverName = "unknown";
+        }
+
+        return new TileCache(TileCache.getDirectory(mc.gameDirectory.toPath().resolve("dashmap"), serverName, level.dimension().location().toString()));
+    }
+
+    /**
+     * Start recording the session in the dimension of the given level to a new file.
+     */
+    private static SessionRecorder createRecorder(Level level) {
+        return SessionRecorder.create(SessionRecorder.getDirectory(Minecraft.getInstance().gameDirectory.toPath().resolve("dashmap")),
+                                      level.dimension().location().toString());
+    }
+
     /**
      * Register an instance of this event handler on Forge's event bus.
      *
@@ -124,5 +276,13 @@ public final class DashMapEventHandler {
     @SuppressWarnings("StaticMethodOnlyUsedInOneClass")
     public static void register() {
         MinecraftForge.EVENT_BUS.register(new DashMapEventHandler(DashMap.instance));
+        FMLJavaModLoadingContext.get().getModEventBus().addListener(DashMapEventHandler::onClientSetup);
+    }
+
+    /**
+     * Key bindings have to be registered during client setup, on the main thread.
+     */
+    private static void onClientSetup(FMLClientSetupEvent evt) {
+        evt.enqueueWork(DashMapKeys::register);
     }
 }
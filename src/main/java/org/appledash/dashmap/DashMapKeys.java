@@ -0,0 +1,29 @@
+package org.appledash.dashmap;
+
+import net.minecraft.client.KeyMapping;
+import net.minecraftforge.client.ClientRegistry;
+import org.lwjgl.glfw.GLFW;
+
+/**
+ * Key bindings for controlling the map, which show up in the vanilla controls screen.
+ */
+public final class DashMapKeys {
+    private static final String CATEGORY = "key.categories.dashmap";
+
+    public static final KeyMapping ZOOM_IN = new KeyMapping("key.dashmap.zoom_in", GLFW.GLFW_KEY_EQUAL, CATEGORY);
+    public static final KeyMapping ZOOM_OUT = new KeyMapping("key.dashmap.zoom_out", GLFW.GLFW_KEY_MINUS, CATEGORY);
+    public static final KeyMapping WORLD_MAP = new KeyMapping("key.dashmap.world_map", GLFW.GLFW_KEY_M, CATEGORY);
+    public static final KeyMapping CAVE_MODE = new KeyMapping("key.dashmap.cave_mode", GLFW.GLFW_KEY_N, CATEGORY);
+    public static final KeyMapping METRICS = new KeyMapping("key.dashmap.metrics", GLFW.GLFW_KEY_F8, CATEGORY);
+
+    private DashMapKeys() {
+    }
+
+    public static void register() {
+        ClientRegistry.registerKeyBinding(ZOOM_IN);
+        ClientRegistry.registerKeyBinding(ZOOM_OUT);
+        ClientRegistry.registerKeyBinding(WORLD_MAP);
+        ClientRegistry.registerKeyBinding(CAVE_MODE);
+        ClientRegistry.registerKeyBinding(METRICS);
+    }
+}
@@ -0,0 +1,129 @@
+package org.appledash.dashmap;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongList;
+
+/**
+ * Set of chunks waiting to be rebuilt, keyed by ChunkPos.toLong(), along with which of their columns are dirty.
+ *
+ * Marking a chunk that is already in the set just adds to its column mask, so a storm of block changes in the same few
+ * chunks (an explosion, a large paste) costs a hash lookup and a bit set per change, and never allocates after the first
+ * change to each chunk. Only positions are kept - the chunks themselves are looked up when they are rebuilt, so an
+ * unloaded chunk is never held on to.
+ *
+ * The set is split into stripes that are locked separately, since chunks are unloaded on a different thread than the one
+ * that marks them dirty.
+ */
+public final class DirtyChunkSet {
+    private static final int STRIPE_COUNT = 16; /* must be a power of two */
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    public DirtyChunkSet() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Mark every column of a chunk as dirty.
+     *
+     * @param chunkKey Position of the chunk, as given by ChunkPos.toLong().
+     */
+    public void markAll(long chunkKey) {
+        final Stripe stripe = this.getStripe(chunkKey);
+
+        synchronized (stripe) {
+            final ColumnMask mask = stripe.masks.get(chunkKey);
+
+            if (mask == null) {
+                stripe.masks.put(chunkKey, ColumnMask.full());
+            } else {
+                mask.setAll();
+            }
+        }
+    }
+
+    /**
+     * Mark a single column of a chunk as dirty.
+     *
+     * @param chunkKey Position of the chunk, as given by ChunkPos.toLong().
+     * @param x X coordinate of the column within the chunk.
+     * @param z Z coordinate of the column within the chunk.
+     */
+    public void mark(long chunkKey, int x, int z) {
+        final Stripe stripe = this.getStripe(chunkKey);
+
+        synchronized (stripe) {
+            ColumnMask mask = stripe.masks.get(chunkKey);
+
+            if (mask == null) {
+                mask = new ColumnMask();
+                stripe.masks.put(chunkKey, mask);
+            }
+
+            mask.set(x, z);
+        }
+    }
+
+    /**
+     * Remove a chunk from the set.
+     *
+     * @param chunkKey Position of the chunk, as given by ChunkPos.toLong().
+     * @return Dirty columns of the chunk, or null if it wasn't in the set.
+     */
+    public ColumnMask remove(long chunkKey) {
+        final Stripe stripe = this.getStripe(chunkKey);
+
+        synchronized (stripe) {
+            return stripe.masks.remove(chunkKey);
+        }
+    }
+
+    /**
+     * Add the positions of every chunk in the set to a list. Chunks can be added or removed concurrently, so by the time
+     * the list is used it may be slightly out of date.
+     *
+     * @param out List to add the positions to.
+     */
+    public void copyKeys(LongList out) {
+        for (final Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                out.addAll(stripe.masks.keySet());
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (final Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.masks.size();
+            }
+        }
+
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    public void clear() {
+        for (final Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                stripe.masks.clear();
+            }
+        }
+    }
+
+    private Stripe getStripe(long chunkKey) {
+        return this.stripes[(int) HashCommon.mix(chunkKey) & (STRIPE_COUNT - 1)];
+    }
+
+    private static final class Stripe {
+        private final Long2ObjectOpenHashMap<ColumnMask> masks = new Long2ObjectOpenHashMap<>();
+    }
+}
@@ -0,0 +1,284 @@
+package org.appledash.dashmap;
+
+import net.minecraft.client.multiplayer.ClientLevel;
+import net.minecraft.core.SectionPos;
+import net.minecraft.util.Mth;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.Mob;
+import net.minecraft.world.entity.monster.Enemy;
+import net.minecraft.world.entity.player.Player;
+
+import java.util.Arrays;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Positions of the players and mobs around the player, for drawing as markers on the minimap.
+ *
+ * The level's entities are walked once per tick and bucketed into a grid of chunk-sized cells centered on the player.
+ * Each cell is the head of a linked list threaded through flat arrays, so rebuilding the index never allocates once the
+ * arrays have grown to fit the busiest tick. Each frame then only looks at the cells the minimap circle covers, nearest
+ * first, and stops taking a category once it has reached its cap - so a mob farm with hundreds of mobs costs no more to
+ * draw than the cap allows, and the markers that are dropped are the furthest ones.
+ */
+public final class EntityMarkers {
+    private static final int GRID_RADIUS = 32; /* Radius of the grid in chunks. The client isn't sent entities any further away than the largest view distance. */
+    private static final int GRID_SIZE = (GRID_RADIUS * 2) + 1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int[] cellHeads = new int[GRID_SIZE * GRID_SIZE]; /* first entry in each cell, or -1 */
+    private final int[] caps = new int[Category.VALUES.length];     /* most markers of each category that a query returns */
+    private final int[] taken = new int[Category.VALUES.length];    /* markers of each category returned by the current query */
+    private int gridChunkX; /* chunk at the center of the grid */
+    private int gridChunkZ;
+
+    /* Indexed entities, by entry */
+    private double[] entryX = new double[INITIAL_CAPACITY];
+    private double[] entryZ = new double[INITIAL_CAPACITY];
+    private byte[] entryCategory = new byte[INITIAL_CAPACITY];
+    private int[] entryNext = new int[INITIAL_CAPACITY]; /* next entry in the same cell, or -1 */
+    private int entryCount;
+
+    /* Entries returned by the last query */
+    private int[] results = new int[INITIAL_CAPACITY];
+    private int resultCount;
+
+    public EntityMarkers() {
+        Arrays.fill(this.cellHeads, -1);
+    }
+
+    /**
+     * Set the most markers of a category that will be shown at once. A cap of 0 hides the category, and stops its
+     * entities from being indexed at all.
+     */
+    public void setCap(Category category, int cap) {
+        this.caps[category.ordinal()] = cap;
+    }
+
+    /**
+     * Forget every entity, for when the player leaves the level.
+     */
+    public void clear() {
+        Arrays.fill(this.cellHeads, -1);
+        this.entryCount = 0;
+        this.resultCount = 0;
+    }
+
+    /**
+     * Rebuild the index from the entities currently in a level. Called once per tick.
+     *
+     * @param level Level to take the entities from.
+     * @param player Player the grid is centered on, who doesn't get a marker of their own.
+     */
+    public void update(ClientLevel level, Player player) {
+        final MapEvents.MarkerIndex event = new MapEvents.MarkerIndex();
+        final long start = System.nanoTime();
+
+        event.begin();
+        this.reset(SectionPos.blockToSectionCoord(player.getBlockX()), SectionPos.blockToSectionCoord(player.getBlockZ()));
+
+        for (final Entity entity : level.entitiesForRendering()) {
+            final Category category = Category.of(entity);
+
+            if (entity != player && category != null && !entity.isInvisibleTo(player)) {
+                this.add(entity.getX(), entity.getZ(), category);
+            }
+        }
+
+        MapMetrics.MARKER_INDEX_TIME.add(System.nanoTime() - start);
+
+        if (event.shouldCommit()) {
+            event.entitiesIndexed = this.entryCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Forget every entity, and center the grid on another chunk. Entities are then added with add().
+     *
+     * @param chunkX X coordinate of the chunk at the center of the grid.
+     * @param chunkZ Z coordinate of the chunk at the center of the grid.
+     */
+    public void reset(int chunkX, int chunkZ) {
+        this.clear();
+        this.gridChunkX = chunkX;
+        this.gridChunkZ = chunkZ;
+    }
+
+    /**
+     * Add an entity to the index. Entities outside the grid, or of a category that is hidden, are left out.
+     *
+     * @param x X coordinate of the entity, in blocks.
+     * @param z Z coordinate of the entity, in blocks.
+     * @param category Category of the entity.
+     */
+    public void add(double x, double z, Category category) {
+        final int cell = this.getCell(SectionPos.blockToSectionCoord(Mth.floor(x)), SectionPos.blockToSectionCoord(Mth.floor(z)));
+
+        if (cell < 0 || this.caps[category.ordinal()] == 0) {
+            return;
+        }
+
+        if (this.entryCount == this.entryX.length) {
+            this.grow();
+        }
+
+        final int entry = this.entryCount++;
+
+        this.entryX[entry] = x;
+        this.entryZ[entry] = z;
+        this.entryCategory[entry] = (byte) category.ordinal();
+        this.entryNext[entry] = this.cellHeads[cell];
+        this.cellHeads[cell] = entry;
+    }
+
+    /**
+     * Find the entities within a circle, nearest cells first, up to the cap of each category. The results are read back
+     * with getResultCount() and getResult(), and stay valid until the next query or update.
+     *
+     * @param centerX X coordinate of the center of the circle, in blocks.
+     * @param centerZ Z coordinate of the center of the circle, in blocks.
+     * @param radius Radius of the circle, in blocks.
+     * @return Number of entries found.
+     */
+    public int query(double centerX, double centerZ, double radius) {
+        final int centerChunkX = SectionPos.blockToSectionCoord(Mth.floor(centerX));
+        final int centerChunkZ = SectionPos.blockToSectionCoord(Mth.floor(centerZ));
+        final int ringCount = Math.min((int) Math.ceil(radius / CHUNK_SIZE), GRID_SIZE);
+        final double radiusSquared = radius * radius;
+        int openCategories = 0; /* categories that haven't reached their cap yet */
+
+        Arrays.fill(this.taken, 0);
+        this.resultCount = 0;
+
+        for (final Category category : Category.VALUES) {
+            if (this.caps[category.ordinal()] > 0) {
+                openCategories++;
+            }
+        }
+
+        /* Walk square rings of cells outwards from the center, so that when a category runs out it is the furthest of its entities that miss out */
+        for (int ring = 0; ring <= ringCount && openCategories > 0; ring++) {
+            for (int chunkX = centerChunkX - ring; chunkX <= centerChunkX + ring && openCategories > 0; chunkX++) {
+                /* The top and bottom rows of the ring are walked in full, and the columns in between only at their ends */
+                final boolean edgeRow = chunkX == centerChunkX - ring || chunkX == centerChunkX + ring;
+                final int step = edgeRow ? 1 : Math.max(ring * 2, 1);
+
+                for (int chunkZ = centerChunkZ - ring; chunkZ <= centerChunkZ + ring && openCategories > 0; chunkZ += step) {
+                    final int cell = this.getCell(chunkX, chunkZ);
+
+                    for (int entry = cell < 0 ? -1 : this.cellHeads[cell]; entry >= 0 && openCategories > 0; entry = this.entryNext[entry]) {
+                        final int category = this.entryCategory[entry];
+                        final double deltaX = this.entryX[entry] - centerX;
+                        final double deltaZ = this.entryZ[entry] - centerZ;
+
+                        if (this.taken[category] >= this.caps[category] || (deltaX * deltaX) + (deltaZ * deltaZ) > radiusSquared) {
+                            continue;
+                        }
+
+                        if (this.resultCount == this.results.length) {
+                            this.results = Arrays.copyOf(this.results, this.results.length * 2);
+                        }
+
+                        this.results[this.resultCount++] = entry;
+
+                        if (++this.taken[category] == this.caps[category]) {
+                            openCategories--;
+                        }
+                    }
+                }
+            }
+        }
+
+        return this.resultCount;
+    }
+
+    public int getResultCount() {
+        return this.resultCount;
+    }
+
+    /**
+     * Get an entry found by the last query.
+     *
+     * @param index Index of the result, from 0 up to getResultCount() - 1.
+     * @return Entry, for passing to getX(), getZ() and getCategory().
+     */
+    public int getResult(int index) {
+        return this.results[index];
+    }
+
+    public double getX(int entry) {
+        return this.entryX[entry];
+    }
+
+    public double getZ(int entry) {
+        return this.entryZ[entry];
+    }
+
+    public Category getCategory(int entry) {
+        return Category.VALUES[this.entryCategory[entry]];
+    }
+
+    /**
+     * Get the index of the cell covering a chunk.
+     *
+     * @return Index into cellHeads, or -1 if the chunk is outside the grid.
+     */
+    private int getCell(int chunkX, int chunkZ) {
+        final int gridX = chunkX - this.gridChunkX + GRID_RADIUS;
+        final int gridZ = chunkZ - this.gridChunkZ + GRID_RADIUS;
+
+        if (gridX < 0 || gridZ < 0 || gridX >= GRID_SIZE || gridZ >= GRID_SIZE) {
+            return -1;
+        }
+
+        return (gridX * GRID_SIZE) + gridZ;
+    }
+
+    private void grow() {
+        final int capacity = this.entryX.length * 2;
+
+        this.entryX = Arrays.copyOf(this.entryX, capacity);
+        this.entryZ = Arrays.copyOf(this.entryZ, capacity);
+        this.entryCategory = Arrays.copyOf(this.entryCategory, capacity);
+        this.entryNext = Arrays.copyOf(this.entryNext, capacity);
+    }
+
+    /**
+     * Kinds of entity that get a marker, each drawn in its own colour and capped separately.
+     */
+    public enum Category {
+        PLAYER(0xFFFFFFFF),
+        HOSTILE(0xFFE03030),
+        PASSIVE(0xFFE0E040);
+
+        static final Category[] VALUES = values();
+
+        private final int colour;
+
+        Category(int colour) {
+            this.colour = colour;
+        }
+
+        public int getColour() {
+            return this.colour;
+        }
+
+        /**
+         * Get the category of an entity.
+         *
+         * @return Category, or null if the entity doesn't get a marker.
+         */
+        static Category of(Entity entity) {
+            if (entity instanceof Player) {
+                return PLAYER;
+            } else if (entity instanceof Enemy) {
+                return HOSTILE;
+            } else if (entity instanceof Mob) {
+                return PASSIVE;
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.appledash.dashmap;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.tags.SerializationTags;
+import net.minecraft.tags.Tag;
+import net.minecraft.world.level.EmptyBlockGetter;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.material.MaterialColor;
+import net.minecraftforge.registries.ForgeRegistries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lookup table from block states to everything the sampler needs to know about them, so that the hot loop does a single
+ * array read per block instead of asking the block state for its map color, fluid state and identity every time.
+ *
+ * The table is indexed by block state registry id and filled lazily, and is thrown away whenever tags or the config are
+ * reloaded. Filling is idempotent, so it is safe for several worker threads to race on the same entry.
+ */
+public class MapColorPalette {
+    public static final int COLOR_ID_MASK = 0x3F;    /* MaterialColor id of the state, in the low bits of an entry */
+    public static final int FILLED = 1 << 8;         /* Entry has been looked up */
+    public static final int NO_COLOR = 1 << 9;       /* State has no map color, and is looked through */
+    public static final int FLUID_SOURCE = 1 << 10;  /* State is a fluid source, used to find the depth of water */
+    public static final int SKIP = 1 << 11;          /* State has a map color, but looks bad on the map and is skipped */
+
+    private static final int BRIGHTNESS_COUNT = 4;
+    private static final int[] RGB_TABLE = new int[MaterialColor.MATERIAL_COLORS.length * BRIGHTNESS_COUNT]; /* shaded colors of every MaterialColor, indexed by (id * 4) + brightness id */
+
+    static {
+        for (int id = 0; id < MaterialColor.MATERIAL_COLORS.length; id++) {
+            final MaterialColor materialColor = MaterialColor.MATERIAL_COLORS[id];
+
+            if (materialColor == null) { /* not every id is in use */
+                continue;
+            }
+
+            for (MaterialColor.Brightness brightness : MaterialColor.Brightness.values()) {
+                RGB_TABLE[(id * BRIGHTNESS_COUNT) + brightness.id] = materialColor.calculateRGBColor(brightness);
+            }
+        }
+    }
+
+    private volatile Table table; /* current table, or null if it needs to be rebuilt */
+
+    /**
+     * Get the brightness to shade a column with, from its height and the height of the column to its north. This gives
+     * the map its shadow effect.
+     *
+     * @param topY Surface height of the column.
+     * @param adjacentTopY Surface height of the column to the north.
+     * @return Brightness to shade the column with.
+     */
+    public static MaterialColor.Brightness getBrightness(int topY, int adjacentTopY) {
+        if (topY == adjacentTopY) {
+            return MaterialColor.Brightness.NORMAL;
+        } else if (topY > adjacentTopY) {
+            return MaterialColor.Brightness.HIGH;
+        } else {
+            return MaterialColor.Brightness.LOW;
+        }
+    }
+
+    /**
+     * Get the index of a MaterialColor id and brightness in the table of shaded colors. This fits in a short, and is
+     * what TileStore keeps instead of the RGBA color itself.
+     *
+     * @param colorId MaterialColor id.
+     * @param brightness Brightness to shade the color with.
+     * @return Shaded color index, to be turned into a color by getRGB(int).
+     */
+    public static int getShadedColor(int colorId, MaterialColor.Brightness brightness) {
+        return (colorId * BRIGHTNESS_COUNT) + brightness.id;
+    }
+
+    /**
+     * Get the RGBA color for a shaded color index.
+     *
+     * @param shadedColor Shaded color index, as returned by getShadedColor.
+     * @return Shaded color, as used by NativeImage.
+     */
+    public static int getRGB(int shadedColor) {
+        return RGB_TABLE[shadedColor];
+    }
+
+    /**
+     * Get the MaterialColor id back out of a shaded color index.
+     *
+     * @param shadedColor Shaded color index, as returned by getShadedColor.
+     * @return MaterialColor id.
+     */
+    public static int getColorId(int shadedColor) {
+        return shadedColor / BRIGHTNESS_COUNT;
+    }
+
+    /**
+     * Get the table entry for a block state, filling it in if it hasn't been looked up yet.
+     *
+     * @param state Block state to look up.
+     * @return Entry for the state - a MaterialColor id plus flag bits.
+     */
+    public int lookup(BlockState state) {
+        final Table table = this.getTable();
+        final int id = Block.BLOCK_STATE_REGISTRY.getId(state);
+
+        if (id < 0 || id >= table.entries.length) { /* state isn't registered, which shouldn't happen - don't cache it */
+            return table.computeEntry(state);
+        }
+
+        int entry = table.entries[id];
+
+        if (entry == 0) {
+            entry = table.computeEntry(state);
+            table.entries[id] = entry;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Throw away the table, so it is rebuilt against the current tags and config the next time it is used.
+     */
+    public void invalidate() {
+        this.table = null;
+    }
+
+    private Table getTable() {
+        Table table = this.table;
+
+        if (table == null) {
+            synchronized (this) {
+                table = this.table;
+
+                if (table == null) {
+                    table = new Table(DashMapConfig.CLIENT.ignoredBlocks.get());
+                    this.table = table;
+                }
+            }
+        }
+
+        return table;
+    }
+
+    private static final class Table {
+        private final int[] entries = new int[Block.BLOCK_STATE_REGISTRY.size()];
+        private final Set<Block> ignoredBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final List<Tag<Block>> ignoredTags = new ArrayList<>();
+
+        /**
+         * @param ignoredBlocks Ids of blocks that should be skipped, and ids of block tags prefixed with '#'.
+         */
+        private Table(List<? extends String> ignoredBlocks) {
+            for (String name : ignoredBlocks) {
+                if (name.startsWith("#")) {
+                    final ResourceLocation tagId = ResourceLocation.tryParse(name.substring(1));
+                    final Tag<Block> tag = tagId == null ? null : SerializationTags.getInstance().getOrEmpty(Registry.BLOCK_REGISTRY).getTag(tagId);
+
+                    if (tag != null) {
+                        this.ignoredTags.add(tag);
+                    }
+                } else {
+                    final ResourceLocation blockId = ResourceLocation.tryParse(name);
+
+                    if (blockId != null && ForgeRegistries.BLOCKS.containsKey(blockId)) {
+                        this.ignoredBlocks.add(ForgeRegistries.BLOCKS.getValue(blockId));
+                    }
+                }
+            }
+        }
+
+        private int computeEntry(BlockState state) {
+            /* The position is ignored by vanilla blocks, which is what makes it possible to cache this per state at all. */
+            final MaterialColor materialColor = state.getMapColor(EmptyBlockGetter.INSTANCE, BlockPos.ZERO);
+            int entry = FILLED | (materialColor.id & COLOR_ID_MASK);
+
+            if (materialColor.col == 0) {
+                entry |= NO_COLOR;
+            }
+
+            if (state.getFluidState().isSource()) {
+                entry |= FLUID_SOURCE;
+            }
+
+            if (this.isIgnored(state.getBlock())) {
+                entry |= SKIP;
+            }
+
+            return entry;
+        }
+
+        private boolean isIgnored(Block block) {
+            if (this.ignoredBlocks.contains(block)) {
+                return true;
+            }
+
+            for (Tag<Block> tag : this.ignoredTags) {
+                if (tag.contains(block)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
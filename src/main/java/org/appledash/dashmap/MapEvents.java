@@ -0,0 +1,128 @@
+package org.appledash.dashmap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the map's hot paths, so that hitches in a recording can be attributed to the map
+ * without a profiler attached. Each event's duration is the time spent in the method it covers.
+ *
+ * Events are only committed while a recording has them enabled, and don't cost anything beyond their allocation,
+ * which escape analysis usually removes, otherwise. They show up under "DashMap" in JDK Mission Control.
+ */
+public final class MapEvents {
+    private MapEvents() {
+    }
+
+    @Name("org.appledash.dashmap.RebuildTick")
+    @Label("Map Rebuild Tick")
+    @Category("DashMap")
+    @Description("Rebuilding dirty chunks and applying sampled tiles on the client tick thread")
+    @StackTrace(false)
+    public static final class RebuildTick extends Event {
+        @Label("Chunks Rebuilt")
+        @Description("Chunks sampled, or handed off to the worker pool")
+        int chunksRebuilt;
+
+        @Label("Columns Sampled")
+        int columnsSampled;
+
+        @Label("Blocks Sampled")
+        @Description("Block states looked at by the sampler for the tiles applied this tick")
+        long blocksSampled;
+
+        @Label("Pixels Written")
+        @Description("Map pixels written to the textures, at full resolution")
+        long pixelsWritten;
+
+        @Label("Tiles Applied")
+        int tilesApplied;
+
+        @Label("Dirty Chunks")
+        @Description("Chunks still waiting to be rebuilt after the tick")
+        int dirtyChunks;
+
+        @Label("Pending Rebuilds")
+        @Description("Chunks being sampled by the worker pool, or waiting to be applied, after the tick")
+        int pendingRebuilds;
+    }
+
+    @Name("org.appledash.dashmap.ChunkRebuild")
+    @Label("Map Chunk Rebuild")
+    @Category("DashMap")
+    @Description("Taking a snapshot of a dirty chunk, and sampling it unless it was handed off to the worker pool")
+    @StackTrace(false)
+    public static final class ChunkRebuild extends Event {
+        @Label("Chunk X")
+        int chunkX;
+
+        @Label("Chunk Z")
+        int chunkZ;
+
+        @Label("Columns Sampled")
+        int columnsSampled;
+
+        @Label("Blocks Sampled")
+        @Description("Block states looked at by the sampler, or 0 if the chunk was handed off to the worker pool")
+        int blocksSampled;
+
+        @Label("Pixels Written")
+        @Description("Map pixels written to the textures at full resolution, or 0 if the chunk was handed off to the worker pool")
+        int pixelsWritten;
+
+        @Label("Asynchronous")
+        boolean async;
+    }
+
+    @Name("org.appledash.dashmap.TextureUpload")
+    @Label("Map Texture Upload")
+    @Category("DashMap")
+    @Description("Uploading the changed parts of a level of the map texture to the GPU")
+    @StackTrace(false)
+    public static final class TextureUpload extends Event {
+        @Label("Level")
+        int level;
+
+        @Label("Pixels Uploaded")
+        int pixelsUploaded;
+
+        @Label("Bytes Uploaded")
+        @DataAmount
+        long bytesUploaded;
+
+        @Label("Rectangles Uploaded")
+        int rectsUploaded;
+    }
+
+    @Name("org.appledash.dashmap.MinimapRender")
+    @Label("Minimap Render")
+    @Category("DashMap")
+    @Description("Drawing the minimap for a frame, including uploading its texture")
+    @StackTrace(false)
+    public static final class MinimapRender extends Event {
+        @Label("Level")
+        int level;
+
+        @Label("Redrawn")
+        @Description("Whether the minimap had to be drawn from scratch, rather than from the cached copy")
+        boolean redrawn;
+
+        @Label("Markers Drawn")
+        int markersDrawn;
+    }
+
+    @Name("org.appledash.dashmap.MarkerIndex")
+    @Label("Map Marker Index")
+    @Category("DashMap")
+    @Description("Bucketing the level's players and mobs into the grid that minimap markers are drawn from")
+    @StackTrace(false)
+    public static final class MarkerIndex extends Event {
+        @Label("Entities Indexed")
+        int entitiesIndexed;
+    }
+}
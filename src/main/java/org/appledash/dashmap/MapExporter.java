@@ -0,0 +1,415 @@
+package org.appledash.dashmap;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.ChatFormatting;
+import net.minecraft.network.chat.ClickEvent;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.TextComponent;
+import net.minecraft.network.chat.TranslatableComponent;
+import net.minecraft.world.level.ChunkPos;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Exports the explored surface of a dimension from the on-disk tile cache to PNG files, for putting on a website. There
+ * are two layouts:
+ *
+ * TILES is a pyramid of 512x512 tiles at tiles/level/x/z.png. Level 0 has a pixel per block and a tile per region of the
+ * cache, and each level after it halves the detail, until a single tile covers everything. Each level is built from the
+ * finished tiles of the level below, averaging every 2x2 pixels like the world map does, so only level 0 reads the cache.
+ *
+ * IMAGE is a single map.png of everything, at a pixel per block.
+ *
+ * However large the area, little of it is held in memory at once: tiles are read from the cache a chunk row at a time,
+ * shaded, and written straight into the PNG, and each tile above level 0 is built from one tile below it at a time. The
+ * tiles of a level are encoded in parallel on a pool of export threads. A single image has one compressed stream, so it
+ * is encoded by one thread, while the strips ahead of it are read and shaded in parallel. The export threads read the
+ * cache through readers of their own, and everything happens off the client thread, which only hears back once the
+ * export is done.
+ */
+public final class MapExporter {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int TILE_CHUNKS = 32;                      /* Number of chunks along each edge of a level 0 tile, the same as a region */
+    private static final int TILE_PIXELS = TILE_CHUNKS * CHUNK_SIZE;
+    private static final int MAX_LEVEL = 16;                        /* Level beyond which the pyramid isn't built, however far apart the explored areas are */
+    private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int STRIPS_AHEAD = THREAD_COUNT * 2;       /* Strips of a single image read ahead of the one being written */
+    private static final AtomicBoolean RUNNING = new AtomicBoolean(); /* only one export runs at a time */
+
+    private final TileCache tileCache;
+    private final Path directory;
+    private final Layout layout;
+    private final ChunkPos center;
+    private final int radius;
+    private final Consumer<Component> feedback;
+    private final ThreadLocal<StripReader> stripReaders = ThreadLocal.withInitial(StripReader::new); /* reader of each export thread */
+
+    private MapExporter(TileCache tileCache, Path directory, Layout layout, ChunkPos center, int radius, Consumer<Component> feedback) {
+        this.tileCache = tileCache;
+        this.directory = directory;
+        this.layout = layout;
+        this.center = center;
+        this.radius = radius;
+        this.feedback = feedback;
+    }
+
+    /**
+     * Start exporting in the background, unless an export is already running.
+     *
+     * @param tileCache Tile cache to export the tiles of.
+     * @param directory Directory to write the PNG files to.
+     * @param layout Layout of the PNG files.
+     * @param center Chunk to center the exported area on, if it is limited by a radius.
+     * @param radius Radius of the exported area in chunks, or 0 to export everything in the cache.
+     * @param feedback Called with a message for the player once the export has finished or failed, from an export thread.
+     * @return True if the export was started.
+     */
+    public static boolean start(TileCache tileCache, Path directory, Layout layout, ChunkPos center, int radius, Consumer<Component> feedback) {
+        if (!RUNNING.compareAndSet(false, true)) {
+            return false;
+        }
+
+        final MapExporter exporter = new MapExporter(tileCache, directory, layout, center, radius, feedback);
+        final Thread thread = new Thread(exporter::run, "DashMap Map Export");
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+
+        return true;
+    }
+
+    /**
+     * Get a link to a file or directory, for a chat message, which opens it when clicked.
+     */
+    public static Component fileLink(Path path) {
+        return new TextComponent(path.getFileName().toString())
+                .withStyle(ChatFormatting.UNDERLINE)
+                .withStyle(style -> style.withClickEvent(new ClickEvent(ClickEvent.Action.OPEN_FILE, path.toAbsolutePath().toString())));
+    }
+
+    private void run() {
+        final ExecutorService pool = Executors.newFixedThreadPool(THREAD_COUNT, runnable -> {
+            final Thread thread = new Thread(runnable, "DashMap Map Export Worker");
+
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+            return thread;
+        });
+        final long start = System.nanoTime();
+
+        try {
+            final LongSet regions = this.getRegions();
+
+            if (regions.isEmpty()) {
+                this.feedback.accept(new TranslatableComponent("commands.dashmap.export.empty"));
+                return;
+            }
+
+            final Component result = this.layout == Layout.TILES ? this.exportTiles(pool, regions) : this.exportImage(pool, regions);
+            final String seconds = String.format("%.1f", (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+
+            LOGGER.info("Exported map to {}", this.directory);
+            this.feedback.accept(new TranslatableComponent("commands.dashmap.export.finished", result, fileLink(this.directory), seconds));
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+
+            LOGGER.error("Failed to export map to {}", this.directory, cause);
+            this.feedback.accept(new TranslatableComponent("commands.dashmap.export.failed", String.valueOf(cause.getMessage())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            RUNNING.set(false);
+        }
+    }
+
+    /**
+     * Get the regions of the cache that overlap the exported area.
+     */
+    private LongSet getRegions() {
+        final LongSet regions = new LongOpenHashSet();
+
+        for (final LongIterator it = this.tileCache.getRegions().iterator(); it.hasNext(); ) {
+            final long regionKey = it.nextLong();
+            final int firstChunkX = ChunkPos.getX(regionKey) * TILE_CHUNKS;
+            final int firstChunkZ = ChunkPos.getZ(regionKey) * TILE_CHUNKS;
+
+            if (this.radius == 0 ||
+                (firstChunkX + TILE_CHUNKS > this.center.x - this.radius && firstChunkX <= this.center.x + this.radius &&
+                 firstChunkZ + TILE_CHUNKS > this.center.z - this.radius && firstChunkZ <= this.center.z + this.radius)) {
+                regions.add(regionKey);
+            }
+        }
+
+        return regions;
+    }
+
+    /**
+     * Whether a chunk is within the exported area. Chunks outside it are left transparent.
+     */
+    private boolean isExported(int chunkX, int chunkZ) {
+        return this.radius == 0 || (Math.abs(chunkX - this.center.x) <= this.radius && Math.abs(chunkZ - this.center.z) <= this.radius);
+    }
+
+    /**
+     * Write every level of the tile pyramid, a level at a time, with each tile of a level written by one of the pool's
+     * threads.
+     *
+     * @return Description of what was written, for the message to the player.
+     */
+    private Component exportTiles(ExecutorService pool, LongSet regions) throws InterruptedException, ExecutionException {
+        LongSet levelTiles = regions; /* level 0 has a tile per region */
+        int tileCount = 0;
+
+        for (int level = 0; ; level++) {
+            final LongSet childTiles = levelTiles;
+            final int tileLevel = level;
+            final List<Future<?>> tiles = new ArrayList<>();
+
+            for (final LongIterator it = levelTiles.iterator(); it.hasNext(); ) {
+                final long tileKey = it.nextLong();
+
+                tiles.add(pool.submit(() -> {
+                    if (tileLevel == 0) {
+                        this.writeRegionTile(ChunkPos.getX(tileKey), ChunkPos.getZ(tileKey));
+                    } else {
+                        this.writeParentTile(tileLevel, ChunkPos.getX(tileKey), ChunkPos.getZ(tileKey), childTiles);
+                    }
+
+                    return null;
+                }));
+            }
+
+            try {
+                for (final Future<?> tile : tiles) {
+                    tile.get();
+                }
+            } finally {
+                tiles.forEach(tile -> tile.cancel(true));
+            }
+
+            tileCount += levelTiles.size();
+
+            if (levelTiles.size() == 1 || level == MAX_LEVEL) {
+                break;
+            }
+
+            final LongSet parentTiles = new LongOpenHashSet();
+
+            for (final LongIterator it = levelTiles.iterator(); it.hasNext(); ) {
+                final long tileKey = it.nextLong();
+
+                parentTiles.add(ChunkPos.asLong(ChunkPos.getX(tileKey) >> 1, ChunkPos.getZ(tileKey) >> 1));
+            }
+
+            levelTiles = parentTiles;
+        }
+
+        return new TranslatableComponent("commands.dashmap.export.tiles", tileCount);
+    }
+
+    /**
+     * Write a tile of level 0, with a pixel per block of a region, from the cache.
+     */
+    private void writeRegionTile(int tileX, int tileZ) throws IOException {
+        final int[] strip = new int[CHUNK_SIZE * TILE_PIXELS];
+        final StripReader reader = this.stripReaders.get();
+        final Path file = this.getTileFile(0, tileX, tileZ);
+
+        Files.createDirectories(file.getParent());
+
+        try (PngWriter png = new PngWriter(Files.newOutputStream(file), TILE_PIXELS, TILE_PIXELS)) {
+            for (int i = 0; i < TILE_CHUNKS; i++) {
+                reader.read(tileX * TILE_CHUNKS, (tileZ * TILE_CHUNKS) + i, TILE_CHUNKS, strip);
+
+                for (int row = 0; row < CHUNK_SIZE; row++) {
+                    png.writeRow(strip, row * TILE_PIXELS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a tile above level 0 by scaling down the four tiles beneath it, which have already been written. Tiles that
+     * weren't written, because nothing was explored there, leave their quarter transparent.
+     *
+     * @param childTiles Tiles that were written at the level below.
+     */
+    private void writeParentTile(int level, int tileX, int tileZ, LongSet childTiles) throws IOException {
+        final int halfSize = TILE_PIXELS / 2;
+        final int[] pixels = new int[TILE_PIXELS * TILE_PIXELS];
+        final Path file = this.getTileFile(level, tileX, tileZ);
+
+        for (int child = 0; child < 4; child++) {
+            final int childX = (tileX * 2) + (child & 1);
+            final int childZ = (tileZ * 2) + (child >> 1);
+
+            if (!childTiles.contains(ChunkPos.asLong(childX, childZ))) {
+                continue;
+            }
+
+            final int offsetX = (child & 1) * halfSize;
+            final int offsetZ = (child >> 1) * halfSize;
+
+            try (InputStream input = Files.newInputStream(this.getTileFile(level - 1, childX, childZ));
+                 NativeImage image = NativeImage.read(input)) {
+                for (int pixelZ = 0; pixelZ < halfSize; pixelZ++) {
+                    for (int pixelX = 0; pixelX < halfSize; pixelX++) {
+                        pixels[((offsetZ + pixelZ) * TILE_PIXELS) + offsetX + pixelX] = WorldMapAtlas.averageQuad(image, pixelX * 2, pixelZ * 2);
+                    }
+                }
+            }
+        }
+
+        Files.createDirectories(file.getParent());
+
+        try (PngWriter png = new PngWriter(Files.newOutputStream(file), TILE_PIXELS, TILE_PIXELS)) {
+            for (int row = 0; row < TILE_PIXELS; row++) {
+                png.writeRow(pixels, row * TILE_PIXELS);
+            }
+        }
+    }
+
+    private Path getTileFile(int level, int tileX, int tileZ) {
+        return this.directory.resolve("tiles").resolve(Integer.toString(level)).resolve(Integer.toString(tileX)).resolve(tileZ + ".png");
+    }
+
+    /**
+     * Write everything into one image, a chunk row at a time. The pool reads and shades the rows ahead of the one
+     * being written, up to STRIPS_AHEAD of them.
+     *
+     * @return Description of what was written, for the message to the player.
+     */
+    private Component exportImage(ExecutorService pool, LongSet regions) throws IOException, InterruptedException, ExecutionException {
+        int minChunkX = Integer.MAX_VALUE;
+        int minChunkZ = Integer.MAX_VALUE;
+        int maxChunkX = Integer.MIN_VALUE;
+        int maxChunkZ = Integer.MIN_VALUE;
+
+        for (final LongIterator it = regions.iterator(); it.hasNext(); ) {
+            final long regionKey = it.nextLong();
+
+            minChunkX = Math.min(minChunkX, ChunkPos.getX(regionKey) * TILE_CHUNKS);
+            minChunkZ = Math.min(minChunkZ, ChunkPos.getZ(regionKey) * TILE_CHUNKS);
+            maxChunkX = Math.max(maxChunkX, (ChunkPos.getX(regionKey) * TILE_CHUNKS) + TILE_CHUNKS - 1);
+            maxChunkZ = Math.max(maxChunkZ, (ChunkPos.getZ(regionKey) * TILE_CHUNKS) + TILE_CHUNKS - 1);
+        }
+
+        if (this.radius > 0) {
+            minChunkX = Math.max(minChunkX, this.center.x - this.radius);
+            minChunkZ = Math.max(minChunkZ, this.center.z - this.radius);
+            maxChunkX = Math.min(maxChunkX, this.center.x + this.radius);
+            maxChunkZ = Math.min(maxChunkZ, this.center.z + this.radius);
+        }
+
+        final int firstChunkX = minChunkX;
+        final int chunkCount = maxChunkX - minChunkX + 1;
+        final int width = chunkCount * CHUNK_SIZE;
+        final int height = (maxChunkZ - minChunkZ + 1) * CHUNK_SIZE;
+        final Deque<Future<int[]>> strips = new ArrayDeque<>();
+        final Path file = this.directory.resolve("map.png");
+        int nextChunkZ = minChunkZ;
+
+        Files.createDirectories(this.directory);
+
+        try (PngWriter png = new PngWriter(Files.newOutputStream(file), width, height)) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                while (nextChunkZ <= maxChunkZ && strips.size() < STRIPS_AHEAD) {
+                    final int stripChunkZ = nextChunkZ++;
+
+                    strips.add(pool.submit(() -> {
+                        final int[] strip = new int[CHUNK_SIZE * width];
+
+                        this.stripReaders.get().read(firstChunkX, stripChunkZ, chunkCount, strip);
+
+                        return strip;
+                    }));
+                }
+
+                final int[] strip = strips.remove().get();
+
+                for (int row = 0; row < CHUNK_SIZE; row++) {
+                    png.writeRow(strip, row * width);
+                }
+            }
+        } finally {
+            strips.forEach(strip -> strip.cancel(true));
+        }
+
+        return new TranslatableComponent("commands.dashmap.export.image", width, height);
+    }
+
+    /**
+     * Layouts that the map can be exported in.
+     */
+    public enum Layout {
+        TILES,
+        IMAGE
+    }
+
+    /**
+     * Reads a row of chunks from the cache and shades them into rows of pixels. Used by one thread at a time.
+     */
+    private final class StripReader {
+        private final TileCache.Reader cacheReader = MapExporter.this.tileCache.openReader();
+        private final int[] chunkColors = new int[CHUNK_SIZE * CHUNK_SIZE];
+
+        /**
+         * Read a row of chunks into rows of pixels, at a pixel per block. Chunks that haven't been explored, or are
+         * outside the exported area, are left transparent.
+         *
+         * @param firstChunkX X coordinate of the first chunk of the row.
+         * @param chunkZ Z coordinate of the row.
+         * @param chunkCount Number of chunks along the row.
+         * @param out Pixels to write to: CHUNK_SIZE rows, each a pixel per column of the row.
+         */
+        private void read(int firstChunkX, int chunkZ, int chunkCount, int[] out) {
+            final int rowWidth = chunkCount * CHUNK_SIZE;
+
+            for (int i = 0; i < chunkCount; i++) {
+                final int chunkX = firstChunkX + i;
+                final TileCache.CachedTile cached = MapExporter.this.isExported(chunkX, chunkZ) ? this.cacheReader.load(new ChunkPos(chunkX, chunkZ)) : null;
+
+                if (cached == null) {
+                    for (int row = 0; row < CHUNK_SIZE; row++) {
+                        Arrays.fill(out, (row * rowWidth) + (i * CHUNK_SIZE), (row * rowWidth) + ((i + 1) * CHUNK_SIZE), 0);
+                    }
+
+                    continue;
+                }
+
+                final TileCache.CachedTile north = this.cacheReader.load(new ChunkPos(chunkX, chunkZ - 1));
+
+                cached.tile().shade(north == null ? null : north.tile(), this.chunkColors);
+
+                for (int row = 0; row < CHUNK_SIZE; row++) {
+                    System.arraycopy(this.chunkColors, row * CHUNK_SIZE, out, (row * rowWidth) + (i * CHUNK_SIZE), CHUNK_SIZE);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package org.appledash.dashmap;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import com.mojang.blaze3d.platform.TextureUtil;
+import net.minecraft.client.renderer.texture.AbstractTexture;
+import net.minecraft.client.renderer.texture.TextureManager;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.world.level.ChunkPos;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.system.MemoryUtil;
+
+import javax.annotation.Nullable;
+import java.nio.IntBuffer;
+import java.util.BitSet;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * One level of detail of the map texture. Level 0 has a pixel per block, and every level above it halves the resolution,
+ * so a texture of the same size covers twice the distance. Each level is built by averaging the full resolution colors
+ * of a tile down whenever that tile changes, so zooming out never needs the world to be sampled again.
+ *
+ * Every level has a fixed-size texture, and only shows the part of the map that fits in it - the window - centred on
+ * the player. The texture is laid out as a ring buffer: each chunk always lives in the slot given by its block
+ * coordinates (scaled down to the level) modulo the size of the texture, so chunks that stay in the window when the
+ * player moves never have to be written again. MapRenderer offsets the texture coordinates to compensate.
+ *
+ * Only the parts of the texture that have changed are uploaded, in blocks of 16x16 pixels. Chunks are written on the
+ * client tick and uploaded at the start of the next frame, both on the client thread, so the upload never sees a chunk
+ * half-written and the image doesn't need to be double-buffered.
+ *
+ * The pixels live in an off-heap buffer that is uploaded with glTexSubImage2D directly, rather than in a NativeImage,
+ * so that a chunk can be written a whole row at a time instead of through a bounds-checked call per pixel. Colors are
+ * kept in the same order NativeImage uses - ABGR ints, which are RGBA bytes in memory - so they need no conversion on
+ * the way in or out.
+ */
+public final class MapLayer {
+    public static final int LEVEL_COUNT = 4;      /* Number of levels of detail - 1:1, 1:2, 1:4 and 1:8 */
+    public static final int TEXTURE_SIZE = 512;   /* Size of each level's texture along each edge, in pixels */
+    private static final int BLOCK_SIZE = 16;     /* Size of the blocks the texture is uploaded in along each edge, in pixels */
+    private static final int BLOCKS_PER_ROW = TEXTURE_SIZE / BLOCK_SIZE;
+    private static final int BLOCK_COUNT = BLOCKS_PER_ROW * BLOCKS_PER_ROW;
+    private static final int FULL_UPLOAD_BLOCKS = BLOCK_COUNT / 2; /* Past this many changed blocks, one upload of everything is cheaper */
+
+    private final int level;
+    private final int chunkPixels;                /* Number of pixels along each edge of a chunk at this level */
+    private final IntBuffer pixels = MemoryUtil.memCallocInt(TEXTURE_SIZE * TEXTURE_SIZE); /* texture pixels, in rows, never freed */
+    private final LayerTexture texture = new LayerTexture();
+    private final int[] rowPixels = new int[CHUNK_SIZE]; /* one row of a chunk averaged down to this level, reused */
+    private ResourceLocation textureLocation;
+    private final BitSet dirtyBlocks = new BitSet(BLOCK_COUNT); /* blocks of the texture changed since the last upload */
+
+    private int radius;                           /* Radius of chunks around the player's chunk covered by this level */
+    private ChunkPos upperLeftPosition;           /* ChunkPos that represents the chunk at the upper-left of the window */
+
+    public MapLayer(int level) {
+        this.level = level;
+        this.chunkPixels = CHUNK_SIZE >> level;
+    }
+
+    /**
+     * Get the largest radius of chunks that fits in the texture of a level.
+     *
+     * @param level Level of detail.
+     * @return Maximum radius, in chunks.
+     */
+    public static int getMaxRadius(int level) {
+        return (((TEXTURE_SIZE << level) / CHUNK_SIZE) - 1) / 2;
+    }
+
+    /**
+     * Create the texture on the GPU and register it with Minecraft. Everything written before this is uploaded on the
+     * next call to uploadTexture.
+     */
+    public void registerTexture(TextureManager textureManager) {
+        TextureUtil.prepareImage(this.texture.getId(), TEXTURE_SIZE, TEXTURE_SIZE);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_REPEAT);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_REPEAT);
+
+        this.textureLocation = new ResourceLocation("dashmap", "minimap_" + this.level);
+        textureManager.register(this.textureLocation, this.texture);
+        this.dirtyBlocks.set(0, BLOCK_COUNT);
+    }
+
+    /**
+     * Set the radius of the map this level belongs to. Only as much of it as fits in the texture is covered.
+     *
+     * @param mapRadius Radius of the map, in chunks.
+     */
+    public void setRadius(int mapRadius) {
+        this.radius = Math.min(mapRadius, getMaxRadius(this.level));
+    }
+
+    /**
+     * Move the window to be centred on the given chunk.
+     *
+     * @param centerPosition Chunk at the centre of the window.
+     */
+    public void setCenterPosition(ChunkPos centerPosition) {
+        this.upperLeftPosition = new ChunkPos(centerPosition.x - this.radius, centerPosition.z - this.radius);
+    }
+
+    /**
+     * Check whether the given chunk is in the window of a level whose upper-left chunk is at the given position.
+     *
+     * @param upperLeft Upper-left chunk of the window.
+     * @param chunkX X coordinate of the chunk to check.
+     * @param chunkZ Z coordinate of the chunk to check.
+     * @return True if the chunk is in the window.
+     */
+    public boolean isInWindow(@Nullable ChunkPos upperLeft, int chunkX, int chunkZ) {
+        if (upperLeft == null) {
+            return false;
+        }
+
+        final int xDistance = chunkX - upperLeft.x;
+        final int zDistance = chunkZ - upperLeft.z;
+
+        return xDistance >= 0 && xDistance < this.getWindowSize() &&
+               zDistance >= 0 && zDistance < this.getWindowSize();
+    }
+
+    public boolean isInWindow(int chunkX, int chunkZ) {
+        return this.isInWindow(this.upperLeftPosition, chunkX, chunkZ);
+    }
+
+    /**
+     * Write the colors of a chunk into its slot of the texture, averaging them down to this level's resolution.
+     *
+     * @param chunkX X coordinate of the chunk.
+     * @param chunkZ Z coordinate of the chunk.
+     * @param colors Full resolution colors of the chunk, in texture rows: indexed by (z * CHUNK_SIZE) + x.
+     * @param mask Columns that have changed, or null if the whole chunk should be written. Only used at level 0 -
+     *             above it, the chunk is so small that writing all of it is as cheap as working out what changed.
+     */
+    public void writeChunk(int chunkX, int chunkZ, int[] colors, @Nullable ColumnMask mask) {
+        final int slotX = this.getSlotX(chunkX);
+        final int slotY = this.getSlotY(chunkZ);
+
+        if (this.level == 0) {
+            final boolean wholeChunk = mask == null || mask.isFull();
+
+            for (int offsetZ = 0; offsetZ < CHUNK_SIZE; offsetZ++) {
+                final int rowStart = ((slotY + offsetZ) * TEXTURE_SIZE) + slotX;
+
+                if (wholeChunk) {
+                    this.pixels.put(rowStart, colors, offsetZ * CHUNK_SIZE, CHUNK_SIZE);
+                    continue;
+                }
+
+                for (int offsetX = 0; offsetX < CHUNK_SIZE; offsetX++) {
+                    if (mask.get(offsetX, offsetZ)) {
+                        this.pixels.put(rowStart + offsetX, colors[(offsetZ * CHUNK_SIZE) + offsetX]);
+                    }
+                }
+            }
+        } else {
+            final int scale = 1 << this.level;
+
+            for (int pixelZ = 0; pixelZ < this.chunkPixels; pixelZ++) {
+                for (int pixelX = 0; pixelX < this.chunkPixels; pixelX++) {
+                    this.rowPixels[pixelX] = average(colors, pixelX * scale, pixelZ * scale, scale);
+                }
+
+                this.pixels.put(((slotY + pixelZ) * TEXTURE_SIZE) + slotX, this.rowPixels, 0, this.chunkPixels);
+            }
+        }
+
+        this.markDirty(slotX, slotY);
+    }
+
+    /**
+     * Blank out the slot of the texture for a chunk, which may still contain the chunk that most recently scrolled off
+     * the opposite edge of the window.
+     */
+    public void clearChunk(int chunkX, int chunkZ) {
+        final int slotX = this.getSlotX(chunkX);
+        final int slotY = this.getSlotY(chunkZ);
+
+        final long address = MemoryUtil.memAddress(this.pixels);
+
+        for (int pixelZ = 0; pixelZ < this.chunkPixels; pixelZ++) {
+            MemoryUtil.memSet(address + ((((long) (slotY + pixelZ) * TEXTURE_SIZE) + slotX) * Integer.BYTES), 0, (long) this.chunkPixels * Integer.BYTES);
+        }
+
+        this.markDirty(slotX, slotY);
+    }
+
+    public void clear() {
+        this.upperLeftPosition = null;
+        MemoryUtil.memSet(this.pixels, 0);
+        this.dirtyBlocks.set(0, BLOCK_COUNT);
+    }
+
+    /**
+     * Upload the parts of the texture that have changed since the last upload to the GPU. Runs of changed blocks next to
+     * each other in a row are uploaded together.
+     *
+     * @return True if anything was uploaded.
+     */
+    public boolean uploadTexture() {
+        if (this.dirtyBlocks.isEmpty()) {
+            MapMetrics.UPLOAD_TIME.add(0);
+            MapMetrics.UPLOAD_PIXELS.add(0);
+            return false;
+        }
+
+        final MapEvents.TextureUpload event = new MapEvents.TextureUpload();
+        final long start = System.nanoTime();
+        final int pixelCount;
+        int rectCount = 0;
+
+        event.begin();
+        this.texture.bind();
+        GlStateManager._pixelStore(GL11.GL_UNPACK_ROW_LENGTH, TEXTURE_SIZE);
+        GlStateManager._pixelStore(GL11.GL_UNPACK_ALIGNMENT, 4);
+
+        if (this.dirtyBlocks.cardinality() > FULL_UPLOAD_BLOCKS) {
+            this.uploadRect(0, 0, TEXTURE_SIZE, TEXTURE_SIZE);
+            pixelCount = TEXTURE_SIZE * TEXTURE_SIZE;
+            rectCount = 1;
+        } else {
+            pixelCount = this.dirtyBlocks.cardinality() * BLOCK_SIZE * BLOCK_SIZE;
+
+            int block = this.dirtyBlocks.nextSetBit(0);
+
+            while (block >= 0) {
+                final int row = block / BLOCKS_PER_ROW;
+                final int runEnd = Math.min(this.dirtyBlocks.nextClearBit(block), (row + 1) * BLOCKS_PER_ROW);
+
+                this.uploadRect((block % BLOCKS_PER_ROW) * BLOCK_SIZE, row * BLOCK_SIZE, (runEnd - block) * BLOCK_SIZE, BLOCK_SIZE);
+                block = this.dirtyBlocks.nextSetBit(runEnd);
+                rectCount++;
+            }
+        }
+
+        /* Put the unpack state back the way everything else expects it */
+        GlStateManager._pixelStore(GL11.GL_UNPACK_ROW_LENGTH, 0);
+        GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, 0);
+        GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_ROWS, 0);
+
+        this.dirtyBlocks.clear();
+
+        MapMetrics.UPLOAD_TIME.add(System.nanoTime() - start);
+        MapMetrics.UPLOAD_PIXELS.add(pixelCount);
+
+        if (event.shouldCommit()) {
+            event.level = this.level;
+            event.pixelsUploaded = pixelCount;
+            event.bytesUploaded = (long) pixelCount * Integer.BYTES;
+            event.rectsUploaded = rectCount;
+            event.commit();
+        }
+
+        return true;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Get the number of chunks along each edge of the window.
+     */
+    public int getWindowSize() {
+        return (this.radius * 2) + 1;
+    }
+
+    /**
+     * Get the number of pixels along each edge of the window.
+     */
+    public int getWindowPixels() {
+        return this.getWindowSize() * this.chunkPixels;
+    }
+
+    public ChunkPos getUpperLeftPosition() {
+        return this.upperLeftPosition;
+    }
+
+    public ResourceLocation getTextureLocation() {
+        return this.textureLocation;
+    }
+
+    /**
+     * Get a read-only view of the texture's pixels, in rows of TEXTURE_SIZE, as they will be uploaded.
+     */
+    public IntBuffer getPixels() {
+        return this.pixels.asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the X coordinate of the slot in the texture that a chunk lives in.
+     */
+    public int getSlotX(int chunkX) {
+        return Math.floorMod(chunkX * this.chunkPixels, TEXTURE_SIZE);
+    }
+
+    /**
+     * Get the Y coordinate of the slot in the texture that a chunk lives in.
+     */
+    public int getSlotY(int chunkZ) {
+        return Math.floorMod(chunkZ * this.chunkPixels, TEXTURE_SIZE);
+    }
+
+    /**
+     * Upload a rectangle of the pixels to the same place in the bound texture. UNPACK_ROW_LENGTH must already be set to
+     * the width of the texture.
+     */
+    private void uploadRect(int x, int y, int width, int height) {
+        GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, x);
+        GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_ROWS, y);
+        GlStateManager._texSubImage2D(GL11.GL_TEXTURE_2D, 0, x, y, width, height, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, MemoryUtil.memAddress(this.pixels));
+    }
+
+    /**
+     * Mark the block of the texture holding a chunk's slot as changed. A slot is never bigger than a block, and slots
+     * are aligned to their size, so a slot never spans two blocks.
+     */
+    private void markDirty(int slotX, int slotY) {
+        this.dirtyBlocks.set(((slotY / BLOCK_SIZE) * BLOCKS_PER_ROW) + (slotX / BLOCK_SIZE));
+    }
+
+    /**
+     * Average a square of colors channel by channel. Fully transparent columns (ones that haven't been sampled) are
+     * left out, so the edge of explored terrain doesn't fade out.
+     *
+     * @param colors Colors of a chunk, in texture rows.
+     * @param startX X coordinate of the upper-left of the square.
+     * @param startZ Z coordinate of the upper-left of the square.
+     * @param size Size of the square along each edge.
+     * @return Average color.
+     */
+    private static int average(int[] colors, int startX, int startZ, int size) {
+        int channel0 = 0;
+        int channel1 = 0;
+        int channel2 = 0;
+        int channel3 = 0;
+        int count = 0;
+
+        for (int z = startZ; z < startZ + size; z++) {
+            for (int x = startX; x < startX + size; x++) {
+                final int color = colors[(z * CHUNK_SIZE) + x];
+
+                if (color == 0) {
+                    continue;
+                }
+
+                channel0 += color & 0xFF;
+                channel1 += (color >>> 8) & 0xFF;
+                channel2 += (color >>> 16) & 0xFF;
+                channel3 += color >>> 24;
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        return (channel0 / count) | ((channel1 / count) << 8) | ((channel2 / count) << 16) | ((channel3 / count) << 24);
+    }
+
+    /**
+     * The GPU side of a level's texture. Its pixels are uploaded by the level itself, so there is nothing to load.
+     */
+    private static final class LayerTexture extends AbstractTexture {
+        @Override
+        public void load(ResourceManager resourceManager) {
+        }
+    }
+}
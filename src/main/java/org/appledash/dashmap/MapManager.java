@@ -1,97 +1,623 @@
 package org.appledash.dashmap;
 
-import com.mojang.blaze3d.platform.NativeImage;
-import net.minecraft.client.Minecraft;
-import net.minecraft.client.renderer.texture.DynamicTexture;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongComparator;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import net.minecraft.client.renderer.texture.TextureManager;
 import net.minecraft.core.BlockPos;
-import net.minecraft.resources.ResourceLocation;
+import net.minecraft.core.SectionPos;
 import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.LevelAccessor;
-import net.minecraft.world.level.block.Blocks;
-import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.ChunkAccess;
-import net.minecraft.world.level.levelgen.Heightmap;
-import net.minecraft.world.level.material.MaterialColor;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.EmptyLevelChunk;
 
+import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Handles maintaining a color map for chunks on the map, as well as building a NativeImage texture containing the map data.
+ * Handles maintaining a color map for chunks on the map, as well as building the textures containing the map data at
+ * each level of detail.
+ *
+ * The map either shows the surface, or in cave mode and in dimensions with a ceiling, a slice of the world around the
+ * player's Y. Slices go in bands of SurfaceHeightCache.BAND_SIZE blocks, and each band that has been shown keeps its
+ * own tiles, so moving back into a band shows it again straight away instead of sampling every chunk again.
  */
 public class MapManager {
-    public static final int RADIUS = 3; /* Radius of chunks around the player's chunk that the map will be updated for */
     public static final int CHUNK_SIZE = 16; /* Number of blocks in a chunk. */
+    public static final int MAX_RADIUS = MapLayer.getMaxRadius(MapLayer.LEVEL_COUNT - 1); /* Largest radius that the coarsest level of detail can show all of */
+    private static final int WORKER_QUEUE_SIZE = 256; /* Maximum number of chunk snapshots waiting for a worker thread */
+    private static final int SURFACE = Integer.MIN_VALUE; /* Slice of the map showing the surface, rather than a Y band */
+    private static final int MAX_BAND_SLICES = 8;     /* Number of Y bands whose tiles are kept at once, sharing the tile memory budget with the surface */
+    private static final int PREFETCH_MARGIN = 8;     /* Distance in chunks beyond the edge of the map that cache regions are opened ahead of time */
 
-    private final NativeImage nativeImage = new NativeImage(NativeImage.Format.RGBA, ((RADIUS * 2) + 1) * CHUNK_SIZE, ((RADIUS * 2) + 1) * CHUNK_SIZE, false);
-    private final Map<ChunkPos, int[][]> colorMap = new HashMap<>(); /* map of chunk positions to array of topY map colors for that chunk */
-    private final Set<ChunkAccess> dirtyChunks = new CopyOnWriteArraySet<>(); /* chunks that we need to update the map texture for - collection is concurrent because we remove items from it when unloading chunks, which happens on another thread. */
-    private final DynamicTexture texture = new DynamicTexture(this.nativeImage);
+    private final MapLayer[] layers = new MapLayer[MapLayer.LEVEL_COUNT]; /* map textures, from full resolution down */
+    private final TileStore.Budget tileBudget = new TileStore.Budget(); /* tileMemoryMB, shared by the surface and every band */
+    private final TileStore surfaceTiles = new TileStore(this.tileBudget); /* sampled heights and map colors of the surface of every chunk we have seen, including unloaded ones */
+    private final TileStore[] bandTiles = new TileStore[MAX_BAND_SLICES]; /* tiles of each Y band that has been shown, least recently shown first */
+    private final int[] bandSlices = new int[MAX_BAND_SLICES];          /* Y band of each entry of bandTiles */
+    private int bandCount;                                               /* number of entries in use in bandTiles */
+    private final int[] tileColors = new int[CHUNK_SIZE * CHUNK_SIZE]; /* shaded colors of the tile being written to the texture, in texture rows, reused */
+    private final WorldMapAtlas worldMapAtlas = new WorldMapAtlas(this);
+    private final DirtyChunkSet dirtyChunks = new DirtyChunkSet(); /* chunks that we need to update the map texture for, and which of their columns */
+    private final Long2LongOpenHashMap refreshHashes = new Long2LongOpenHashMap(); /* content hashes refreshChunk worked out for chunks it marked dirty, handed on to their snapshots */
+    private final LongArrayList rebuildOrder = new LongArrayList(); /* dirty chunks in the order they are rebuilt, reused between ticks */
+    private final MapColorPalette palette = new MapColorPalette();
+    private final ChunkSampler sampler = new ChunkSampler(this.palette);
+    private final SurfaceHeightCache surfaceHeightCache = new SurfaceHeightCache(); /* surface heights in dimensions with a ceiling, where there is no usable heightmap */
+    private final Queue<SampledChunk> finishedChunks = new ConcurrentLinkedQueue<>(); /* tiles sampled by the worker pool, waiting to be applied on the tick thread */
+    private final Map<ChunkPos, PendingRebuild> pendingRebuilds = new HashMap<>(); /* most recent sampling request for each chunk, so that outdated results can be told apart */
+    private final LevelSnapshotSource levelSource = new LevelSnapshotSource();
+    private final LongOpenHashSet loadedChunks = new LongOpenHashSet();  /* chunks of loadedLevel that the server has sent and the client still has loaded, on the map or not */
+    private final LongOpenHashSet arrivedChunks = new LongOpenHashSet(); /* chunks that have loaded since the last tick, waiting to be put on the map */
+    private final Long2LongOpenHashMap awaitingChunks = new Long2LongOpenHashMap(); /* chunks that came onto the map while their cache region was being opened, and their content hashes */
+    private final LongOpenHashSet awaitingPlaceholders = new LongOpenHashSet();     /* the same, for chunks the server hasn't sent yet */
+    private LevelAccessor loadedLevel; /* level that loadedChunks belongs to, replaced as soon as another level loads a chunk */
 
-    private ResourceLocation textureLocation;
+    private ThreadPoolExecutor workerPool;
+    private volatile boolean workerPoolStale; /* whether the workerThreads setting has changed since the worker pool was created */
+    private long lastTicket;
+    private TileCache tileCache; /* on-disk cache for the current server and dimension, or null if caching is disabled */
+    private SessionRecorder recorder; /* recording of everything the map is asked to do, or null if the session isn't being recorded */
+    private long sampledTileCount; /* number of sampled tiles put on the map, ever */
+    private int tickChunks;        /* number of chunks rebuilt so far this tick */
+    private int tickColumns;       /* number of columns sampled, or handed off to be sampled, so far this tick */
+    private long tickBlocks;       /* number of block states looked at by the sampler for tiles applied so far this tick */
+    private long tickPixels;       /* number of map pixels written to the textures so far this tick */
 
-    private boolean textureChanged;
+    private TileStore tiles = this.surfaceTiles; /* tiles of the slice being shown */
+    private int slice = SURFACE;   /* Y band being shown, or SURFACE */
+    private boolean sliceCached = true; /* whether the slice being shown goes in the on-disk cache - cave mode bands don't */
+    private boolean caveMode;      /* show the Y band around the player even in dimensions without a ceiling */
+
+    private int radius; /* Radius of chunks around the player's chunk that the map will be updated for */
     private ChunkPos upperLeftPosition; /* ChunkPos that represents the chunk at the upper-left of the map */
 
-    public void registerTexture(TextureManager textureManager) {
-        this.textureLocation = textureManager.register("dashmap/minimap", this.texture);
+    public MapManager() {
+        for (int level = 0; level < MapLayer.LEVEL_COUNT; level++) {
+            this.layers[level] = new MapLayer(level);
+        }
+
+        this.setRadius(DashMapConfig.DEFAULT_MAP_RADIUS);
+    }
+
+    public void registerTextures(TextureManager textureManager) {
+        for (final MapLayer layer : this.layers) {
+            layer.registerTexture(textureManager);
+        }
+    }
+
+    /**
+     * Set the radius of chunks around the player that the map covers. Should only be called while the map is clear,
+     * since what is already on the textures isn't moved around.
+     *
+     * @param radius Radius, in chunks.
+     */
+    public void setRadius(int radius) {
+        if (this.recorder != null) {
+            this.recorder.recordRadius(radius);
+        }
+
+        this.radius = Math.min(radius, MAX_RADIUS);
+
+        for (final MapLayer layer : this.layers) {
+            layer.setRadius(this.radius);
+        }
+    }
+
+    public int getRadius() {
+        return this.radius;
+    }
+
+    /**
+     * Get the number of chunks along each edge of the map.
+     */
+    public int getMapSize() {
+        return (this.radius * 2) + 1;
+    }
+
+    /**
+     * Rebuild the color and image data for chunks that have been marked dirty, spending at most the configured time
+     * budget on it. Chunks closest to the player are rebuilt first, and whatever doesn't fit in the budget is left for
+     * the next call - at least one chunk is always rebuilt, so the backlog can't stall.
+     * When asynchronous rebuilding is enabled, this only hands the chunks off to the worker pool, and their results
+     * are applied on a later call.
+     *
+     * @param level Level the map is of, which the dirty chunks are looked up in.
+     * @param eyeY Y of the player's eyes, which the surface is searched down from in dimensions with a ceiling.
+     */
+    public void rebuildChunks(Level level, double eyeY) {
+        this.refreshArrivedChunks(level);
+        this.levelSource.level = level;
+        this.rebuildChunks(this.levelSource, eyeY);
+        this.levelSource.level = null; /* don't hold on to the level past a dimension change */
     }
 
     /**
-     * Rebuild the color and image data for all chunks that have been marked dirty.
+     * Rebuild chunks that have been marked dirty, taking their snapshots from the given source.
+     *
+     * @param source Where to take snapshots of the dirty chunks from.
+     * @param eyeY Y of the player's eyes, which the surface is searched down from in dimensions with a ceiling.
+     * @see #rebuildChunks(Level, double)
      */
-    public void rebuildChunks() {
-        if (!this.dirtyChunks.isEmpty()) {
-            this.dirtyChunks.forEach(this::rebuildChunk);
-            this.dirtyChunks.clear();
-            this.textureChanged = true;
+    public void rebuildChunks(SnapshotSource source, double eyeY) {
+        /* Map was cleared, and the player hasn't been placed on it again yet */
+        if (this.upperLeftPosition == null) {
+            return;
+        }
+
+        final MapEvents.RebuildTick event = new MapEvents.RebuildTick();
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MICROSECONDS.toNanos(DashMapConfig.CLIENT.tickBudgetMicros.get());
+        final long appliedBefore = this.sampledTileCount;
+
+        event.begin();
+        this.tickChunks = 0;
+        this.tickColumns = 0;
+        this.tickBlocks = 0;
+        this.tickPixels = 0;
+
+        this.showSlice(this.caveMode || source.hasCeiling() ? SurfaceHeightCache.getBand(eyeY) : SURFACE, source.hasCeiling());
+        this.refreshAwaitingChunks();
+        this.applyFinishedChunks(deadline);
+        this.rebuildDirtyChunks(source, deadline);
+
+        MapMetrics.TICK_TIME.add(System.nanoTime() - start);
+        MapMetrics.TICK_CHUNKS.add(this.tickChunks);
+        MapMetrics.TICK_COLUMNS.add(this.tickColumns);
+        MapMetrics.TICK_BLOCKS.add(this.tickBlocks);
+        MapMetrics.TICK_PIXELS.add(this.tickPixels);
+        MapMetrics.QUEUE_DEPTH.add(this.dirtyChunks.size() + this.pendingRebuilds.size());
+
+        if (event.shouldCommit()) {
+            event.chunksRebuilt = this.tickChunks;
+            event.columnsSampled = this.tickColumns;
+            event.blocksSampled = this.tickBlocks;
+            event.pixelsWritten = this.tickPixels;
+            event.tilesApplied = (int) (this.sampledTileCount - appliedBefore);
+            event.dirtyChunks = this.dirtyChunks.size();
+            event.pendingRebuilds = this.pendingRebuilds.size();
+            event.commit();
+        }
+
+        /* Recorded after the tick's snapshots, so that replaying the tick has them to hand */
+        if (this.recorder != null) {
+            this.recorder.recordTick(eyeY, source.hasCeiling());
+        }
+    }
+
+    private void rebuildDirtyChunks(SnapshotSource source, long deadline) {
+        if (this.dirtyChunks.isEmpty()) {
+            return;
         }
+
+        final int centerX = this.upperLeftPosition.x + this.radius;
+        final int centerZ = this.upperLeftPosition.z + this.radius;
+
+        this.rebuildOrder.clear();
+        this.dirtyChunks.copyKeys(this.rebuildOrder);
+        this.rebuildOrder.sort((LongComparator) (first, second) -> Integer.compare(
+                Math.max(Math.abs(ChunkPos.getX(first) - centerX), Math.abs(ChunkPos.getZ(first) - centerZ)),
+                Math.max(Math.abs(ChunkPos.getX(second) - centerX), Math.abs(ChunkPos.getZ(second) - centerZ))));
+
+        for (int i = 0; i < this.rebuildOrder.size(); i++) {
+            final long chunkKey = this.rebuildOrder.getLong(i);
+            final ColumnMask mask = this.dirtyChunks.remove(chunkKey);
+
+            /* Chunks are only looked up now, so one that was marked many times is only looked up once */
+            if (mask != null) {
+                this.rebuildChunk(source, new ChunkPos(chunkKey), mask);
+            }
+
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get the number of chunks that are marked dirty and haven't been handed off for rebuilding yet.
+     */
+    public int getDirtyChunkCount() {
+        return this.dirtyChunks.size();
+    }
+
+    /**
+     * Get the number of chunks that are being sampled by the worker pool, or whose results are waiting to be applied.
+     */
+    public int getPendingRebuildCount() {
+        return this.pendingRebuilds.size();
+    }
+
+    /**
+     * Get the number of chunks on the map that are waiting for their on-disk cache region to be opened.
+     */
+    public int getAwaitingChunkCount() {
+        return this.awaitingChunks.size() + this.awaitingPlaceholders.size();
+    }
+
+    /**
+     * Get the number of sampled tiles that have been put on the map since the game started.
+     */
+    public long getSampledTileCount() {
+        return this.sampledTileCount;
+    }
+
+    /**
+     * Get the number of bytes taken up by map tiles kept in memory.
+     */
+    public long getTileMemoryUsage() {
+        return this.tileBudget.getMemoryUsage();
+    }
+
+    /**
+     * Show the Y band around the player rather than the surface, in dimensions without a ceiling. Takes effect on the
+     * next tick.
+     *
+     * @param caveMode Whether to show the Y band around the player.
+     */
+    public void setCaveMode(boolean caveMode) {
+        if (this.recorder != null) {
+            this.recorder.recordCaveMode(caveMode);
+        }
+
+        this.caveMode = caveMode;
+    }
+
+    public boolean isCaveMode() {
+        return this.caveMode;
     }
 
     /**
      * Mark a chunk as needing to have its color and image data rebuilt.
      *
-     * @param chunk Chunk that needs rebuilding.
+     * @param chunkPos Position of the chunk that needs rebuilding.
      */
-    public void markChunkDirty(ChunkAccess chunk) {
-        this.dirtyChunks.add(chunk);
+    public void markChunkDirty(ChunkPos chunkPos) {
+        if (this.recorder != null) {
+            this.recorder.recordChunkDirty(chunkPos);
+        }
+
+        this.dirtyChunks.markAll(chunkPos.toLong());
+        this.refreshHashes.remove(chunkPos.toLong());
+        this.awaitingChunks.replace(chunkPos.toLong(), 0); /* its hash is out of date now */
+        this.invalidateHiddenSlices(chunkPos.x, chunkPos.z, null);
     }
 
     /**
-     * Clear all map data - used when logging out of a server to clear the map.
+     * Mark just the column containing the given block as needing to have its color and image data rebuilt.
+     * The columns whose shading depends on it are rebuilt along with it.
+     *
+     * @param pos Position of the block that changed.
+     */
+    public void markBlockDirty(BlockPos pos) {
+        if (this.recorder != null) {
+            this.recorder.recordBlockDirty(pos);
+        }
+
+        this.dirtyChunks.mark(ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4), pos.getX() & 15, pos.getZ() & 15);
+        this.refreshHashes.remove(ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4));
+        this.awaitingChunks.replace(ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4), 0);
+
+        /* Slices that aren't being shown can't be rebuilt now, so they lose the tile instead */
+        this.invalidateHiddenSlices(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getZ()), pos);
+    }
+
+    /**
+     * Clear all map data - used when logging out of a server or changing dimension to clear the map.
      */
     public void clearMap() {
-        this.colorMap.clear();
+        if (this.recorder != null) {
+            this.recorder.recordClear();
+        }
+
+        this.surfaceTiles.clear();
+
+        for (int i = 0; i < this.bandCount; i++) {
+            this.tileBudget.remove(this.bandTiles[i]);
+        }
+
+        Arrays.fill(this.bandTiles, null);
+        this.bandCount = 0;
+        this.tiles = this.surfaceTiles;
+        this.slice = SURFACE;
+        this.sliceCached = true;
         this.dirtyChunks.clear();
+        this.refreshHashes.clear();
+        this.awaitingChunks.clear();
+        this.awaitingPlaceholders.clear();
+        this.pendingRebuilds.clear(); /* results that are still in flight will now be thrown away when they arrive */
+        this.surfaceHeightCache.clear();
+        this.upperLeftPosition = null;
+
+        for (final MapLayer layer : this.layers) {
+            layer.clear();
+        }
+
+        this.worldMapAtlas.clear();
+    }
+
+    /**
+     * Note that the client has loaded a chunk sent by the server. It is put on the map on the next tick, if it is on the
+     * map by then.
+     *
+     * @param chunk Chunk that has been loaded.
+     */
+    public void onChunkLoaded(ChunkAccess chunk) {
+        final LevelAccessor level = chunk.getWorldForge();
+
+        /* The client level is thrown away when changing dimension without unloading its chunks, so start over */
+        if (level != this.loadedLevel) {
+            this.forgetLoadedChunks();
+            this.loadedLevel = level;
+        }
+
+        this.loadedChunks.add(chunk.getPos().toLong());
+        this.arrivedChunks.add(chunk.getPos().toLong());
+    }
+
+    /**
+     * Note that the client has unloaded a chunk, and drop everything being tracked for it.
+     *
+     * @param chunk Chunk that has been unloaded.
+     */
+    public void onChunkUnloaded(ChunkAccess chunk) {
+        if (chunk.getWorldForge() == this.loadedLevel) {
+            this.loadedChunks.remove(chunk.getPos().toLong());
+            this.arrivedChunks.remove(chunk.getPos().toLong());
+        }
+
+        this.removeChunk(chunk.getPos());
+    }
+
+    /**
+     * Forget which chunks the client has loaded, such as when disconnecting from a server.
+     */
+    public void forgetLoadedChunks() {
+        this.loadedChunks.clear();
+        this.arrivedChunks.clear();
+        this.loadedLevel = null;
+    }
+
+    /**
+     * Check whether the server has sent a chunk, and the client still has it loaded.
+     *
+     * @param chunkX X coordinate of the chunk.
+     * @param chunkZ Z coordinate of the chunk.
+     * @return True if the chunk is loaded.
+     */
+    public boolean isChunkLoaded(int chunkX, int chunkZ) {
+        return this.loadedChunks.contains(ChunkPos.asLong(chunkX, chunkZ));
+    }
+
+    /**
+     * Use the given on-disk tile cache from now on, closing the previous one (if any).
+     *
+     * @param tileCache Tile cache for the current server and dimension, or null to stop caching.
+     */
+    public void setTileCache(TileCache tileCache) {
+        if (this.tileCache != null) {
+            this.tileCache.close();
+        }
+
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Record everything the map is asked to do to the given recorder from now on, closing the previous one (if any).
+     *
+     * @param recorder Recorder for the current server and dimension, or null to stop recording.
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        if (this.recorder != null) {
+            this.recorder.close();
+        }
+
+        this.recorder = recorder;
+    }
+
+    /**
+     * Bring a chunk that has just come onto the map up to date. If we still have a tile for it from earlier, or the
+     * on-disk cache has one, that tile is shown straight away, and if the chunk hasn't changed since the tile was
+     * sampled, it is not sampled again.
+     *
+     * @param chunk Chunk that has just come onto the map.
+     */
+    public void refreshChunk(ChunkAccess chunk) {
+        final ChunkPos chunkPos = chunk.getPos();
+        final boolean placeholder = chunk instanceof EmptyLevelChunk;
+
+        /* Hashing is only worth it if there is a tile the chunk could turn out to match */
+        final boolean hashNeeded = !placeholder && (this.tileCache != null || this.tiles.contains(chunkPos.x, chunkPos.z));
+
+        this.refreshChunk(chunkPos, placeholder, hashNeeded ? TileCache.contentHash(chunk, chunk.getWorldForge().dimensionType().hasCeiling()) : 0);
+    }
+
+    /**
+     * Bring a chunk that has just come onto the map up to date. Chunks the server hasn't sent yet only get whatever
+     * tile is cached for them, and are sampled once they load.
+     *
+     * @param level Level the map is of.
+     * @param chunkX X coordinate of the chunk that has just come onto the map.
+     * @param chunkZ Z coordinate of the chunk that has just come onto the map.
+     */
+    public void refreshChunk(Level level, int chunkX, int chunkZ) {
+        if (level == this.loadedLevel && this.isChunkLoaded(chunkX, chunkZ)) {
+            this.refreshChunk(level.getChunk(chunkX, chunkZ));
+        } else {
+            this.refreshChunk(new ChunkPos(chunkX, chunkZ), true, 0);
+        }
+    }
+
+    /**
+     * Bring a chunk that has just come onto the map up to date, given what is known about it.
+     *
+     * @param chunkPos Position of the chunk that has just come onto the map.
+     * @param placeholder Whether the chunk is a placeholder for one the server hasn't sent yet.
+     * @param contentHash Content hash of the chunk, or 0 if it isn't known.
+     * @see #refreshChunk(ChunkAccess)
+     */
+    public void refreshChunk(ChunkPos chunkPos, boolean placeholder, long contentHash) {
+        if (this.recorder != null) {
+            this.recorder.recordRefresh(chunkPos, placeholder, contentHash);
+        }
+
+        this.refreshChunkNow(chunkPos, placeholder, contentHash);
+    }
+
+    private void refreshChunkNow(ChunkPos chunkPos, boolean placeholder, long contentHash) {
+        final long knownHash;
+
+        if (this.tiles.contains(chunkPos.x, chunkPos.z)) { /* already on the texture, setCenterPosition put it there */
+            knownHash = this.tiles.getContentHash(chunkPos.x, chunkPos.z);
+        } else {
+            /* Opening a cache region touches the disk, so that happens on the flusher thread, and the chunk waits for it */
+            if (!this.isCachedTileReady(chunkPos)) {
+                if (placeholder) {
+                    this.awaitingPlaceholders.add(chunkPos.toLong());
+                } else {
+                    this.awaitingChunks.put(chunkPos.toLong(), contentHash);
+                }
+
+                return;
+            }
+
+            final TileCache.CachedTile cachedTile = this.loadCachedTile(chunkPos);
+
+            if (cachedTile == null) {
+                /* Placeholders would only be sampled into blank tiles, they are sampled when the real chunk loads instead */
+                if (!placeholder) {
+                    this.markRefreshed(chunkPos, contentHash);
+                }
+
+                return;
+            }
+
+            this.putTile(chunkPos, cachedTile.tile(), cachedTile.contentHash(), ColumnMask.full());
+            knownHash = cachedTile.contentHash();
+        }
+
+        /* The server hasn't sent us this chunk yet, so the tile we have is the best there is - don't sample a blank chunk over it. */
+        if (placeholder) {
+            return;
+        }
+
+        if (contentHash == 0 || contentHash != knownHash) {
+            this.markRefreshed(chunkPos, contentHash);
+        }
+    }
+
+    /**
+     * Mark a chunk that has just come onto the map to be sampled, keeping its content hash for the snapshot so that it
+     * isn't worked out again - unless the chunk changes before then.
+     */
+    private void markRefreshed(ChunkPos chunkPos, long contentHash) {
+        this.dirtyChunks.markAll(chunkPos.toLong());
+
+        if (contentHash != 0) {
+            this.refreshHashes.put(chunkPos.toLong(), contentHash);
+        }
     }
 
     /**
      * Remove data for a given chunk when we don't care about it anymore, such as when the chunk is unloaded.
+     * Its tile is kept, so it can be shown again if the player comes back.
      */
-    public void removeChunk(ChunkAccess chunk) {
-        this.dirtyChunks.remove(chunk);
-        this.colorMap.remove(chunk.getPos());
+    public void removeChunk(ChunkPos chunkPos) {
+        if (this.recorder != null) {
+            this.recorder.recordRemove(chunkPos);
+        }
+
+        this.dirtyChunks.remove(chunkPos.toLong());
+        this.refreshHashes.remove(chunkPos.toLong());
+        this.pendingRebuilds.remove(chunkPos);
+        this.surfaceHeightCache.remove(chunkPos);
+
+        /* Still worth showing its cached tile, but it is only a placeholder now */
+        if (this.awaitingChunks.containsKey(chunkPos.toLong())) {
+            this.awaitingChunks.remove(chunkPos.toLong());
+            this.awaitingPlaceholders.add(chunkPos.toLong());
+        }
     }
 
     /**
-     * Upload the map texture image to the GPU, if it has been changed since the last upload.
+     * Forget the cached surface height of the column containing a block that changed, if the change could have moved it.
+     *
+     * @param pos Position of the block that changed.
      */
-    public void uploadTexture() {
-        if (this.textureChanged) {
-            this.texture.upload();
-            this.textureChanged = false;
+    public void invalidateSurfaceHeight(BlockPos pos) {
+        if (this.recorder != null) {
+            this.recorder.recordSurfaceChange(pos);
         }
+
+        this.surfaceHeightCache.invalidate(pos);
     }
 
-    public NativeImage getImage() {
-        return this.nativeImage;
+    /**
+     * Throw away everything cached about block states, so that it is looked up again against the current tags and config.
+     * Tiles that have already been sampled are kept.
+     */
+    public void invalidatePalette() {
+        this.palette.invalidate();
     }
 
-    public ResourceLocation getTextureLocation() {
-        return this.textureLocation;
+    /**
+     * Copy the shaded colors of the tile for a chunk, if we have one.
+     *
+     * @param chunkX X coordinate of the chunk.
+     * @param chunkZ Z coordinate of the chunk.
+     * @param out Array of at least CHUNK_SIZE * CHUNK_SIZE colors to copy into, in texture rows: indexed by (z * CHUNK_SIZE) + x.
+     * @return True if there was a tile for the chunk.
+     */
+    public boolean copyTileColors(int chunkX, int chunkZ, int[] out) {
+        return this.tiles.copyColors(chunkX, chunkZ, out);
+    }
+
+    /**
+     * Get the on-disk tile cache for the current server and dimension.
+     *
+     * @return Tile cache, or null if caching is disabled.
+     */
+    public TileCache getTileCache() {
+        return this.tileCache;
+    }
+
+    /**
+     * Get the on-disk tile cache, if it holds tiles of the slice of the map being shown - it doesn't for cave mode bands.
+     *
+     * @return Tile cache, or null if caching is disabled or the slice isn't cached.
+     */
+    @Nullable
+    public TileCache getSliceTileCache() {
+        return this.sliceCached ? this.tileCache : null;
+    }
+
+    public WorldMapAtlas getWorldMapAtlas() {
+        return this.worldMapAtlas;
+    }
+
+    /**
+     * Get the map texture for a level of detail.
+     *
+     * @param level Level of detail, from 0 (full resolution) to MapLayer.LEVEL_COUNT - 1.
+     * @return Map texture for the level.
+     */
+    public MapLayer getLayer(int level) {
+        return this.layers[level];
     }
 
     public ChunkPos getUpperLeftPosition() {
@@ -99,182 +625,602 @@ public class MapManager {
     }
 
     public void setCenterPosition(ChunkPos centerPosition) {
+        if (this.recorder != null) {
+            this.recorder.recordCenter(centerPosition);
+        }
+
         /* We actually care about the upper-left position, but it's easier to set the center position. We want this value
          * a lot, so we cache it in a field.
          */
-        this.upperLeftPosition = new ChunkPos(centerPosition.x - RADIUS, centerPosition.z - RADIUS);
+        this.upperLeftPosition = new ChunkPos(centerPosition.x - this.radius, centerPosition.z - this.radius);
+        this.tiles.setWindow(this.upperLeftPosition, this.getMapSize()); /* hidden slices have no window, so the one shown gets the budget first */
+
+        if (this.tileCache != null && this.sliceCached) {
+            this.tileCache.prefetch(this.upperLeftPosition.x - PREFETCH_MARGIN, this.upperLeftPosition.z - PREFETCH_MARGIN,
+                                    this.upperLeftPosition.x + this.getMapSize() + PREFETCH_MARGIN, this.upperLeftPosition.z + this.getMapSize() + PREFETCH_MARGIN);
+        }
+
+        /* Chunks that were already in a level's window keep their slot in its texture. Newly exposed chunks get
+         * whatever tile we still have for them until they are sampled again, and are blanked out otherwise.
+         */
+        for (final MapLayer layer : this.layers) {
+            final ChunkPos previousUpperLeft = layer.getUpperLeftPosition();
+
+            layer.setCenterPosition(centerPosition);
+
+            final ChunkPos upperLeft = layer.getUpperLeftPosition();
+
+            for (int chunkX = upperLeft.x; chunkX < upperLeft.x + layer.getWindowSize(); chunkX++) {
+                for (int chunkZ = upperLeft.z; chunkZ < upperLeft.z + layer.getWindowSize(); chunkZ++) {
+                    if (!layer.isInWindow(previousUpperLeft, chunkX, chunkZ)) {
+                        if (this.tiles.copyColors(chunkX, chunkZ, this.tileColors)) {
+                            layer.writeChunk(chunkX, chunkZ, this.tileColors, null);
+                        } else {
+                            layer.clearChunk(chunkX, chunkZ);
+                        }
+                    }
+                }
+            }
+        }
     }
 
-    private void rebuildChunk(ChunkAccess chunk) {
-        final ChunkPos chunkPos = chunk.getPos();
-        final int maxDistance = (RADIUS * 2) + 1;
-        final int xDistance = chunkPos.x - this.upperLeftPosition.x;
-        final int zDistance = chunkPos.z - this.upperLeftPosition.z;
+    /**
+     * Check whether the given chunk is covered by a map whose upper-left chunk is at the given position.
+     *
+     * @param upperLeft Upper-left chunk of the map.
+     * @param chunkX X coordinate of the chunk to check.
+     * @param chunkZ Z coordinate of the chunk to check.
+     * @return True if the chunk is on the map.
+     */
+    public boolean isOnMap(ChunkPos upperLeft, int chunkX, int chunkZ) {
+        final int xDistance = chunkX - upperLeft.x;
+        final int zDistance = chunkZ - upperLeft.z;
 
+        return xDistance >= 0 && xDistance < this.getMapSize() &&
+               zDistance >= 0 && zDistance < this.getMapSize();
+    }
+
+    private void rebuildChunk(SnapshotSource source, ChunkPos chunkPos, ColumnMask mask) {
         /* do not rebuild chunks outside our map - these can get in here if the upperLeftPosition changes
          * just before we rebuild chunks.
          */
-        if (xDistance < 0 || xDistance > maxDistance ||
-            zDistance < 0 || zDistance > maxDistance) {
+        if (!this.isOnMap(chunkPos)) {
             return;
         }
 
-        this.rebuildChunkColorMap(chunk);
-        this.rebuildChunkTexture(chunk.getPos());
+        final MapEvents.ChunkRebuild event = new MapEvents.ChunkRebuild();
+
+        event.begin();
+
+        final int band = this.slice;
+        final boolean sliced = band != SURFACE;
+        final int heightStamp = this.surfaceHeightCache.getStamp();
+        final ChunkSnapshot snapshot = source.takeSnapshot(chunkPos.x, chunkPos.z, sliced ? SurfaceHeightCache.getOriginY(band) : 0,
+                                                           sliced ? this.surfaceHeightCache.copyHeights(chunkPos, band) : null,
+                                                           this.refreshHashes.remove(chunkPos.toLong()));
+
+        if (snapshot == null) {
+            return;
+        }
+
+        if (this.recorder != null) {
+            this.recorder.recordSnapshot(snapshot);
+        }
+
+        /* Placeholder chunks the server hasn't sent yet would only put blank tiles in the cache, and cave mode bands aren't cached on disk */
+        final boolean persist = this.tileCache != null && !snapshot.isPlaceholder() && this.sliceCached;
+        final boolean hashed = this.sliceCached; /* the content hash doesn't cover cave mode bands, so none is worked out for them */
+
+        /* A request that is still in flight is about to be superseded, so its columns have to be covered by this one too. */
+        final PendingRebuild pending = this.pendingRebuilds.get(chunkPos);
+
+        if (pending != null) {
+            mask.or(pending.mask());
+        }
+
+        /* Only columns in the mask are sampled, the rest are taken from the tile we already have - which needs to exist. */
+        final MapTile baseTile = mask.isFull() ? null : this.tiles.get(chunkPos.x, chunkPos.z);
+
+        if (baseTile == null) {
+            mask.setAll();
+        }
+
+        final boolean async = DashMapConfig.CLIENT.asyncRebuild.get();
+        final int columns = mask.count();
+        final long pixelsBefore = this.tickPixels;
+        int blocksSampled = 0; /* blocks sampled by the worker pool are counted by the tick that applies them */
+
+        if (async) {
+            final long ticket = ++this.lastTicket;
+
+            this.pendingRebuilds.put(chunkPos, new PendingRebuild(ticket, mask));
+            this.getWorkerPool().execute(() -> {
+                final MapTile tile = this.sampler.sampleTile(snapshot, mask, baseTile);
+                final long contentHash = hashed ? snapshot.getContentHash() : 0; /* worked out here rather than on the tick thread */
+
+                this.finishedChunks.add(new SampledChunk(snapshot, band, heightStamp, ticket, mask, persist, contentHash, tile, this.sampler.getBlocksSampled()));
+            });
+        } else {
+            final MapTile tile = this.sampler.sampleTile(snapshot, mask, baseTile);
+
+            blocksSampled = this.sampler.getBlocksSampled();
+            this.applyChunkColors(new SampledChunk(snapshot, band, heightStamp, 0, mask, persist, hashed ? snapshot.getContentHash() : 0, tile, blocksSampled));
+        }
+
+        this.tickChunks++;
+        this.tickColumns += columns;
+
+        if (event.shouldCommit()) {
+            event.chunkX = chunkPos.x;
+            event.chunkZ = chunkPos.z;
+            event.columnsSampled = columns;
+            event.blocksSampled = blocksSampled;
+            event.pixelsWritten = (int) (this.tickPixels - pixelsBefore);
+            event.async = async;
+            event.commit();
+        }
     }
 
     /**
-     * Rebuild the section of the map texture corresponding to the given ChunkPos.
+     * Store a freshly sampled tile for a chunk, and write it to the map texture and the on-disk cache.
      *
-     * @param chunkPos ChunkPos to rebuild.
+     * @param sampled Sampled tile for the chunk.
      */
-    private void rebuildChunkTexture(ChunkPos chunkPos) {
-        /* Hmm, that's a bit weird - RANGE too big or view distance way too small? */
-        if (!this.colorMap.containsKey(chunkPos)) {
-            return;
+    private void applyChunkColors(SampledChunk sampled) {
+        final ChunkPos chunkPos = sampled.chunkPos();
+
+        this.putTile(chunkPos, sampled.tile(), sampled.contentHash(), sampled.mask());
+        this.sampledTileCount++;
+        this.tickBlocks += sampled.blocksSampled();
+
+        if (sampled.snapshot().isSliced()) {
+            this.surfaceHeightCache.store(chunkPos, sampled.band(), sampled.snapshot().getCeilingSurfaceHeights(), sampled.heightStamp());
         }
 
-        final int[][] colorData = this.colorMap.get(chunkPos);
+        if (sampled.persist() && this.tileCache != null) {
+            this.tileCache.store(chunkPos, sampled.contentHash(), sampled.tile());
+        }
+    }
 
-        /* The world coordinates represented by the upper-left corner of the image */
-        final int imageStartXWorld = this.upperLeftPosition.getMinBlockX(); // (this.centerPosition.x - RADIUS) * CHUNK_SIZE;
-        final int imageStartYWorld = this.upperLeftPosition.getMinBlockZ(); // (this.centerPosition.z - RADIUS) * CHUNK_SIZE;
+    /**
+     * Shade a tile and put it on the map. Since the shading of the northmost row of a tile depends on the heights of the
+     * tile to its north, the tile to the south of this one has that row shaded again as well.
+     *
+     * @param chunkPos Position of the chunk the tile belongs to.
+     * @param tile Unshaded tile for the chunk.
+     * @param contentHash Content hash of the chunk the tile was sampled from, or 0 if it isn't known.
+     * @param mask Columns of the tile that have changed - only these, and the columns whose shading depends on them, are written to the texture.
+     */
+    private void putTile(ChunkPos chunkPos, MapTile tile, long contentHash, ColumnMask mask) {
+        final ChunkPos southPos = new ChunkPos(chunkPos.x, chunkPos.z + 1);
 
-        for (int offsetX = 0; offsetX < CHUNK_SIZE; offsetX++) {
-            for (int offsetZ = 0; offsetZ < CHUNK_SIZE; offsetZ++) {
-                /* World X and Z that correspond to this block */
-                final int absoluteX = chunkPos.getBlockX(offsetX);
-                final int absoluteZ = chunkPos.getBlockZ(offsetZ);
+        this.tiles.put(chunkPos.x, chunkPos.z, tile, contentHash);
+        this.rebuildChunkTexture(chunkPos, mask.withShadingDependents());
+        this.worldMapAtlas.invalidateChunk(chunkPos.x, chunkPos.z);
 
-                /* Image X and Y that correspond to this block */
-                final int imageX = absoluteX - imageStartXWorld;
-                final int imageY = absoluteZ - imageStartYWorld;
+        if (this.tiles.contains(southPos.x, southPos.z)) {
+            /* Columns on the south edge of this tile are shaded against by the north edge of the next one */
+            final ColumnMask southMask = new ColumnMask();
 
-                this.nativeImage.setPixelRGBA(imageX, imageY, colorData[offsetX][offsetZ]);
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                if (mask.get(x, CHUNK_SIZE - 1)) {
+                    southMask.set(x, 0);
+                }
+            }
+
+            if (!southMask.isEmpty()) {
+                this.rebuildChunkTexture(southPos, southMask);
+                this.worldMapAtlas.invalidateChunk(southPos.x, southPos.z);
             }
         }
     }
 
     /**
-     * Rebuild the top-Y color map for a given Chunk.
+     * Apply the tiles for chunks that the worker pool has finished sampling since the last tick, throwing away
+     * anything that has been superseded by a newer request, or that is no longer on the map. Tiles that don't fit
+     * before the deadline stay queued for the next tick.
      *
-     * @param chunk Chunk to rebuild color map for.
+     * @param deadline System.nanoTime() value to stop applying tiles at.
      */
-    private void rebuildChunkColorMap(ChunkAccess chunk) {
-        ChunkPos chunkPos = chunk.getPos();
+    private void applyFinishedChunks(long deadline) {
+        SampledChunk sampled;
 
-        LevelAccessor level = chunk.getWorldForge();
-        int[][] colorData;
+        while (System.nanoTime() < deadline && (sampled = this.finishedChunks.poll()) != null) {
+            final PendingRebuild latest = this.pendingRebuilds.get(sampled.chunkPos());
 
-        if (this.colorMap.containsKey(chunkPos)) {
-            colorData = this.colorMap.get(chunkPos);
-        } else {
-            colorData = new int[CHUNK_SIZE][CHUNK_SIZE];
-            this.colorMap.put(chunkPos, colorData);
+            if (latest == null || latest.ticket() != sampled.ticket()) {
+                continue;
+            }
+
+            this.pendingRebuilds.remove(sampled.chunkPos());
+
+            if (!this.isOnMap(sampled.chunkPos())) {
+                continue;
+            }
+
+            this.applyChunkColors(sampled);
         }
+    }
 
-        BlockPos.MutableBlockPos blockPos = new BlockPos.MutableBlockPos(0, 0, 0); /* Reuse this to avoid constructing a lot of new objects */
+    /**
+     * Switch the map over to showing a different slice of the world. Every tile that slice has is written to the
+     * textures straight away, and chunks it has no tile for are blanked out and sampled.
+     *
+     * @param slice Y band to show, or SURFACE.
+     * @param hasCeiling Whether the dimension has a ceiling, in which case the bands are what the on-disk cache holds.
+     */
+    private void showSlice(int slice, boolean hasCeiling) {
+        this.sliceCached = slice == SURFACE || hasCeiling;
 
-        assert level != null;
+        if (slice == this.slice) {
+            return;
+        }
 
-        for (int offsetX = 0; offsetX < CHUNK_SIZE; offsetX++) {
-            for (int offsetZ = 0; offsetZ < CHUNK_SIZE; offsetZ++) {
-                int absoluteX = chunkPos.getBlockX(offsetX);
-                int absoluteZ = chunkPos.getBlockZ(offsetZ);
+        /* Chunks still waiting to be rebuilt are out of date in the slice being left, so they are sampled again on coming back */
+        this.rebuildOrder.clear();
+        this.dirtyChunks.copyKeys(this.rebuildOrder);
 
-                /* Use the height of this block and the adjacent block to calculate a brightness for a shadow effect. */
-                blockPos.set(absoluteX, 0, absoluteZ - 1);
-                int adjacentTopY = this.getRealTopY(level, blockPos);
+        for (int i = 0; i < this.rebuildOrder.size(); i++) {
+            this.tiles.remove(ChunkPos.getX(this.rebuildOrder.getLong(i)), ChunkPos.getZ(this.rebuildOrder.getLong(i)));
+        }
+
+        for (final ChunkPos chunkPos : this.pendingRebuilds.keySet()) {
+            this.tiles.remove(chunkPos.x, chunkPos.z);
+        }
 
-                blockPos.set(absoluteX, 0, absoluteZ);
-                int thisTopY = this.getRealTopY(level, blockPos);
+        this.dirtyChunks.clear();
+        this.pendingRebuilds.clear(); /* results that are still in flight will now be thrown away when they arrive */
+        this.slice = slice;
+        this.tiles.clearWindow();
+        this.tiles = slice == SURFACE ? this.surfaceTiles : this.getBandTiles(slice);
+        this.tiles.setWindow(this.upperLeftPosition, this.getMapSize());
+        this.worldMapAtlas.clear(); /* its entries were built from the slice being left */
 
-                MaterialColor.Brightness brightness;
+        for (final MapLayer layer : this.layers) {
+            final ChunkPos upperLeft = layer.getUpperLeftPosition();
 
-                if (thisTopY == adjacentTopY) {
-                    brightness = MaterialColor.Brightness.NORMAL;
-                } else if (thisTopY > adjacentTopY) {
-                    brightness = MaterialColor.Brightness.HIGH;
-                } else {
-                    brightness = MaterialColor.Brightness.LOW;
+            for (int chunkX = upperLeft.x; chunkX < upperLeft.x + layer.getWindowSize(); chunkX++) {
+                for (int chunkZ = upperLeft.z; chunkZ < upperLeft.z + layer.getWindowSize(); chunkZ++) {
+                    if (this.tiles.copyColors(chunkX, chunkZ, this.tileColors)) {
+                        layer.writeChunk(chunkX, chunkZ, this.tileColors, null);
+                    } else {
+                        layer.clearChunk(chunkX, chunkZ);
+                    }
                 }
+            }
+        }
+
+        for (int chunkX = this.upperLeftPosition.x; chunkX < this.upperLeftPosition.x + this.getMapSize(); chunkX++) {
+            for (int chunkZ = this.upperLeftPosition.z; chunkZ < this.upperLeftPosition.z + this.getMapSize(); chunkZ++) {
+                if (!this.tiles.contains(chunkX, chunkZ)) {
+                    final ChunkPos chunkPos = new ChunkPos(chunkX, chunkZ);
+
+                    /* A cached tile can be shown in the meantime, but may be out of date by now */
+                    if (!this.isCachedTileReady(chunkPos)) {
+                        this.awaitingPlaceholders.add(chunkPos.toLong());
+                    } else {
+                        final TileCache.CachedTile cachedTile = this.loadCachedTile(chunkPos);
+
+                        if (cachedTile != null) {
+                            this.putTile(chunkPos, cachedTile.tile(), cachedTile.contentHash(), ColumnMask.full());
+                        }
+                    }
 
-                colorData[offsetX][offsetZ] = level.getBlockState(blockPos).getMapColor(level, blockPos).calculateRGBColor(brightness);
+                    this.dirtyChunks.markAll(chunkPos.toLong());
+                }
             }
         }
     }
 
     /**
-     * Get top Y at the given position in the world, excluding blocks that lack a map color.
-     * In addition, if we are dealing with a pool of water, this will return the Y of the lowest water source in the pool.
-     *
-     * @param level World we are working in.
-     * @param pos BlockPos to get the top Y at.
-     * @return Top Y.
-     */
-    private int getRealTopY(LevelAccessor level, BlockPos.MutableBlockPos pos) {
-        int color;
-        int topY = this.getInitialTopY(level, pos);
-        int fluidBlockCount = 0;
-        boolean keepLooking;
-
-        /* If we encountered fluid, we want to return the height of the lowest fluid. This is used so the shadow effect takes into account
-         * the depth of the fluid.
-         */
-        do {
-            pos.setY(topY);
-
-            BlockState blockState = level.getBlockState(pos);
-            color = blockState.getMapColor(level, pos).col;
-
-            if (color == 0) { /* Sometimes the official top Y doesn't have a map color (eg: double tall grass), so just keep going down until we find one. */
-                keepLooking = true;
-            } else if (blockState.getFluidState().isSource()) {
-                keepLooking = true;
-                fluidBlockCount++;
-            } else { /* These blocks look bad on the map, and this could be replaced with a better, more dynamic calculation. */
-                keepLooking = blockState.getBlock() == Blocks.GRASS || blockState.getBlock() == Blocks.TALL_GRASS;
+     * Get the tiles of a Y band, making room for them if the band hasn't been shown recently.
+     */
+    private TileStore getBandTiles(int band) {
+        int index = 0;
+
+        while (index < this.bandCount && this.bandSlices[index] != band) {
+            index++;
+        }
+
+        final TileStore tiles;
+
+        if (index < this.bandCount) {
+            tiles = this.bandTiles[index];
+        } else {
+            tiles = new TileStore(this.tileBudget);
+
+            /* Once every entry is in use, the least recently shown band makes way */
+            if (this.bandCount == MAX_BAND_SLICES) {
+                this.tileBudget.remove(this.bandTiles[0]);
+                index = 0;
+            } else {
+                index = this.bandCount++;
             }
+        }
+
+        /* Move the band to the end, as the most recently shown */
+        System.arraycopy(this.bandSlices, index + 1, this.bandSlices, index, this.bandCount - index - 1);
+        System.arraycopy(this.bandTiles, index + 1, this.bandTiles, index, this.bandCount - index - 1);
+        this.bandSlices[this.bandCount - 1] = band;
+        this.bandTiles[this.bandCount - 1] = tiles;
+
+        return tiles;
+    }
+
+    /**
+     * Check whether loadCachedTile can answer for a chunk straight away, and if not, have the cache get ready to.
+     */
+    private boolean isCachedTileReady(ChunkPos chunkPos) {
+        return this.tileCache == null || !this.sliceCached || this.tileCache.prepare(chunkPos);
+    }
+
+    /**
+     * Load the tile for a chunk from the on-disk cache, which has tiles of the surface, or of whichever band was last
+     * shown in a dimension with a ceiling. Never touches the disk, chunks whose region isn't open yet have no tile.
+     *
+     * @return Cached tile, or null if there isn't one or a cave mode band is being shown.
+     */
+    @Nullable
+    private TileCache.CachedTile loadCachedTile(ChunkPos chunkPos) {
+        return this.tileCache == null || !this.sliceCached ? null : this.tileCache.loadIfOpen(chunkPos);
+    }
 
-            topY--;
-        } while (keepLooking && topY >= level.getMinBuildHeight());
+    /**
+     * Refresh the chunks that were waiting for their cache region to be opened, now that it is. Chunks that have left
+     * the map in the meantime are forgotten, and refreshed when the map moves over them again.
+     */
+    private void refreshAwaitingChunks() {
+        if (!this.awaitingChunks.isEmpty()) {
+            for (final ObjectIterator<Long2LongMap.Entry> it = this.awaitingChunks.long2LongEntrySet().fastIterator(); it.hasNext(); ) {
+                final Long2LongMap.Entry entry = it.next();
+                final ChunkPos chunkPos = new ChunkPos(entry.getLongKey());
+                final long contentHash = entry.getLongValue(); /* the entry is reused by the iterator */
 
-        if (fluidBlockCount > 0) {
-            pos.setY(pos.getY() + 1);
+                if (!this.isOnMap(chunkPos)) {
+                    it.remove();
+                } else if (this.isCachedTileReady(chunkPos)) {
+                    it.remove();
+                    this.refreshChunkNow(chunkPos, false, contentHash);
+                }
+            }
         }
 
-        return pos.getY();
+        if (!this.awaitingPlaceholders.isEmpty()) {
+            for (final LongIterator it = this.awaitingPlaceholders.iterator(); it.hasNext(); ) {
+                final ChunkPos chunkPos = new ChunkPos(it.nextLong());
+
+                if (!this.isOnMap(chunkPos)) {
+                    it.remove();
+                } else if (this.isCachedTileReady(chunkPos)) {
+                    it.remove();
+                    this.refreshChunkNow(chunkPos, true, 0);
+                }
+            }
+        }
     }
 
     /**
-     * Get the top Y-level to begin searching for a valid "surface" block at.
-     * In the overworld, this is just the surface according to the LevelAccessor, but in the nether we have to do a bit of manual work.
+     * Drop the tile of a chunk from every slice that isn't being shown, or only from those a block change could show up in.
      *
-     * @param levelAccessor LevelAccessor for the world.
-     * @param blockPos Position to find the top Y-level at.
-     * @return Top y-level, possibly guessed based on heuristics.
-     */
-    private int getInitialTopY(LevelAccessor levelAccessor, BlockPos.MutableBlockPos blockPos) {
-        if (levelAccessor.dimensionType().hasCeiling()) {
-            /* I do not like this static call reaching into the Minecraft instance */
-            final int originY = Math.round((float) Minecraft.getInstance().player.getEyeY()) + 3;
-
-            /* do a manual search for the first solid block around where the player is standing.
-             * this is absolutely not very performant, but unfortunately as far as I know it is the best we can do.
-             * It could be improved by caching the height map and updating it as necessary.
-             */
-            for (int y = originY; y >= levelAccessor.getMinBuildHeight(); y--) {
-                blockPos.setY(y);
+     * @param chunkX X coordinate of the chunk.
+     * @param chunkZ Z coordinate of the chunk.
+     * @param pos Position of the block that changed, or null if the whole chunk did.
+     */
+    private void invalidateHiddenSlices(int chunkX, int chunkZ, @Nullable BlockPos pos) {
+        if (this.slice != SURFACE) {
+            invalidateHiddenSlice(SURFACE, this.surfaceTiles, chunkX, chunkZ, pos);
+        }
+
+        for (int i = 0; i < this.bandCount; i++) {
+            if (this.bandSlices[i] != this.slice) {
+                invalidateHiddenSlice(this.bandSlices[i], this.bandTiles[i], chunkX, chunkZ, pos);
+            }
+        }
+    }
+
+    /**
+     * Drop the tile containing a changed block from a slice that isn't being shown, if the change could show up in it.
+     * Changes beneath what the slice shows, or above the top of a band's window, can't. A chunk that changed as a whole
+     * always loses its tile.
+     */
+    private static void invalidateHiddenSlice(int slice, TileStore tiles, int chunkX, int chunkZ, @Nullable BlockPos pos) {
+        if (pos == null) {
+            tiles.remove(chunkX, chunkZ);
+            return;
+        }
+
+        final int height = tiles.getHeight(chunkX, chunkZ, pos.getX() & 15, pos.getZ() & 15);
+
+        if (height == Integer.MIN_VALUE) {
+            return;
+        }
 
-                if (!levelAccessor.getBlockState(blockPos).isAir()) {
-                    return y;
+        final boolean affected;
+
+        if (slice == SURFACE) {
+            affected = pos.getY() >= height - 1;
+        } else {
+            final int originY = SurfaceHeightCache.getOriginY(slice);
+
+            /* Walls show as their top block, but digging into one opens it up */
+            affected = pos.getY() <= originY && pos.getY() >= Math.min(height - 1, originY - SurfaceHeightCache.WINDOW_HEIGHT);
+        }
+
+        if (affected) {
+            tiles.remove(chunkX, chunkZ);
+        }
+    }
+
+    /**
+     * Put chunks that have loaded since the last tick on the map, if they are on it. Anything that isn't on the map yet
+     * is refreshed when the map moves over it instead.
+     */
+    private void refreshArrivedChunks(Level level) {
+        if (this.arrivedChunks.isEmpty()) {
+            return;
+        }
+
+        if (this.upperLeftPosition != null && level == this.loadedLevel) {
+            for (final LongIterator it = this.arrivedChunks.iterator(); it.hasNext(); ) {
+                final long chunkKey = it.nextLong();
+                final int chunkX = ChunkPos.getX(chunkKey);
+                final int chunkZ = ChunkPos.getZ(chunkKey);
+
+                if (this.isOnMap(this.upperLeftPosition, chunkX, chunkZ)) {
+                    this.refreshChunk(level.getChunk(chunkX, chunkZ));
                 }
             }
+        }
+
+        this.arrivedChunks.clear();
+    }
+
+    private boolean isOnMap(ChunkPos chunkPos) {
+        return this.isOnMap(this.upperLeftPosition, chunkPos.x, chunkPos.z);
+    }
+
+    /**
+     * Have the worker pool rebuilt with the current workerThreads setting, once the work already handed to it is done.
+     * Safe to call from any thread, the pool is rebuilt on the tick thread the next time a chunk is handed off.
+     */
+    public void invalidateWorkerPool() {
+        this.workerPoolStale = true;
+    }
+
+    /**
+     * Stop the worker pool, throwing away any chunks still waiting for a worker thread. It is started again the next time
+     * a chunk is handed off.
+     */
+    public void shutdownWorkerPool() {
+        if (this.workerPool != null) {
+            this.workerPool.shutdownNow();
+            this.workerPool = null;
+        }
+    }
+
+    private Executor getWorkerPool() {
+        if (this.workerPoolStale) {
+            this.workerPoolStale = false;
+
+            /* Work already queued still finishes on the old threads, and its results are applied as usual */
+            if (this.workerPool != null) {
+                this.workerPool.shutdown();
+                this.workerPool = null;
+            }
+        }
+
+        if (this.workerPool == null) {
+            final int threads = DashMapConfig.CLIENT.workerThreads.get();
+            final AtomicInteger threadCount = new AtomicInteger();
+
+            /* The queue is bounded so that a flood of dirty chunks can't pile up unbounded snapshots in memory -
+             * once it's full, the tick thread just samples the chunk itself.
+             */
+            this.workerPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE), runnable -> {
+                final Thread thread = new Thread(runnable, "DashMap Worker #" + threadCount.incrementAndGet());
+
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
 
-            return levelAccessor.getMaxBuildHeight();
+        return this.workerPool;
+    }
+
+    /**
+     * Rebuild the given columns of the sections of the map textures corresponding to the given ChunkPos, at every level
+     * of detail whose window the chunk is in.
+     *
+     * @param chunkPos ChunkPos to rebuild.
+     * @param mask Columns to rebuild.
+     */
+    private void rebuildChunkTexture(ChunkPos chunkPos, ColumnMask mask) {
+        /* Hmm, that's a bit weird - RANGE too big or view distance way too small? */
+        if (!this.tiles.copyColors(chunkPos.x, chunkPos.z, this.tileColors)) {
+            return;
+        }
+
+        this.tickPixels += mask.count(); /* counted at full resolution, as every level is built from the same columns */
+
+        for (final MapLayer layer : this.layers) {
+            if (layer.isInWindow(chunkPos.x, chunkPos.z)) {
+                layer.writeChunk(chunkPos.x, chunkPos.z, this.tileColors, mask);
+            }
         }
+    }
 
-        /* Not the nether, just use the height map we already have. */
-        return levelAccessor.getHeight(Heightmap.Types.WORLD_SURFACE, blockPos.getX(), blockPos.getZ());
+    /**
+     * Takes the snapshots that dirty chunks are rebuilt from: the client level while playing, or a recording when
+     * replaying a session.
+     */
+    public interface SnapshotSource {
+        /**
+         * Check whether the dimension the chunks are in has a ceiling.
+         */
+        boolean hasCeiling();
+
+        /**
+         * Take a snapshot of a chunk.
+         *
+         * @param chunkX X coordinate of the chunk.
+         * @param chunkZ Z coordinate of the chunk.
+         * @param originY Y to start searching down from in dimensions with a ceiling.
+         * @param ceilingSurfaceY Known surface heights in dimensions with a ceiling, which the snapshot takes ownership of.
+         * @param contentHash Content hash of the chunk if it was worked out when the chunk came onto the map, or 0.
+         * @return Snapshot of the chunk, or null if the chunk isn't available and shouldn't be rebuilt.
+         */
+        @Nullable
+        ChunkSnapshot takeSnapshot(int chunkX, int chunkZ, int originY, short[] ceilingSurfaceY, long contentHash);
+    }
+
+    /**
+     * Takes snapshots of the chunks of a client level.
+     */
+    private static final class LevelSnapshotSource implements SnapshotSource {
+        private Level level;
+
+        @Override
+        public boolean hasCeiling() {
+            return this.level.dimensionType().hasCeiling();
+        }
+
+        @Override
+        public ChunkSnapshot takeSnapshot(int chunkX, int chunkZ, int originY, short[] ceilingSurfaceY, long contentHash) {
+            /* A chunk that has unloaded since it was marked dirty is sampled again when it loads */
+            final ChunkAccess chunk = this.level.getChunk(chunkX, chunkZ, ChunkStatus.FULL, false);
+
+            return chunk == null ? null : ChunkSnapshot.of(chunk, originY, ceilingSurfaceY, contentHash);
+        }
+    }
+
+    /**
+     * Map tile for a chunk that has been sampled by the worker pool.
+     *
+     * @param snapshot Snapshot the data was sampled from.
+     * @param band Y band that surface heights in the snapshot belong to.
+     * @param heightStamp Stamp of the SurfaceHeightCache from when the snapshot was taken.
+     * @param ticket Ticket of the request that produced this data.
+     * @param mask Columns that were sampled - the rest were carried over from the previous tile.
+     * @param persist Whether the data should be written to the on-disk cache.
+     * @param contentHash Content hash of the chunk at the time it was snapshotted, or 0 if it isn't known.
+     * @param tile Unshaded map tile for the chunk.
+     * @param blocksSampled Number of block states looked at to sample the tile.
+     */
+    private record SampledChunk(ChunkSnapshot snapshot, int band, int heightStamp, long ticket, ColumnMask mask, boolean persist, long contentHash, MapTile tile,
+                                int blocksSampled) {
+        public ChunkPos chunkPos() {
+            return this.snapshot.getPos();
+        }
+    }
+
+    /**
+     * A sampling request that has been handed to the worker pool.
+     *
+     * @param ticket Ticket of the request.
+     * @param mask Columns the request will sample.
+     */
+    private record PendingRebuild(long ticket, ColumnMask mask) {
     }
 }
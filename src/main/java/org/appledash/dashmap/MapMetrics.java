@@ -0,0 +1,102 @@
+package org.appledash.dashmap;
+
+import java.util.List;
+
+/**
+ * Rolling history of what the map's hot paths cost, shown by the metrics overlay. Every series keeps its last
+ * HISTORY_SIZE samples - one per tick for rebuilding, one per frame for uploading and rendering.
+ *
+ * Samples are only ever added on the client thread, so nothing here is synchronized.
+ */
+public final class MapMetrics {
+    public static final int HISTORY_SIZE = 120;
+
+    public static final Series TICK_TIME = new Series("Rebuild tick", true);
+    public static final Series TICK_CHUNKS = new Series("Chunks rebuilt", false);
+    public static final Series TICK_COLUMNS = new Series("Columns sampled", false);
+    public static final Series TICK_BLOCKS = new Series("Blocks sampled", false);
+    public static final Series TICK_PIXELS = new Series("Pixels written", false);
+    public static final Series QUEUE_DEPTH = new Series("Queue depth", false);
+    public static final Series UPLOAD_TIME = new Series("Texture upload", true);
+    public static final Series UPLOAD_PIXELS = new Series("Pixels uploaded", false);
+    public static final Series RENDER_TIME = new Series("Minimap render", true);
+    public static final Series MARKER_INDEX_TIME = new Series("Marker index", true);
+    public static final Series MARKERS_DRAWN = new Series("Markers drawn", false);
+
+    public static final List<Series> ALL = List.of(TICK_TIME, TICK_CHUNKS, TICK_COLUMNS, TICK_BLOCKS, TICK_PIXELS, QUEUE_DEPTH, UPLOAD_TIME,
+                                                   UPLOAD_PIXELS, RENDER_TIME, MARKER_INDEX_TIME, MARKERS_DRAWN);
+
+    private MapMetrics() {
+    }
+
+    /**
+     * The last HISTORY_SIZE values of one measurement, in a ring buffer.
+     */
+    public static final class Series {
+        private final String name;
+        private final boolean nanos; /* values are durations in nanoseconds, shown in milliseconds */
+        private final long[] samples = new long[HISTORY_SIZE];
+        private int next;  /* index the next sample goes in, which is also the oldest sample once the history is full */
+        private int count; /* number of samples, up to HISTORY_SIZE */
+
+        private Series(String name, boolean nanos) {
+            this.name = name;
+            this.nanos = nanos;
+        }
+
+        public void add(long value) {
+            this.samples[this.next] = value;
+            this.next = (this.next + 1) % HISTORY_SIZE;
+            this.count = Math.min(this.count + 1, HISTORY_SIZE);
+        }
+
+        /**
+         * Get a sample by age.
+         *
+         * @param index Index of the sample, from 0 for the oldest up to getCount() - 1 for the newest.
+         * @return Value of the sample.
+         */
+        public long get(int index) {
+            return this.samples[(this.next - this.count + index + HISTORY_SIZE) % HISTORY_SIZE];
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+
+        public long getMax() {
+            long max = 0;
+
+            for (int i = 0; i < this.count; i++) {
+                max = Math.max(max, this.samples[i]);
+            }
+
+            return max;
+        }
+
+        public double getMean() {
+            if (this.count == 0) {
+                return 0;
+            }
+
+            long total = 0;
+
+            for (int i = 0; i < this.count; i++) {
+                total += this.samples[i];
+            }
+
+            return (double) total / this.count;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Format a value of this series for display.
+         */
+        public String format(double value) {
+            return this.nanos ? String.format("%.2f ms", value / 1.0e6) : String.format("%.0f", value);
+        }
+    }
+}
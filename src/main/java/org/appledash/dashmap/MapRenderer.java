@@ -1,7 +1,7 @@
 package org.appledash.dashmap;
 
 import com.mojang.blaze3d.pipeline.RenderTarget;
-import com.mojang.blaze3d.platform.NativeImage;
+import com.mojang.blaze3d.pipeline.TextureTarget;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.vertex.*;
 import com.mojang.math.Matrix4f;
@@ -19,13 +19,48 @@ public class MapRenderer {
     private static final int HEADING_COLOUR = 0xFF000000; /* Colour of the heading indicator triangle on the map */
     private static final int CIRCLE_RADIUS = 40;          /* Radius of the main map circle */
     private static final int BORDER_THICKNESS = 2;        /* Thickness of the border around the main map circle */
+    private static final int CIRCLE_SEGMENTS = 100;       /* Number of segments that make up the map circles */
+    private static final int MIN_ZOOM = -1;               /* Zoom levels are powers of two of blocks per pixel, from 1:2 ... */
+    private static final int MAX_ZOOM = 4;                /* ... up to 16:1 */
+    private static final int COMPOSITE_SIZE = (CIRCLE_RADIUS + BORDER_THICKNESS) * 2; /* Size of the cached minimap along each edge, in GUI pixels */
+    private static final double MOVE_THRESHOLD = 0.5;     /* Distance in screen pixels the map has to move by before the cached minimap is redrawn */
+    private static final float ROTATION_THRESHOLD = 0.5F; /* Angle in degrees the player has to turn by before the cached minimap is redrawn */
+    private static final float MARKER_RADIUS = 1.5F;      /* Half the width of an entity marker, in GUI pixels */
+    private static final int MARKER_OUTLINE_COLOUR = 0xFF000000; /* Colour of the outline around entity markers */
+    private final CoordinateLabel coordinateLabel = new CoordinateLabel();
+    private final Matrix4f shapeModelView = new Matrix4f(); /* model view matrix of the shape being drawn, reused */
     private boolean initialized;
-
-    public void renderMap(Minecraft mc, MapManager mapManager, PoseStack matrices) {
+    private int zoom;                                     /* Each pixel of the map on screen covers 2^zoom blocks */
+
+    /* Geometry that never changes, kept on the GPU */
+    private VertexBuffer borderCircle;
+    private VertexBuffer maskCircle;
+    private VertexBuffer headingTriangle;
+
+    /* The minimap as last drawn into the offscreen target, and what it was drawn from */
+    private TextureTarget composite;
+    private boolean compositeValid;
+    private int compositeLevel;
+    private int compositeZoom;
+    private double compositeGuiScale;
+    private double compositePlayerX;
+    private double compositePlayerZ;
+    private float compositeHeadRot;
+
+    public void renderMap(Minecraft mc, MapManager mapManager, EntityMarkers entityMarkers, PoseStack matrices) {
+        final MapEvents.MinimapRender event = new MapEvents.MinimapRender();
+        final long start = System.nanoTime();
+        boolean redrawn = true; /* without the cached minimap, it is drawn from scratch every frame */
+
+        event.begin();
         this.initIfRequired(mc, mapManager);
 
+        /* Use the most detailed level whose pixels are no smaller than a pixel on screen */
+        final int level = Mth.clamp(this.zoom, 0, MapLayer.LEVEL_COUNT - 1);
+        final MapLayer layer = mapManager.getLayer(level);
+
         /* Texture is only uploaded if it has changed */
-        mapManager.uploadTexture();
+        final boolean textureChanged = layer.uploadTexture();
 
         float viewportWidth = mc.getWindow().getGuiScaledWidth();
 
@@ -35,8 +70,52 @@ public class MapRenderer {
         /* Translate to the middle of where the map circle should be on screen */
         matrices.translate(viewportWidth - CIRCLE_RADIUS - 10, 10 + CIRCLE_RADIUS, 0);
 
+        if (DashMapConfig.CLIENT.cachedMinimap.get()) {
+            redrawn = textureChanged || this.isCompositeOutdated(mc, level);
+
+            if (redrawn) {
+                this.redrawComposite(mc, layer, level);
+            }
+
+            this.drawComposite(matrices);
+        } else {
+            this.drawMinimap(mc, layer, level, matrices);
+        }
+
+        /* Entities move on their own, so markers are drawn over the minimap every frame rather than into the cached copy */
+        final int markersDrawn = this.drawMarkers(mc, entityMarkers, matrices);
+
+        /* Player coordinates beneath the map, for convenience - this could be improved by scaling the text as the text gets wider, so it doesn't go off-screen. */
+        matrices.translate(0, CIRCLE_RADIUS + 5, 0);
+        matrices.scale(1.0F / (float) mc.getWindow().getGuiScale(), 1.0F / (float) mc.getWindow().getGuiScale(), 1.0F);
+        this.coordinateLabel.update(mc.player.getX(), mc.player.getZ());
+        GuiComponent.drawCenteredString(matrices, mc.font, this.coordinateLabel, 0, 0, TEXT_COLOUR);
+
+        matrices.popPose();
+
+        MapMetrics.RENDER_TIME.add(System.nanoTime() - start);
+        MapMetrics.MARKERS_DRAWN.add(markersDrawn);
+
+        if (event.shouldCommit()) {
+            event.level = level;
+            event.redrawn = redrawn;
+            event.markersDrawn = markersDrawn;
+            event.commit();
+        }
+    }
+
+    /**
+     * Draw the minimap - border, map, compass and heading indicator - centered around the current model position of the
+     * given PoseStack.
+     *
+     * @param mc Minecraft instance.
+     * @param layer Level of detail of the map to draw from.
+     * @param level Level number of the layer.
+     * @param matrices PoseStack used for positioning.
+     */
+    private void drawMinimap(Minecraft mc, MapLayer layer, int level, PoseStack matrices) {
         /* Draw the border circle (map will be rendered on top of it) */
-        this.fillCircle(matrices, CIRCLE_RADIUS + BORDER_THICKNESS, 100, BORDER_COLOUR);
+        this.drawShape(matrices, this.borderCircle);
 
         /* Set up the stencil buffer appropriately. The next thing we render with these settings will set the pixels of the
          * stencil buffer to 1 wherever there was a pixel rendered.
@@ -53,7 +132,7 @@ public class MapRenderer {
         RenderSystem.clear(GL11.GL_STENCIL_BUFFER_BIT, true);
 
         /* Render a circle into the stencil buffer, forming a mask through which the minimap texture will show. */
-        this.fillCircle(matrices, CIRCLE_RADIUS, 100, 0xFFFFFFFF);
+        this.drawShape(matrices, this.maskCircle);
 
         /* Revert the settings we made earlier, so that subsequent render calls don't affect the stencil buffer and instead render on the screen. */
         RenderSystem.stencilFunc(GL11.GL_EQUAL, 1, 0xFF);
@@ -64,18 +143,31 @@ public class MapRenderer {
         matrices.pushPose();
         matrices.mulPose(Vector3f.ZP.rotationDegrees(180.0F - mc.player.yHeadRot));
 
-        /* Offset the map based on the player's position relative to the upper-left chunk of the map, so the center of the image on screen is where the player is. */
-        double deltaX = mc.player.getX() - mapManager.getUpperLeftPosition().getMinBlockX();
-        double deltaZ = mc.player.getZ() - mapManager.getUpperLeftPosition().getMinBlockZ();
+        /* From here on, a unit is a block */
+        final float pixelsPerBlock = (float) Math.pow(2, -this.zoom);
+        matrices.scale(pixelsPerBlock, pixelsPerBlock, 1.0F);
+
+        /* Offset the map based on the player's position relative to the upper-left chunk of the level's window, so the center of the image on screen is where the player is. */
+        double deltaX = mc.player.getX() - layer.getUpperLeftPosition().getMinBlockX();
+        double deltaZ = mc.player.getZ() - layer.getUpperLeftPosition().getMinBlockZ();
 
         matrices.translate(-deltaX, -deltaZ, 0);
 
+        /* And from here on, a unit is a pixel of the level's texture */
+        matrices.scale(1 << level, 1 << level, 1.0F);
+
         /* Now render the actual map to the screen. Since GL_STENCIL_TEST is on, only pixels where the
          * stencil buffer is 1 will actually end up on the screen. End result: Circular map!
+         *
+         * The texture is a ring buffer indexed by world position, so the upper-left chunk of the map isn't necessarily at
+         * the upper-left of the image. Offsetting the texture coordinates by its slot, and letting them wrap around (the
+         * texture is uploaded with GL_REPEAT), puts everything back in the right place.
          */
-        final NativeImage image = mapManager.getImage();
-        RenderSystem.setShaderTexture(0, mapManager.getTextureLocation());
-        GuiComponent.blit(matrices, 0, 0, 0, 0, image.getWidth(), image.getHeight(), image.getWidth(), image.getHeight());
+        final int textureOffsetX = layer.getSlotX(layer.getUpperLeftPosition().x);
+        final int textureOffsetY = layer.getSlotY(layer.getUpperLeftPosition().z);
+        final int windowPixels = layer.getWindowPixels();
+        RenderSystem.setShaderTexture(0, layer.getTextureLocation());
+        GuiComponent.blit(matrices, 0, 0, textureOffsetX, textureOffsetY, windowPixels, windowPixels, MapLayer.TEXTURE_SIZE, MapLayer.TEXTURE_SIZE);
 
         matrices.popPose();
 
@@ -94,15 +186,156 @@ public class MapRenderer {
         this.drawStringOnCircle(matrices, mc.font, "S", CIRCLE_RADIUS - 1, southAngle, TEXT_COLOUR);
 
         /* Heading indicator triangle */
-        this.fillTriangle(matrices, 5, 8, HEADING_COLOUR);
+        this.drawShape(matrices, this.headingTriangle);
+    }
 
-        /* Player coordinates beneath the map, for convenience - this could be improved by scaling the text as the text gets wider, so it doesn't go off-screen. */
-        matrices.translate(0, CIRCLE_RADIUS + 5, 0);
-        matrices.scale(1.0F / (float) mc.getWindow().getGuiScale(), 1.0F / (float) mc.getWindow().getGuiScale(), 1.0F);
-        final String playerCoords = String.format("X: %.2f Z: %.2f", mc.player.getX(), mc.player.getZ());
-        GuiComponent.drawCenteredString(matrices, mc.font, playerCoords, 0, 0, TEXT_COLOUR);
+    /**
+     * Check whether the cached minimap no longer matches what would be drawn now. Small movements and turns are ignored,
+     * so that standing still or walking slowly doesn't redraw the minimap every frame.
+     */
+    private boolean isCompositeOutdated(Minecraft mc, int level) {
+        if (!this.compositeValid || this.compositeLevel != level || this.compositeZoom != this.zoom || this.compositeGuiScale != mc.getWindow().getGuiScale()) {
+            return true;
+        }
 
-        matrices.popPose();
+        final double screenPixelsPerBlock = Math.pow(2, -this.zoom) * mc.getWindow().getGuiScale();
+        final double movedPixels = Math.max(Math.abs(mc.player.getX() - this.compositePlayerX), Math.abs(mc.player.getZ() - this.compositePlayerZ)) * screenPixelsPerBlock;
+
+        return movedPixels >= MOVE_THRESHOLD || Math.abs(mc.player.yHeadRot - this.compositeHeadRot) >= ROTATION_THRESHOLD;
+    }
+
+    /**
+     * Draw the minimap into the offscreen target, at the full resolution of the screen.
+     */
+    private void redrawComposite(Minecraft mc, MapLayer layer, int level) {
+        final double guiScale = mc.getWindow().getGuiScale();
+        final int compositePixels = Mth.ceil(COMPOSITE_SIZE * guiScale);
+
+        if (this.composite == null) {
+            this.composite = new TextureTarget(compositePixels, compositePixels, true, Minecraft.ON_OSX);
+            this.composite.enableStencil();
+            this.composite.setClearColor(0.0F, 0.0F, 0.0F, 0.0F);
+        } else if (this.composite.width != compositePixels) {
+            this.composite.resize(compositePixels, compositePixels, Minecraft.ON_OSX);
+        }
+
+        final Matrix4f savedProjection = RenderSystem.getProjectionMatrix();
+        final PoseStack compositeMatrices = new PoseStack();
+
+        this.composite.clear(Minecraft.ON_OSX);
+        this.composite.bindWrite(true);
+        RenderSystem.setProjectionMatrix(Matrix4f.orthographic(0.0F, COMPOSITE_SIZE, 0.0F, COMPOSITE_SIZE, 1000.0F, 3000.0F));
+        compositeMatrices.translate(COMPOSITE_SIZE / 2.0F, COMPOSITE_SIZE / 2.0F, 0);
+
+        this.drawMinimap(mc, layer, level, compositeMatrices);
+
+        RenderSystem.setProjectionMatrix(savedProjection);
+        mc.getMainRenderTarget().bindWrite(true);
+
+        this.compositeValid = true;
+        this.compositeLevel = level;
+        this.compositeZoom = this.zoom;
+        this.compositeGuiScale = guiScale;
+        this.compositePlayerX = mc.player.getX();
+        this.compositePlayerZ = mc.player.getZ();
+        this.compositeHeadRot = mc.player.yHeadRot;
+    }
+
+    /**
+     * Draw the cached minimap as a single quad, centered around the current model position of the given PoseStack.
+     */
+    private void drawComposite(PoseStack matrices) {
+        final Matrix4f matrix = matrices.last().pose();
+        final BufferBuilder bufferBuilder = Tesselator.getInstance().getBuilder();
+        final float halfSize = COMPOSITE_SIZE / 2.0F;
+
+        RenderSystem.setShader(GameRenderer::getPositionTexShader);
+        RenderSystem.setShaderTexture(0, this.composite.getColorTextureId());
+        RenderSystem.enableBlend();
+        RenderSystem.defaultBlendFunc();
+        bufferBuilder.begin(VertexFormat.Mode.QUADS, DefaultVertexFormat.POSITION_TEX);
+
+        /* Framebuffer textures have their origin at the bottom left, so V is flipped */
+        bufferBuilder.vertex(matrix, -halfSize, halfSize, 0.0F).uv(0.0F, 0.0F).endVertex();
+        bufferBuilder.vertex(matrix, halfSize, halfSize, 0.0F).uv(1.0F, 0.0F).endVertex();
+        bufferBuilder.vertex(matrix, halfSize, -halfSize, 0.0F).uv(1.0F, 1.0F).endVertex();
+        bufferBuilder.vertex(matrix, -halfSize, -halfSize, 0.0F).uv(0.0F, 1.0F).endVertex();
+
+        bufferBuilder.end();
+        BufferUploader.end(bufferBuilder);
+        RenderSystem.disableBlend();
+    }
+
+    /**
+     * Draw a marker for each entity within the map circle, all in one draw call, centered around the current model
+     * position of the given PoseStack. Markers stay upright rather than turning with the map.
+     *
+     * @return Number of markers drawn.
+     */
+    private int drawMarkers(Minecraft mc, EntityMarkers entityMarkers, PoseStack matrices) {
+        final float pixelsPerBlock = (float) Math.pow(2, -this.zoom);
+        final double playerX = mc.player.getX();
+        final double playerZ = mc.player.getZ();
+        final int markerCount = entityMarkers.query(playerX, playerZ, (CIRCLE_RADIUS - MARKER_RADIUS) / pixelsPerBlock);
+
+        if (markerCount == 0) {
+            return 0;
+        }
+
+        /* Same rotation as the map itself, worked out here so that it only applies to where markers go and not their shape */
+        final float angle = (float) Math.toRadians(180.0F - mc.player.yHeadRot);
+        final float cos = Mth.cos(angle);
+        final float sin = Mth.sin(angle);
+        final Matrix4f matrix = matrices.last().pose();
+        final BufferBuilder bufferBuilder = Tesselator.getInstance().getBuilder();
+
+        RenderSystem.setShader(GameRenderer::getPositionColorShader);
+        RenderSystem.enableBlend();
+        RenderSystem.defaultBlendFunc();
+        bufferBuilder.begin(VertexFormat.Mode.QUADS, DefaultVertexFormat.POSITION_COLOR);
+
+        for (int i = 0; i < markerCount; i++) {
+            final int entry = entityMarkers.getResult(i);
+            final float deltaX = (float) (entityMarkers.getX(entry) - playerX) * pixelsPerBlock;
+            final float deltaZ = (float) (entityMarkers.getZ(entry) - playerZ) * pixelsPerBlock;
+            final float x = (deltaX * cos) - (deltaZ * sin);
+            final float y = (deltaX * sin) + (deltaZ * cos);
+
+            addSquare(bufferBuilder, matrix, x, y, MARKER_RADIUS + 0.5F, MARKER_OUTLINE_COLOUR);
+            addSquare(bufferBuilder, matrix, x, y, MARKER_RADIUS, entityMarkers.getCategory(entry).getColour());
+        }
+
+        bufferBuilder.end();
+        BufferUploader.end(bufferBuilder);
+        RenderSystem.disableBlend();
+
+        return markerCount;
+    }
+
+    private static void addSquare(BufferBuilder bufferBuilder, Matrix4f matrix, float x, float y, float halfSize, int colour) {
+        final int alpha = colour >>> 24;
+        final int red = (colour >> 16) & 0xFF;
+        final int green = (colour >> 8) & 0xFF;
+        final int blue = colour & 0xFF;
+
+        bufferBuilder.vertex(matrix, x - halfSize, y + halfSize, 0.0F).color(red, green, blue, alpha).endVertex();
+        bufferBuilder.vertex(matrix, x + halfSize, y + halfSize, 0.0F).color(red, green, blue, alpha).endVertex();
+        bufferBuilder.vertex(matrix, x + halfSize, y - halfSize, 0.0F).color(red, green, blue, alpha).endVertex();
+        bufferBuilder.vertex(matrix, x - halfSize, y - halfSize, 0.0F).color(red, green, blue, alpha).endVertex();
+    }
+
+    /**
+     * Show more detail on the map, if it isn't already zoomed in all the way.
+     */
+    public void zoomIn() {
+        this.zoom = Math.max(this.zoom - 1, MIN_ZOOM);
+    }
+
+    /**
+     * Show more of the map, if it isn't already zoomed out all the way.
+     */
+    public void zoomOut() {
+        this.zoom = Math.min(this.zoom + 1, MAX_ZOOM);
     }
 
     /**
@@ -124,23 +357,33 @@ public class MapRenderer {
     }
 
     /**
-     * Fill a circle on-screen, centered around the current model position of the PoseStack.
+     * Draw a shape that was built ahead of time, centered around the current model position of the given PoseStack.
      *
      * @param matrices PoseStack used for positioning.
+     * @param shape Vertex buffer holding the shape.
+     */
+    private void drawShape(PoseStack matrices, VertexBuffer shape) {
+        this.shapeModelView.load(RenderSystem.getModelViewMatrix());
+        this.shapeModelView.multiply(matrices.last().pose());
+        shape.drawWithShader(this.shapeModelView, RenderSystem.getProjectionMatrix(), GameRenderer.getPositionColorShader());
+    }
+
+    /**
+     * Build a filled circle, centered around the origin.
+     *
      * @param radius Circle radius, in pixels.
      * @param segments Number of segments that make up the circle.
      * @param colour ARGB colour of the circle.
+     * @return Vertex buffer holding the circle.
      */
-    private void fillCircle(PoseStack matrices, int radius, int segments, int colour) {
+    private static VertexBuffer buildCircle(int radius, int segments, int colour) {
         float red = (float)(colour >> 24 & 0xFF) / 255.0F;
         float green = (float)(colour >> 16 & 0xFF) / 255.0F;
         float blue = (float)(colour >> 8 & 0xFF) / 255.0F;
         float alpha = (float)(colour & 0xFF) / 255.0F;
 
-        final Matrix4f matrix = matrices.last().pose();
         final BufferBuilder bufferBuilder = Tesselator.getInstance().getBuilder();
 
-        RenderSystem.setShader(GameRenderer::getPositionColorShader);
         bufferBuilder.begin(VertexFormat.Mode.TRIANGLE_FAN, DefaultVertexFormat.POSITION_COLOR);
 
         for (int i = 0; i <= segments; i++) {
@@ -148,50 +391,59 @@ public class MapRenderer {
             float x = radius * Mth.cos(angle);
             float y = radius * Mth.sin(angle);
 
-            bufferBuilder.vertex(matrix, x, y, 0.0F).color(green, blue, alpha, red).endVertex();
+            bufferBuilder.vertex(x, y, 0.0F).color(green, blue, alpha, red).endVertex();
         }
 
-        bufferBuilder.end();
-        BufferUploader.end(bufferBuilder);
+        return upload(bufferBuilder);
     }
 
     /**
-     * Fill an isosceles triangle on-screen, centered around the current model position of the given PoseStack.
+     * Build a filled isosceles triangle, centered around the origin.
      *
-     * @param matrices PoseStack used for positioning.
      * @param base Base width of the triangle, in pixels.
      * @param height Height of the triangle, in pixels.
      * @param colour ARGB colour of the triangle.
+     * @return Vertex buffer holding the triangle.
      */
-    private void fillTriangle(PoseStack matrices, float base, float height, int colour) {
+    private static VertexBuffer buildTriangle(float base, float height, int colour) {
         float red = (float)(colour >> 24 & 0xFF) / 255.0F;
         float green = (float)(colour >> 16 & 0xFF) / 255.0F;
         float blue = (float)(colour >> 8 & 0xFF) / 255.0F;
         float alpha = (float)(colour & 0xFF) / 255.0F;
 
-        final Matrix4f matrix = matrices.last().pose();
         final BufferBuilder bufferBuilder = Tesselator.getInstance().getBuilder();
         final float baseOverTwo = base / 2.0F;
         final float heightOverTwo = height / 2.0F;
 
-        RenderSystem.setShader(GameRenderer::getPositionColorShader);
         bufferBuilder.begin(VertexFormat.Mode.TRIANGLES, DefaultVertexFormat.POSITION_COLOR);
 
-        bufferBuilder.vertex(matrix, 0, -heightOverTwo, 0).color(green, blue, alpha, red).endVertex();
-        bufferBuilder.vertex(matrix, -baseOverTwo, heightOverTwo, 0).color(green, blue, alpha, red).endVertex();
-        bufferBuilder.vertex(matrix, baseOverTwo, heightOverTwo, 0).color(green, blue, alpha, red).endVertex();
+        bufferBuilder.vertex(0, -heightOverTwo, 0).color(green, blue, alpha, red).endVertex();
+        bufferBuilder.vertex(-baseOverTwo, heightOverTwo, 0).color(green, blue, alpha, red).endVertex();
+        bufferBuilder.vertex(baseOverTwo, heightOverTwo, 0).color(green, blue, alpha, red).endVertex();
+
+        return upload(bufferBuilder);
+    }
+
+    private static VertexBuffer upload(BufferBuilder bufferBuilder) {
+        final VertexBuffer vertexBuffer = new VertexBuffer();
 
         bufferBuilder.end();
-        BufferUploader.end(bufferBuilder);
+        vertexBuffer.upload(bufferBuilder);
+
+        return vertexBuffer;
     }
 
     /**
-     * Initialize the renderer if it needs to be initialized. This registers the map texture with Minecraft, and enables
-     * the stencil buffer if necessary.
+     * Initialize the renderer if it needs to be initialized. This registers the map textures with Minecraft, builds the
+     * static geometry, and enables the stencil buffer if necessary.
      */
     private void initIfRequired(Minecraft mc, MapManager mapManager) {
         if (!this.initialized) {
-            mapManager.registerTexture(mc.textureManager);
+            mapManager.registerTextures(mc.textureManager);
+
+            this.borderCircle = buildCircle(CIRCLE_RADIUS + BORDER_THICKNESS, CIRCLE_SEGMENTS, BORDER_COLOUR);
+            this.maskCircle = buildCircle(CIRCLE_RADIUS, CIRCLE_SEGMENTS, 0xFFFFFFFF);
+            this.headingTriangle = buildTriangle(5, 8, HEADING_COLOUR);
 
             /* We use the stencil buffer when rendering the map, so make sure it's enabled */
             final RenderTarget renderTarget = mc.getMainRenderTarget();
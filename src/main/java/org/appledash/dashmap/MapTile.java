@@ -0,0 +1,57 @@
+package org.appledash.dashmap;
+
+import javax.annotation.Nullable;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Sampled map data for a single chunk: the height of the surface in every column and the map color of the block there.
+ * Tiles are handed from the sampler to the TileStore and the on-disk TileCache, which shade them when they are put on
+ * the map - shading only depends on the stored heights, so it never needs the world again.
+ *
+ * Both arrays are indexed by (x * CHUNK_SIZE) + z, and never change once the tile is created.
+ */
+public final class MapTile {
+    private final short[] heights;    /* surface height of each column */
+    private final byte[] colorIds;    /* MaterialColor id of the surface block of each column */
+
+    public MapTile(short[] heights, byte[] colorIds) {
+        this.heights = heights;
+        this.colorIds = colorIds;
+    }
+
+    public short[] getHeights() {
+        return this.heights;
+    }
+
+    public byte[] getColorIds() {
+        return this.colorIds;
+    }
+
+    /**
+     * Shade this tile on its own, outside of the TileStore. Safe to use from any thread.
+     *
+     * @param northTile Tile of the chunk directly to the north, or null if there isn't one.
+     * @param out Array of at least CHUNK_SIZE * CHUNK_SIZE colors to shade into, in texture rows: indexed by (z * CHUNK_SIZE) + x.
+     */
+    public void shade(@Nullable MapTile northTile, int[] out) {
+        for (int z = 0; z < CHUNK_SIZE; z++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                final int index = (x * CHUNK_SIZE) + z;
+                final int thisTopY = this.heights[index];
+                final int adjacentTopY;
+
+                if (z > 0) {
+                    adjacentTopY = this.heights[index - 1];
+                } else if (northTile != null) {
+                    adjacentTopY = northTile.heights[index + CHUNK_SIZE - 1];
+                } else {
+                    adjacentTopY = thisTopY;
+                }
+
+                out[(z * CHUNK_SIZE) + x] = MapColorPalette.getRGB(MapColorPalette.getShadedColor(this.colorIds[index] & MapColorPalette.COLOR_ID_MASK,
+                                                                                                   MapColorPalette.getBrightness(thisTopY, adjacentTopY)));
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.appledash.dashmap;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import com.mojang.blaze3d.vertex.BufferUploader;
+import com.mojang.blaze3d.vertex.DefaultVertexFormat;
+import com.mojang.blaze3d.vertex.PoseStack;
+import com.mojang.blaze3d.vertex.Tesselator;
+import com.mojang.blaze3d.vertex.VertexFormat;
+import com.mojang.math.Matrix4f;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.GameRenderer;
+
+/**
+ * Debug overlay showing a rolling graph of every series in MapMetrics, with its mean and maximum over the history.
+ * Toggled with a key binding, for telling at a glance whether a hitch comes from the map.
+ *
+ * All the bars and backgrounds go in one draw call, so the overlay doesn't skew the numbers it shows by much.
+ */
+public class MetricsOverlay {
+    private static final int TEXT_COLOUR = 0xFFFFFFFF;       /* Colour of text rendered on the overlay */
+    private static final int BACKGROUND_COLOUR = 0x90000000; /* Colour behind each graph */
+    private static final int BAR_COLOUR = 0xFF40C040;        /* Colour of the bars of each graph */
+    private static final int MARGIN = 5;                     /* Distance from the edge of the screen, and between graphs */
+    private static final int GRAPH_HEIGHT = 20;              /* Height of each graph, in GUI pixels */
+
+    private boolean visible;
+
+    public void toggle() {
+        this.visible = !this.visible;
+    }
+
+    public boolean isVisible() {
+        return this.visible;
+    }
+
+    public void render(Minecraft mc, PoseStack matrices) {
+        final int rowHeight = mc.font.lineHeight + GRAPH_HEIGHT + MARGIN;
+        final Matrix4f matrix = matrices.last().pose();
+        final BufferBuilder bufferBuilder = Tesselator.getInstance().getBuilder();
+
+        RenderSystem.setShader(GameRenderer::getPositionColorShader);
+        RenderSystem.enableBlend();
+        RenderSystem.defaultBlendFunc();
+        bufferBuilder.begin(VertexFormat.Mode.QUADS, DefaultVertexFormat.POSITION_COLOR);
+
+        for (int i = 0; i < MapMetrics.ALL.size(); i++) {
+            final MapMetrics.Series series = MapMetrics.ALL.get(i);
+            final int graphTop = MARGIN + (i * rowHeight) + mc.font.lineHeight;
+            final int graphBottom = graphTop + GRAPH_HEIGHT;
+            final long max = series.getMax();
+
+            addRect(bufferBuilder, matrix, MARGIN, graphTop, MARGIN + MapMetrics.HISTORY_SIZE, graphBottom, BACKGROUND_COLOUR);
+
+            /* Bars are scaled to the largest sample in the history, so spikes stand out against the usual cost */
+            for (int sample = 0; sample < series.getCount() && max > 0; sample++) {
+                final int barHeight = (int) Math.ceil((double) series.get(sample) * GRAPH_HEIGHT / max);
+                final int barX = MARGIN + MapMetrics.HISTORY_SIZE - series.getCount() + sample;
+
+                addRect(bufferBuilder, matrix, barX, graphBottom - barHeight, barX + 1, graphBottom, BAR_COLOUR);
+            }
+        }
+
+        bufferBuilder.end();
+        BufferUploader.end(bufferBuilder);
+        RenderSystem.disableBlend();
+
+        for (int i = 0; i < MapMetrics.ALL.size(); i++) {
+            final MapMetrics.Series series = MapMetrics.ALL.get(i);
+            final String text = String.format("%s: avg %s, max %s", series.getName(), series.format(series.getMean()), series.format(series.getMax()));
+
+            mc.font.drawShadow(matrices, text, MARGIN, MARGIN + (i * rowHeight), TEXT_COLOUR);
+        }
+    }
+
+    private static void addRect(BufferBuilder bufferBuilder, Matrix4f matrix, int x0, int y0, int x1, int y1, int colour) {
+        final int alpha = colour >>> 24;
+        final int red = (colour >> 16) & 0xFF;
+        final int green = (colour >> 8) & 0xFF;
+        final int blue = colour & 0xFF;
+
+        bufferBuilder.vertex(matrix, x0, y1, 0.0F).color(red, green, blue, alpha).endVertex();
+        bufferBuilder.vertex(matrix, x1, y1, 0.0F).color(red, green, blue, alpha).endVertex();
+        bufferBuilder.vertex(matrix, x1, y0, 0.0F).color(red, green, blue, alpha).endVertex();
+        bufferBuilder.vertex(matrix, x0, y0, 0.0F).color(red, green, blue, alpha).endVertex();
+    }
+}
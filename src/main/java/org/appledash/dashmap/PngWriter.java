@@ -0,0 +1,163 @@
+package org.appledash.dashmap;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an RGBA PNG one row at a time, so that an image far larger than would fit in memory can be written while only
+ * ever holding a single row of it. Rows are filtered with the Sub filter, which suits the large flat areas of a map,
+ * and compressed into IDAT chunks as they come in.
+ *
+ * Not thread safe - each image is written by a single thread.
+ */
+public final class PngWriter implements Closeable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int IDAT_SIZE = 64 * 1024; /* Size of the compressed data in each IDAT chunk */
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final byte FILTER_SUB = 1;
+
+    private final DataOutputStream output;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc = new CRC32();
+    private final byte[] rawRow;      /* unfiltered bytes of the row being written */
+    private final byte[] filteredRow; /* filter type byte followed by the filtered row, as compressed */
+    private final byte[] idat = new byte[IDAT_SIZE];
+    private int idatLength;
+    private int rowsWritten;
+
+    /**
+     * Start writing an image, writing its header straight away.
+     *
+     * @param output Stream to write to, which is closed along with the writer.
+     * @param width Width of the image, in pixels.
+     * @param height Height of the image, in pixels.
+     */
+    public PngWriter(OutputStream output, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0 || (long) width * BYTES_PER_PIXEL + 1 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't write a " + width + "x" + height + " PNG");
+        }
+
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+        this.width = width;
+        this.height = height;
+        this.rawRow = new byte[width * BYTES_PER_PIXEL];
+        this.filteredRow = new byte[1 + (width * BYTES_PER_PIXEL)];
+
+        final byte[] header = new byte[13];
+
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8;  /* bit depth */
+        header[9] = 6;  /* colour type: truecolour with alpha */
+        header[10] = 0; /* compression method: deflate */
+        header[11] = 0; /* filter method: adaptive, with a filter type per row */
+        header[12] = 0; /* interlace method: none */
+
+        this.output.write(SIGNATURE);
+        this.writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Write the next row of the image.
+     *
+     * @param pixels Colours of the row, as used by NativeImage (ABGR).
+     * @param offset Index of the first pixel of the row in the array.
+     */
+    public void writeRow(int[] pixels, int offset) throws IOException {
+        if (this.rowsWritten == this.height) {
+            throw new IllegalStateException("All " + this.height + " rows have already been written");
+        }
+
+        for (int x = 0; x < this.width; x++) {
+            final int pixel = pixels[offset + x];
+            final int index = x * BYTES_PER_PIXEL;
+
+            this.rawRow[index] = (byte) pixel;
+            this.rawRow[index + 1] = (byte) (pixel >> 8);
+            this.rawRow[index + 2] = (byte) (pixel >> 16);
+            this.rawRow[index + 3] = (byte) (pixel >>> 24);
+        }
+
+        /* Sub filter: each byte is stored as the difference from the same channel of the pixel to its left */
+        this.filteredRow[0] = FILTER_SUB;
+
+        for (int i = 0; i < this.rawRow.length; i++) {
+            this.filteredRow[i + 1] = (byte) (this.rawRow[i] - (i < BYTES_PER_PIXEL ? 0 : this.rawRow[i - BYTES_PER_PIXEL]));
+        }
+
+        this.deflater.setInput(this.filteredRow);
+
+        while (!this.deflater.needsInput()) {
+            this.deflate();
+        }
+
+        this.rowsWritten++;
+    }
+
+    /**
+     * Finish the image and close the stream. Every row has to have been written by now.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.rowsWritten != this.height) {
+                throw new IllegalStateException("Only " + this.rowsWritten + " of " + this.height + " rows were written");
+            }
+
+            this.deflater.finish();
+
+            while (!this.deflater.finished()) {
+                this.deflate();
+            }
+
+            if (this.idatLength > 0) {
+                this.writeChunk("IDAT", this.idat, this.idatLength);
+            }
+
+            this.writeChunk("IEND", this.idat, 0);
+        } finally {
+            this.deflater.end();
+            this.output.close();
+        }
+    }
+
+    /**
+     * Compress as much as fits into the current IDAT chunk, writing the chunk out once it is full.
+     */
+    private void deflate() throws IOException {
+        this.idatLength += this.deflater.deflate(this.idat, this.idatLength, IDAT_SIZE - this.idatLength);
+
+        if (this.idatLength == IDAT_SIZE) {
+            this.writeChunk("IDAT", this.idat, this.idatLength);
+            this.idatLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+
+        this.crc.reset();
+        this.crc.update(typeBytes);
+        this.crc.update(data, 0, length);
+
+        this.output.writeInt(length);
+        this.output.write(typeBytes);
+        this.output.write(data, 0, length);
+        this.output.writeInt((int) this.crc.getValue());
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
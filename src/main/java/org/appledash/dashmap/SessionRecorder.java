@@ -0,0 +1,212 @@
+package org.appledash.dashmap;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.level.ChunkPos;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records everything the MapManager is asked to do during a session, along with the chunk snapshots it takes, so that
+ * the session can be replayed headlessly later to reproduce and profile map rebuilding without a client.
+ *
+ * A recording is a gzipped stream of events, each an int length followed by a one byte event code and its arguments,
+ * written the same way as network packets. Snapshots are recorded as they are taken, and each player tick ends with a TICK event, so a
+ * replayer that applies every event up to and including a TICK sees exactly what the client did by the end of that tick.
+ */
+public class SessionRecorder {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss.SSS");
+    static final int MAGIC = 0x444D5243;  /* "DMRC" */
+    static final int VERSION = 2;
+
+    static final int EVENT_CLEAR = 0;              /* no arguments */
+    static final int EVENT_RADIUS = 1;             /* varint radius */
+    static final int EVENT_CENTER = 2;             /* long chunk position */
+    static final int EVENT_REFRESH = 3;            /* long chunk position, boolean placeholder, long content hash */
+    static final int EVENT_REMOVE = 4;             /* long chunk position */
+    static final int EVENT_CHUNK_DIRTY = 5;        /* long chunk position */
+    static final int EVENT_BLOCK_DIRTY = 6;        /* block position */
+    static final int EVENT_SURFACE_CHANGE = 7;     /* block position */
+    static final int EVENT_SNAPSHOT = 8;           /* chunk snapshot */
+    static final int EVENT_TICK = 9;               /* double eye Y, boolean has ceiling */
+    static final int EVENT_CAVE_MODE = 10;         /* boolean cave mode */
+
+    private final Path file;
+    private final FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.buffer()); /* event being written, reused */
+    private DataOutputStream output; /* null once closed, or if writing failed */
+
+    private SessionRecorder(Path file, DataOutputStream output) {
+        this.file = file;
+        this.output = output;
+    }
+
+    /**
+     * Start a new recording in the given directory, named after the current time and the dimension. A recording that
+     * already exists is never overwritten, the new one gets a number on the end of its name instead.
+     *
+     * @param directory Directory to put the recording in.
+     * @param dimensionName Name of the dimension being recorded.
+     * @return Recorder, or null if the recording couldn't be created.
+     */
+    public static SessionRecorder create(Path directory, String dimensionName) {
+        final String baseName = LocalDateTime.now().format(FILE_NAME_FORMAT) + "_" + dimensionName.replaceAll("[^A-Za-z0-9._-]", "_");
+        Path file = directory.resolve(baseName + ".dmrec");
+
+        try {
+            Files.createDirectories(directory);
+
+            OutputStream fileOutput = null;
+
+            for (int attempt = 1; fileOutput == null; attempt++) {
+                try {
+                    fileOutput = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (FileAlreadyExistsException e) {
+                    file = directory.resolve(baseName + "-" + attempt + ".dmrec");
+                }
+            }
+
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(fileOutput)));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+
+            LOGGER.info("Recording map session to {}", file);
+
+            return new SessionRecorder(file, output);
+        } catch (IOException e) {
+            LOGGER.error("Failed to create map session recording {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the directory that recordings are kept in.
+     *
+     * @param rootDirectory Root directory that all DashMap data lives in.
+     * @return Directory for recordings.
+     */
+    public static Path getDirectory(Path rootDirectory) {
+        return rootDirectory.resolve("recordings");
+    }
+
+    public void recordClear() {
+        this.buffer.writeByte(EVENT_CLEAR);
+        this.finishEvent();
+    }
+
+    public void recordRadius(int radius) {
+        this.buffer.writeByte(EVENT_RADIUS);
+        this.buffer.writeVarInt(radius);
+        this.finishEvent();
+    }
+
+    public void recordCenter(ChunkPos centerPosition) {
+        this.buffer.writeByte(EVENT_CENTER);
+        this.buffer.writeLong(centerPosition.toLong());
+        this.finishEvent();
+    }
+
+    public void recordRefresh(ChunkPos chunkPos, boolean placeholder, long contentHash) {
+        this.buffer.writeByte(EVENT_REFRESH);
+        this.buffer.writeLong(chunkPos.toLong());
+        this.buffer.writeBoolean(placeholder);
+        this.buffer.writeLong(contentHash);
+        this.finishEvent();
+    }
+
+    public void recordRemove(ChunkPos chunkPos) {
+        this.buffer.writeByte(EVENT_REMOVE);
+        this.buffer.writeLong(chunkPos.toLong());
+        this.finishEvent();
+    }
+
+    public void recordChunkDirty(ChunkPos chunkPos) {
+        this.buffer.writeByte(EVENT_CHUNK_DIRTY);
+        this.buffer.writeLong(chunkPos.toLong());
+        this.finishEvent();
+    }
+
+    public void recordBlockDirty(BlockPos pos) {
+        this.buffer.writeByte(EVENT_BLOCK_DIRTY);
+        this.buffer.writeBlockPos(pos);
+        this.finishEvent();
+    }
+
+    public void recordSurfaceChange(BlockPos pos) {
+        this.buffer.writeByte(EVENT_SURFACE_CHANGE);
+        this.buffer.writeBlockPos(pos);
+        this.finishEvent();
+    }
+
+    public void recordSnapshot(ChunkSnapshot snapshot) {
+        this.buffer.writeByte(EVENT_SNAPSHOT);
+        snapshot.write(this.buffer);
+        this.finishEvent();
+    }
+
+    public void recordCaveMode(boolean caveMode) {
+        this.buffer.writeByte(EVENT_CAVE_MODE);
+        this.buffer.writeBoolean(caveMode);
+        this.finishEvent();
+    }
+
+    public void recordTick(double eyeY, boolean hasCeiling) {
+        this.buffer.writeByte(EVENT_TICK);
+        this.buffer.writeDouble(eyeY);
+        this.buffer.writeBoolean(hasCeiling);
+        this.finishEvent();
+    }
+
+    /**
+     * Finish the recording, flushing everything that has been recorded to disk.
+     */
+    public void close() {
+        if (this.output == null) {
+            return;
+        }
+
+        try {
+            this.output.close();
+            LOGGER.info("Finished recording map session to {}", this.file);
+        } catch (IOException e) {
+            LOGGER.error("Failed to finish map session recording {}", this.file, e);
+        }
+
+        this.output = null;
+    }
+
+    /**
+     * Write the event in the buffer out to the recording. If that fails, the rest of the session isn't recorded, since
+     * a recording with events missing from the middle couldn't be replayed faithfully anyway.
+     */
+    private void finishEvent() {
+        if (this.output == null) {
+            this.buffer.clear();
+            return;
+        }
+
+        try {
+            this.output.writeInt(this.buffer.readableBytes());
+            this.buffer.readBytes(this.output, this.buffer.readableBytes());
+        } catch (IOException e) {
+            LOGGER.error("Failed to write to map session recording {}, stopping recording", this.file, e);
+            this.close();
+        }
+
+        this.buffer.clear();
+    }
+}
@@ -0,0 +1,155 @@
+package org.appledash.dashmap;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.Arrays;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Cache of the surface height of every column in dimensions with a ceiling (ie: the nether) and in cave mode, where there
+ * is no heightmap we can use and the surface has to be found by searching down from around the player's eyes.
+ *
+ * Heights are only valid for the Y band the player was in when they were found, and are kept up to date by invalidating
+ * single columns as blocks change, rather than by searching the whole chunk again. Only used from the client thread.
+ */
+public class SurfaceHeightCache {
+    public static final short UNKNOWN = Short.MIN_VALUE; /* Height of a column that needs to be searched for */
+    public static final int BAND_SIZE = 16;              /* Number of blocks of player Y that share the same cached heights and tiles */
+    public static final int WINDOW_HEIGHT = BAND_SIZE + 3; /* Number of blocks down from the origin Y that walls are looked through for open space */
+
+    private final Long2ObjectOpenHashMap<Entry> entries = new Long2ObjectOpenHashMap<>(); /* keyed by ChunkPos.toLong(), so block changes can be looked up without a ChunkPos */
+    private int lastStamp; /* stamp of the most recent invalidation, counting up from 0 */
+
+    /**
+     * Get the Y band that the given eye Y falls into.
+     */
+    public static int getBand(double eyeY) {
+        return Math.floorDiv((int) Math.floor(eyeY), BAND_SIZE);
+    }
+
+    /**
+     * Get the Y to start searching down from for the surface, for every column in the given band.
+     * This is a few blocks above the top of the band, so that the block the player is looking over is always included.
+     */
+    public static int getOriginY(int band) {
+        return (band * BAND_SIZE) + BAND_SIZE + 3;
+    }
+
+    /**
+     * Get a copy of the cached heights for a chunk in the given band, indexed by (z * CHUNK_SIZE) + x.
+     * Columns that aren't known are UNKNOWN. Heights cached for another band are forgotten, so that block changes from
+     * now on are judged against the band that is being searched.
+     *
+     * @param chunkPos Position of the chunk.
+     * @param band Y band the heights are needed for.
+     * @return Copy of the heights, safe to hand to another thread.
+     * @see #getStamp()
+     */
+    public short[] copyHeights(ChunkPos chunkPos, int band) {
+        Entry entry = this.entries.get(chunkPos.toLong());
+
+        if (entry == null || entry.band != band) {
+            final short[] heights = new short[CHUNK_SIZE * CHUNK_SIZE];
+
+            Arrays.fill(heights, UNKNOWN);
+            entry = new Entry(band, heights, entry == null ? null : entry.invalidatedAt);
+            this.entries.put(chunkPos.toLong(), entry);
+        }
+
+        return entry.heights.clone();
+    }
+
+    /**
+     * Get the stamp to store heights copied now with, so that columns invalidated while they are being searched aren't
+     * overwritten by what the search found.
+     */
+    public int getStamp() {
+        return this.lastStamp;
+    }
+
+    /**
+     * Store the heights found for a chunk in the given band, replacing whatever was cached for the chunk before - except
+     * for columns that have been invalidated since the heights were copied, which stay UNKNOWN.
+     *
+     * @param chunkPos Position of the chunk.
+     * @param band Y band the heights were found in.
+     * @param heights Heights found, which the cache takes ownership of.
+     * @param stamp Stamp from when the heights were copied.
+     */
+    public void store(ChunkPos chunkPos, int band, short[] heights, int stamp) {
+        final Entry entry = this.entries.get(chunkPos.toLong());
+        final int[] invalidatedAt = entry == null ? null : entry.invalidatedAt;
+
+        if (invalidatedAt != null) {
+            for (int i = 0; i < heights.length; i++) {
+                if (invalidatedAt[i] - stamp > 0) { /* compared by difference, so the stamps can wrap around */
+                    heights[i] = UNKNOWN;
+                }
+            }
+        }
+
+        this.entries.put(chunkPos.toLong(), new Entry(band, heights, invalidatedAt));
+    }
+
+    /**
+     * Forget the cached height for the column containing the given block, if the block change could have moved the surface.
+     * Changes beneath the cached surface, or above where we start searching, can't affect it - except that a wall shows
+     * as the block at the origin, and digging anywhere into it within the window can open it up.
+     *
+     * @param pos Position of the block that changed.
+     */
+    public void invalidate(BlockPos pos) {
+        final Entry entry = this.entries.get(ChunkPos.asLong(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getZ())));
+
+        if (entry == null) {
+            return;
+        }
+
+        final int index = ((pos.getZ() & 15) * CHUNK_SIZE) + (pos.getX() & 15);
+        final short height = entry.heights[index];
+        final int originY = getOriginY(entry.band);
+        final int lowestY;
+
+        if (height > originY) {
+            lowestY = Integer.MIN_VALUE; /* nothing solid was found under the origin, so anything placed beneath it is the surface */
+        } else if (height == originY) {
+            lowestY = originY - WINDOW_HEIGHT; /* a wall, solid all the way through the window */
+        } else {
+            lowestY = height;
+        }
+
+        if (height == UNKNOWN || (pos.getY() >= lowestY && pos.getY() <= originY)) {
+            entry.heights[index] = UNKNOWN;
+
+            if (entry.invalidatedAt == null) {
+                entry.invalidatedAt = new int[CHUNK_SIZE * CHUNK_SIZE];
+            }
+
+            entry.invalidatedAt[index] = ++this.lastStamp;
+        }
+    }
+
+    public void remove(ChunkPos chunkPos) {
+        this.entries.remove(chunkPos.toLong());
+    }
+
+    public void clear() {
+        this.entries.clear();
+    }
+
+    private static final class Entry {
+        private final int band;
+        private final short[] heights;
+        private int[] invalidatedAt; /* stamp of when each column was last invalidated, null until one is */
+
+        private Entry(int band, short[] heights, int[] invalidatedAt) {
+            this.band = band;
+            this.heights = heights;
+            this.invalidatedAt = invalidatedAt;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package org.appledash.dashmap;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.levelgen.Heightmap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Persistent on-disk store of map tiles for a single dimension of a single server, so that already explored
+ * terrain can be shown immediately on login, and chunks that haven't changed don't need to be sampled again.
+ *
+ * Chunks are grouped into regions of 32x32 chunks, each stored in its own memory-mapped file as fixed-size records.
+ * Only the heights and color ids of a tile are stored, since the shading is recomputed when a tile is put on the map.
+ * Writes are queued and applied to the mapped files by a background flusher thread. The tick thread never touches the
+ * disk either: it asks for the regions it needs with prepare, and they are opened on the flusher thread.
+ */
+public class TileCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int REGION_SIZE = 32;                   /* Number of chunks along each edge of a region */
+    private static final int PIXEL_COUNT = CHUNK_SIZE * CHUNK_SIZE;
+    private static final int HEADER_SIZE = 16;                   /* long content hash, int present flag, int reserved */
+    private static final int RECORD_SIZE = HEADER_SIZE + (PIXEL_COUNT * Short.BYTES) + PIXEL_COUNT; /* header, heights, color ids */
+    private static final int REGION_FILE_SIZE = REGION_SIZE * REGION_SIZE * RECORD_SIZE;
+    private static final int MAX_OPEN_REGIONS = 64;              /* Number of region files kept mapped at once */
+    private static final int MAX_READER_REGIONS = 64;            /* Number of region files each Reader keeps mapped at once */
+    private static final long FLUSH_INTERVAL_SECONDS = 5;
+    private static final Pattern REGION_FILE_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.dat");
+
+    private final Path directory;
+    private final Map<Long, CachedTile> pendingTiles = new ConcurrentHashMap<>(); /* tiles waiting for the flusher, keyed by ChunkPos.toLong() */
+    private final Map<Long, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75F, true) { /* mapped region files in LRU order, guarded by itself */
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            if (this.size() > MAX_OPEN_REGIONS) {
+                TileCache.this.evictedRegions.add(eldest.getValue()); /* forced by the next flush, not while the lock is held */
+                return true;
+            }
+
+            return false;
+        }
+    };
+    private final List<MappedByteBuffer> evictedRegions = new ArrayList<>(); /* regions dropped from regions since the last flush, guarded by regions */
+    private final LongSet missingRegions = new LongOpenHashSet(); /* regions known to have no file, guarded by regions */
+    private final LongSet openingRegions = new LongOpenHashSet(); /* regions waiting to be opened on the flusher thread, guarded by regions */
+    private volatile int createdRegionCount; /* region files created so far, so readers know to look again for ones they found missing */
+    private final ScheduledExecutorService flusher;
+
+    public TileCache(Path directory) {
+        this.directory = directory;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "DashMap Tile Cache Flusher");
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the cache directory for a dimension on a server.
+     *
+     * @param rootDirectory Root directory that all DashMap caches live in.
+     * @param serverName Name or address of the server.
+     * @param dimensionName Name of the dimension.
+     * @return Directory for the cache.
+     */
+    public static Path getDirectory(Path rootDirectory, String serverName, String dimensionName) {
+        return rootDirectory.resolve(sanitize(serverName)).resolve(sanitize(dimensionName));
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Compute a cheap hash of the parts of a chunk that decide its map colors, used to decide whether a cached tile can
+     * be reused. This covers the surface heights and surface blocks of every column, so changes hidden beneath the
+     * surface (such as the floor of a lake) aren't noticed until a block change marks the chunk dirty. Gives the same
+     * hash as ChunkSnapshot.getContentHash does for a snapshot of the chunk.
+     *
+     * @param chunk Chunk to hash.
+     * @param hasCeiling Whether the chunk's dimension has a ceiling, in which case the heightmap says nothing about what the map shows.
+     * @return Content hash, or 0 if the chunk can't be hashed and should always be sampled.
+     */
+    public static long contentHash(ChunkAccess chunk, boolean hasCeiling) {
+        if (hasCeiling) {
+            return 0;
+        }
+
+        final BlockPos.MutableBlockPos blockPos = new BlockPos.MutableBlockPos();
+        long hash = 1;
+
+        for (int z = 0; z < CHUNK_SIZE; z++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                final int topY = chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x, z);
+
+                blockPos.set(x, topY, z);
+                hash = hashColumn(hash, topY, chunk.getBlockState(blockPos));
+            }
+        }
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Add a column to a content hash, columns going in rows.
+     *
+     * @param hash Hash of the columns so far, starting from 1.
+     * @param topY Y of the topmost block of the column, according to the WORLD_SURFACE heightmap.
+     * @param topState Block state at topY.
+     * @return Hash including the column.
+     */
+    static long hashColumn(long hash, int topY, BlockState topState) {
+        return (((hash * 31) + topY) * 31) + Block.getId(topState);
+    }
+
+    /**
+     * Queue the map tile for a chunk to be written to disk.
+     *
+     * @param chunkPos Position of the chunk.
+     * @param contentHash Content hash of the chunk at the time it was sampled.
+     * @param tile Map tile for the chunk.
+     */
+    public void store(ChunkPos chunkPos, long contentHash, MapTile tile) {
+        this.pendingTiles.put(chunkPos.toLong(), new CachedTile(contentHash, tile));
+    }
+
+    /**
+     * Get every region that has tiles cached, whether on disk or still waiting to be written.
+     *
+     * @return Positions of the regions, as given by ChunkPos.asLong(regionX, regionZ).
+     */
+    public LongSet getRegions() {
+        final LongSet regions = new LongOpenHashSet();
+
+        for (final Long key : this.pendingTiles.keySet()) {
+            regions.add(ChunkPos.asLong(ChunkPos.getX(key) >> 5, ChunkPos.getZ(key) >> 5));
+        }
+
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.forEach(file -> {
+                final Matcher matcher = REGION_FILE_NAME.matcher(file.getFileName().toString());
+
+                if (matcher.matches()) {
+                    regions.add(ChunkPos.asLong(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))));
+                }
+            });
+        } catch (NoSuchFileException e) { /* nothing has been written to the cache yet */
+        } catch (IOException e) {
+            LOGGER.error("Failed to list map tile cache regions in {}", this.directory, e);
+        }
+
+        return regions;
+    }
+
+    /**
+     * Check whether the cached tile of a chunk can be loaded without touching the disk, and if not, have the region
+     * containing it opened on the flusher thread. Never blocks, so it is safe to call from the tick thread.
+     *
+     * @param chunkPos Position of the chunk.
+     * @return True if loadIfOpen can be used for the chunk now.
+     */
+    public boolean prepare(ChunkPos chunkPos) {
+        return this.pendingTiles.containsKey(chunkPos.toLong()) || this.prepareRegion(chunkPos.getRegionX(), chunkPos.getRegionZ());
+    }
+
+    /**
+     * Have every region overlapping an area of chunks opened on the flusher thread, if it isn't already, so that chunks
+     * coming onto the map from that area can be loaded straight away.
+     *
+     * @param minChunkX X coordinate of the westmost chunk of the area.
+     * @param minChunkZ Z coordinate of the northmost chunk of the area.
+     * @param maxChunkX X coordinate of the eastmost chunk of the area.
+     * @param maxChunkZ Z coordinate of the southmost chunk of the area.
+     */
+    public void prefetch(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+        for (int regionX = minChunkX >> 5; regionX <= maxChunkX >> 5; regionX++) {
+            for (int regionZ = minChunkZ >> 5; regionZ <= maxChunkZ >> 5; regionZ++) {
+                this.prepareRegion(regionX, regionZ);
+            }
+        }
+    }
+
+    private boolean prepareRegion(int regionX, int regionZ) {
+        final long regionKey = ChunkPos.asLong(regionX, regionZ);
+
+        synchronized (this.regions) {
+            if (this.regions.containsKey(regionKey) || this.missingRegions.contains(regionKey)) {
+                return true;
+            }
+
+            if (!this.openingRegions.add(regionKey)) {
+                return false;
+            }
+        }
+
+        this.flusher.execute(() -> this.openRegion(regionX, regionZ, false));
+
+        return false;
+    }
+
+    /**
+     * Load the cached map tile for a chunk, if there is any, opening its region file if it isn't already. The tile is
+     * not shaded. Since this can touch the disk, it is for background threads - the tick thread uses loadIfOpen.
+     *
+     * @param chunkPos Position of the chunk.
+     * @return Cached tile, or null if the chunk has never been cached.
+     */
+    public CachedTile load(ChunkPos chunkPos) {
+        final CachedTile pending = this.pendingTiles.get(chunkPos.toLong());
+
+        return pending != null ? pending : readRecord(chunkPos, this.openRegion(chunkPos.getRegionX(), chunkPos.getRegionZ(), false));
+    }
+
+    /**
+     * Load the cached map tile for a chunk, if there is any, without touching the disk. The tile is not shaded.
+     *
+     * @param chunkPos Position of the chunk, which prepare should have returned true for.
+     * @return Cached tile, or null if the chunk has never been cached, or its region isn't open.
+     */
+    public CachedTile loadIfOpen(ChunkPos chunkPos) {
+        final CachedTile pending = this.pendingTiles.get(chunkPos.toLong());
+
+        if (pending != null) {
+            return pending;
+        }
+
+        final MappedByteBuffer region;
+
+        synchronized (this.regions) {
+            region = this.regions.get(ChunkPos.asLong(chunkPos.getRegionX(), chunkPos.getRegionZ()));
+        }
+
+        return readRecord(chunkPos, region);
+    }
+
+    private static CachedTile readRecord(ChunkPos chunkPos, MappedByteBuffer region) {
+        if (region == null) {
+            return null;
+        }
+
+        final int offset = recordOffset(chunkPos);
+
+        synchronized (region) {
+            if (region.getInt(offset + Long.BYTES) == 0) {
+                return null;
+            }
+
+            final short[] heights = new short[PIXEL_COUNT];
+            final byte[] colorIds = new byte[PIXEL_COUNT];
+
+            for (int i = 0; i < PIXEL_COUNT; i++) {
+                heights[i] = region.getShort(offset + HEADER_SIZE + (i * Short.BYTES));
+                colorIds[i] = region.get(offset + HEADER_SIZE + (PIXEL_COUNT * Short.BYTES) + i);
+            }
+
+            return new CachedTile(region.getLong(offset), new MapTile(heights, colorIds));
+        }
+    }
+
+    /**
+     * Write all pending tiles out to their region files. Called periodically on the flusher thread.
+     */
+    private void flush() {
+        try {
+            for (final Map.Entry<Long, CachedTile> entry : this.pendingTiles.entrySet()) {
+                final CachedTile tile = entry.getValue();
+                final ChunkPos chunkPos = new ChunkPos(entry.getKey());
+                final MappedByteBuffer region = this.openRegion(chunkPos.getRegionX(), chunkPos.getRegionZ(), true);
+
+                if (region == null) {
+                    continue; /* left pending, to try again on the next flush */
+                }
+
+                final int offset = recordOffset(chunkPos);
+
+                synchronized (region) {
+                    /* A tile's heights and color ids never change, so it is fine to read them here while the tick thread reshades it */
+                    final short[] heights = tile.tile().getHeights();
+                    final byte[] colorIds = tile.tile().getColorIds();
+
+                    for (int i = 0; i < PIXEL_COUNT; i++) {
+                        region.putShort(offset + HEADER_SIZE + (i * Short.BYTES), heights[i]);
+                        region.put(offset + HEADER_SIZE + (PIXEL_COUNT * Short.BYTES) + i, colorIds[i]);
+                    }
+
+                    region.putLong(offset, tile.contentHash());
+                    region.putInt(offset + Long.BYTES, 1);
+                }
+
+                /* Only dropped once it can be read back from the region, and not if a newer tile has been stored since */
+                this.pendingTiles.remove(entry.getKey(), tile);
+            }
+
+            final List<MappedByteBuffer> toForce;
+
+            synchronized (this.regions) {
+                toForce = new ArrayList<>(this.regions.values());
+                toForce.addAll(this.evictedRegions);
+                this.evictedRegions.clear();
+            }
+
+            toForce.forEach(MappedByteBuffer::force);
+        } catch (RuntimeException e) { /* Don't let one bad write kill the flusher for the rest of the session */
+            LOGGER.error("Failed to flush map tile cache in {}", this.directory, e);
+        }
+    }
+
+    /**
+     * Flush everything that is pending and stop the flusher. The cache can't be used after this.
+     */
+    public void close() {
+        this.flusher.execute(this::flush);
+        this.flusher.shutdown();
+    }
+
+    /**
+     * Get the mapped file of a region, mapping it if it isn't already. The file is opened and mapped without holding the
+     * lock on regions, so the tick thread is never held up behind it.
+     *
+     * @param regionX X coordinate of the region.
+     * @param regionZ Z coordinate of the region.
+     * @param create Whether to create the region file if it doesn't exist, rather than returning null. Only writes do,
+     *               so that looking at unexplored areas doesn't fill the cache with empty regions.
+     * @return Mapped region file, or null if it doesn't exist or couldn't be opened.
+     */
+    private MappedByteBuffer openRegion(int regionX, int regionZ, boolean create) {
+        final long regionKey = ChunkPos.asLong(regionX, regionZ);
+
+        synchronized (this.regions) {
+            final MappedByteBuffer region = this.regions.get(regionKey);
+
+            if (region != null || (!create && this.missingRegions.contains(regionKey))) {
+                this.openingRegions.remove(regionKey);
+                return region;
+            }
+        }
+
+        final Path file = this.directory.resolve("r." + regionX + "." + regionZ + ".dat");
+        final boolean exists = Files.exists(file);
+        MappedByteBuffer region = null;
+
+        if (create || exists) {
+            try {
+                Files.createDirectories(this.directory);
+
+                /* Mapping beyond the end of the file grows it, so a new region is created full of empty records. The mapping
+                 * stays valid after the channel is closed.
+                 */
+                try (FileChannel channel = FileChannel.open(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_FILE_SIZE);
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to open map tile cache region {}, {} in {}", regionX, regionZ, this.directory, e);
+            }
+        }
+
+        synchronized (this.regions) {
+            this.openingRegions.remove(regionKey);
+
+            if (region == null) {
+                /* Treated as missing until something is written to it, rather than trying to open it again on every lookup */
+                this.missingRegions.add(regionKey);
+                return null;
+            }
+
+            this.missingRegions.remove(regionKey);
+
+            if (!exists) {
+                this.createdRegionCount++;
+            }
+
+            /* Another thread may have mapped it in the meantime, in which case its mapping is the one that is kept */
+            final MappedByteBuffer existing = this.regions.putIfAbsent(regionKey, region);
+
+            return existing != null ? existing : region;
+        }
+    }
+
+    /**
+     * Start reading the cache from a background job that goes over far more regions than the cache keeps open, such as an
+     * export. The reader maps region files for itself, read only, so it never evicts the regions the map is using or
+     * holds up the tick thread on their lock.
+     *
+     * @return Reader, to be used by one thread at a time.
+     */
+    public Reader openReader() {
+        return new Reader();
+    }
+
+    private static int recordOffset(ChunkPos chunkPos) {
+        return ((chunkPos.getRegionLocalZ() * REGION_SIZE) + chunkPos.getRegionLocalX()) * RECORD_SIZE;
+    }
+
+    /**
+     * Reads tiles from the cache through its own read-only mappings of the region files. Tiles still waiting for the
+     * flusher are read as well, and regions found missing are looked for again once a region file has been created.
+     */
+    public final class Reader {
+        private final Map<Long, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75F, true) { /* mapped region files in LRU order, null for missing ones */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                return this.size() > MAX_READER_REGIONS;
+            }
+        };
+        private int createdRegionCount = TileCache.this.createdRegionCount; /* count the missing regions were looked for at */
+
+        private Reader() {
+        }
+
+        /**
+         * Load the cached map tile for a chunk, if there is any. The tile is not shaded.
+         *
+         * @param chunkPos Position of the chunk.
+         * @return Cached tile, or null if the chunk has never been cached.
+         */
+        public CachedTile load(ChunkPos chunkPos) {
+            final CachedTile pending = TileCache.this.pendingTiles.get(chunkPos.toLong());
+
+            return pending != null ? pending : readRecord(chunkPos, this.getRegion(chunkPos.getRegionX(), chunkPos.getRegionZ()));
+        }
+
+        private MappedByteBuffer getRegion(int regionX, int regionZ) {
+            final long regionKey = ChunkPos.asLong(regionX, regionZ);
+
+            if (this.createdRegionCount != TileCache.this.createdRegionCount) {
+                this.createdRegionCount = TileCache.this.createdRegionCount;
+                this.regions.values().removeIf(Objects::isNull);
+            }
+
+            if (this.regions.containsKey(regionKey)) {
+                return this.regions.get(regionKey);
+            }
+
+            final Path file = TileCache.this.directory.resolve("r." + regionX + "." + regionZ + ".dat");
+            MappedByteBuffer region = null;
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                /* Region files are created at full size, so a shorter one can't be read */
+                if (channel.size() >= REGION_FILE_SIZE) {
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, 0, REGION_FILE_SIZE);
+                }
+            } catch (NoSuchFileException e) { /* nothing has been cached in this region */
+            } catch (IOException e) {
+                LOGGER.error("Failed to read map tile cache region {}, {} in {}", regionX, regionZ, TileCache.this.directory, e);
+            }
+
+            this.regions.put(regionKey, region);
+
+            return region;
+        }
+    }
+
+    /**
+     * Map tile for a chunk, as stored in the cache.
+     *
+     * @param contentHash Content hash of the chunk at the time it was sampled.
+     * @param tile Map tile for the chunk.
+     */
+    public record CachedTile(long contentHash, MapTile tile) {
+    }
+}
@@ -0,0 +1,520 @@
+package org.appledash.dashmap;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.minecraft.world.level.ChunkPos;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * In-memory store of map tiles, along with their shaded colors. Tiles are kept after their chunk unloads, so going back
+ * to an area that was already explored shows it straight away.
+ *
+ * Chunks are grouped into regions of 32x32 chunks, and each region keeps all of its tiles in a few flat arrays, indexed
+ * by the chunk's position in the region and then by column. Regions are kept in least-recently-used order. Stores that
+ * share a Budget stay within a single tileMemoryMB between them, by throwing away whole regions, least recently used
+ * first across every store - except for those the map is on.
+ *
+ * Most tiles only use a handful of colors, so rather than storing a color per column, each tile has a palette of up to
+ * 16 shaded colors and every column stores a 4-bit index into it. A shaded color is stored as its index into the
+ * MapColorPalette RGB table, which is the MaterialColor id and brightness together, so the color ids of a tile don't
+ * need storing separately either. Tiles with more colors than fit in a palette are stored raw, on the side.
+ *
+ * Shading only depends on the stored heights, so it is redone here whenever a tile or the tile to its north changes,
+ * without sampling the world again. Not thread safe - only used from the client tick thread.
+ */
+public final class TileStore {
+    private static final int REGION_SIZE = 32;                                /* Number of chunks along each edge of a region */
+    private static final int REGION_CHUNK_COUNT = REGION_SIZE * REGION_SIZE;
+    private static final int PIXEL_COUNT = CHUNK_SIZE * CHUNK_SIZE;           /* Number of columns in a tile */
+    private static final int PALETTE_SIZE = 16;                               /* Maximum number of colors in a tile's palette */
+    private static final int INDEX_BITS = 4;                                  /* Bits per column needed to index the palette */
+    private static final int INDICES_PER_LONG = Long.SIZE / INDEX_BITS;
+    private static final int TILE_INDEX_LONGS = PIXEL_COUNT / INDICES_PER_LONG;
+    private static final long REGION_BYTES = ((long) REGION_CHUNK_COUNT * PIXEL_COUNT * Short.BYTES) +    /* heights */
+                                             ((long) REGION_CHUNK_COUNT * TILE_INDEX_LONGS * Long.BYTES) + /* palette indices */
+                                             ((long) REGION_CHUNK_COUNT * PALETTE_SIZE * Short.BYTES) +    /* palettes */
+                                             ((long) REGION_CHUNK_COUNT * (Long.BYTES + Byte.BYTES));      /* content hashes, palette sizes */
+    private static final long RAW_TILE_BYTES = (long) PIXEL_COUNT * Short.BYTES;
+
+    private final Long2ObjectLinkedOpenHashMap<Region> regions = new Long2ObjectLinkedOpenHashMap<>(); /* regions in least-recently-used order, keyed by ChunkPos.asLong(regionX, regionZ) */
+    private final short[] shadedColors = new short[PIXEL_COUNT]; /* shaded colors of the tile being encoded or decoded, reused */
+    private final int[] rgbPalette = new int[PALETTE_SIZE];      /* palette of the tile being decoded, as RGBA colors, reused */
+    private final Budget budget;  /* memory budget the store takes its regions from */
+    private int windowMinRegionX; /* regions the map is on, inclusive - none until the window is set */
+    private int windowMinRegionZ;
+    private int windowMaxRegionX = -1;
+    private int windowMaxRegionZ = -1;
+
+    public TileStore() {
+        this(new Budget());
+    }
+
+    /**
+     * Create a store that shares the memory budget with the other stores created with it.
+     *
+     * @param budget Budget to share, which the store is added to.
+     */
+    public TileStore(Budget budget) {
+        this.budget = budget;
+        budget.stores.add(this);
+    }
+
+    /**
+     * Set the chunks the map is on, whose regions are never thrown away to stay within the budget.
+     *
+     * @param upperLeft Upper-left chunk of the map.
+     * @param size Number of chunks along each edge of the map.
+     */
+    public void setWindow(ChunkPos upperLeft, int size) {
+        this.windowMinRegionX = upperLeft.x >> 5;
+        this.windowMinRegionZ = upperLeft.z >> 5;
+        this.windowMaxRegionX = (upperLeft.x + size - 1) >> 5;
+        this.windowMaxRegionZ = (upperLeft.z + size - 1) >> 5;
+    }
+
+    /**
+     * Forget which chunks the map is on, such as when the store isn't being shown, so that any of its regions can be
+     * thrown away to make room for another store.
+     */
+    public void clearWindow() {
+        this.windowMinRegionX = 0;
+        this.windowMinRegionZ = 0;
+        this.windowMaxRegionX = -1;
+        this.windowMaxRegionZ = -1;
+    }
+
+    /**
+     * Check whether there is a tile for a chunk.
+     */
+    public boolean contains(int chunkX, int chunkZ) {
+        final Region region = this.regions.get(regionKey(chunkX, chunkZ));
+
+        return region != null && region.isPresent(chunkIndex(chunkX, chunkZ));
+    }
+
+    /**
+     * Store the tile for a chunk, replacing any previous one, and shade it. The northmost row of the tile to the south
+     * is shaded against this one, so it is shaded again as well.
+     *
+     * @param chunkX X coordinate of the chunk.
+     * @param chunkZ Z coordinate of the chunk.
+     * @param tile Unshaded tile for the chunk. Its data is copied, so it can be reused afterwards.
+     * @param contentHash Content hash of the chunk at the time it was sampled, or 0 if it isn't known.
+     */
+    public void put(int chunkX, int chunkZ, MapTile tile, long contentHash) {
+        final Region region = this.getOrCreateRegion(chunkX, chunkZ);
+        final int chunkIndex = chunkIndex(chunkX, chunkZ);
+        final int base = chunkIndex * PIXEL_COUNT;
+        final byte[] colorIds = tile.getColorIds();
+
+        System.arraycopy(tile.getHeights(), 0, region.heights, base, PIXEL_COUNT);
+        region.contentHashes[chunkIndex] = contentHash;
+        region.setPresent(chunkIndex);
+
+        final Region northRegion = this.getIfPresent(chunkX, chunkZ - 1);
+        final int northBase = chunkIndex(chunkX, chunkZ - 1) * PIXEL_COUNT;
+
+        for (int x = 0; x < CHUNK_SIZE; x++) {
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                final int column = (x * CHUNK_SIZE) + z;
+
+                this.shadedColors[column] = shadeColumn(region, base, x, z, northRegion, northBase, colorIds[column] & MapColorPalette.COLOR_ID_MASK);
+            }
+        }
+
+        encode(region, chunkIndex, this.shadedColors);
+
+        final Region southRegion = this.getIfPresent(chunkX, chunkZ + 1);
+
+        if (southRegion != null) {
+            final int southIndex = chunkIndex(chunkX, chunkZ + 1);
+            final int southBase = southIndex * PIXEL_COUNT;
+
+            decode(southRegion, southIndex, this.shadedColors);
+
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                final int column = x * CHUNK_SIZE;
+
+                this.shadedColors[column] = shadeColumn(southRegion, southBase, x, 0, region, base, MapColorPalette.getColorId(this.shadedColors[column]));
+            }
+
+            encode(southRegion, southIndex, this.shadedColors);
+        }
+    }
+
+    /**
+     * Get a copy of the unshaded tile for a chunk.
+     *
+     * @return Copy of the tile, or null if there is no tile for the chunk.
+     */
+    @Nullable
+    public MapTile get(int chunkX, int chunkZ) {
+        final Region region = this.getIfPresent(chunkX, chunkZ);
+
+        if (region == null) {
+            return null;
+        }
+
+        final int chunkIndex = chunkIndex(chunkX, chunkZ);
+        final short[] heights = new short[PIXEL_COUNT];
+        final byte[] colorIds = new byte[PIXEL_COUNT];
+
+        System.arraycopy(region.heights, chunkIndex * PIXEL_COUNT, heights, 0, PIXEL_COUNT);
+        decode(region, chunkIndex, this.shadedColors);
+
+        for (int i = 0; i < PIXEL_COUNT; i++) {
+            colorIds[i] = (byte) MapColorPalette.getColorId(this.shadedColors[i]);
+        }
+
+        return new MapTile(heights, colorIds);
+    }
+
+    /**
+     * Forget the tile for a chunk, such as when it is known to be out of date. The tile to the south keeps its shading.
+     */
+    public void remove(int chunkX, int chunkZ) {
+        final Region region = this.regions.get(regionKey(chunkX, chunkZ));
+
+        if (region != null) {
+            final int chunkIndex = chunkIndex(chunkX, chunkZ);
+
+            region.clearPresent(chunkIndex);
+            region.rawTiles.remove(chunkIndex);
+        }
+    }
+
+    /**
+     * Get the stored height of a single column.
+     *
+     * @param chunkX X coordinate of the chunk.
+     * @param chunkZ Z coordinate of the chunk.
+     * @param x X coordinate of the column within the chunk.
+     * @param z Z coordinate of the column within the chunk.
+     * @return Height of the column, or Integer.MIN_VALUE if there is no tile for the chunk.
+     */
+    public int getHeight(int chunkX, int chunkZ, int x, int z) {
+        final Region region = this.regions.get(regionKey(chunkX, chunkZ));
+        final int chunkIndex = chunkIndex(chunkX, chunkZ);
+
+        if (region == null || !region.isPresent(chunkIndex)) {
+            return Integer.MIN_VALUE;
+        }
+
+        return region.heights[(chunkIndex * PIXEL_COUNT) + (x * CHUNK_SIZE) + z];
+    }
+
+    /**
+     * Get the content hash a chunk's tile was stored with.
+     *
+     * @return Content hash, or 0 if there is no tile for the chunk or its hash isn't known.
+     */
+    public long getContentHash(int chunkX, int chunkZ) {
+        final Region region = this.getIfPresent(chunkX, chunkZ);
+
+        return region == null ? 0 : region.contentHashes[chunkIndex(chunkX, chunkZ)];
+    }
+
+    /**
+     * Decode the shaded colors of a chunk's tile into an array, in rows of the texture: indexed by (z * CHUNK_SIZE) + x.
+     *
+     * @param out Array of at least CHUNK_SIZE * CHUNK_SIZE colors to decode into.
+     * @return True if there was a tile to decode.
+     */
+    public boolean copyColors(int chunkX, int chunkZ, int[] out) {
+        final Region region = this.getIfPresent(chunkX, chunkZ);
+
+        if (region == null) {
+            return false;
+        }
+
+        final int chunkIndex = chunkIndex(chunkX, chunkZ);
+        final short[] raw = region.rawTiles.get(chunkIndex);
+
+        if (raw != null) {
+            for (int i = 0; i < PIXEL_COUNT; i++) {
+                out[transpose(i)] = MapColorPalette.getRGB(raw[i]);
+            }
+
+            return true;
+        }
+
+        /* Decode the palette to RGB once, rather than once per column */
+        final int paletteSize = region.paletteSizes[chunkIndex];
+        final int paletteBase = chunkIndex * PALETTE_SIZE;
+        final int indexBase = chunkIndex * TILE_INDEX_LONGS;
+        for (int i = 0; i < paletteSize; i++) {
+            this.rgbPalette[i] = MapColorPalette.getRGB(region.palettes[paletteBase + i]);
+        }
+
+        for (int word = 0; word < TILE_INDEX_LONGS; word++) {
+            long indices = region.indices[indexBase + word];
+
+            for (int i = word * INDICES_PER_LONG; i < (word + 1) * INDICES_PER_LONG; i++) {
+                out[transpose(i)] = this.rgbPalette[(int) (indices & (PALETTE_SIZE - 1))];
+                indices >>>= INDEX_BITS;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the number of bytes currently taken up by tile data.
+     */
+    public long getMemoryUsage() {
+        long usage = this.regions.size() * REGION_BYTES;
+
+        for (final Region region : this.regions.values()) {
+            usage += region.rawTiles.size() * RAW_TILE_BYTES;
+        }
+
+        return usage;
+    }
+
+    public void clear() {
+        this.regions.clear();
+    }
+
+    /**
+     * Get the region a chunk is in, marking it as recently used, if the chunk has a tile.
+     */
+    @Nullable
+    private Region getIfPresent(int chunkX, int chunkZ) {
+        final Region region = this.regions.getAndMoveToLast(regionKey(chunkX, chunkZ));
+
+        if (region == null || !region.isPresent(chunkIndex(chunkX, chunkZ))) {
+            return null;
+        }
+
+        region.lastUsed = ++this.budget.clock;
+
+        return region;
+    }
+
+    private Region getOrCreateRegion(int chunkX, int chunkZ) {
+        final long regionKey = regionKey(chunkX, chunkZ);
+        Region region = this.regions.getAndMoveToLast(regionKey);
+
+        if (region == null) {
+            /* Make room first, so the new region can't be the one that is thrown away */
+            this.budget.makeRoom();
+
+            region = new Region();
+            this.regions.putAndMoveToLast(regionKey, region);
+        }
+
+        region.lastUsed = ++this.budget.clock;
+
+        return region;
+    }
+
+    /**
+     * Find the least recently used region that the map isn't on.
+     *
+     * @return Key of the region, or Long.MIN_VALUE if every region is on the map. No region has that key, since region
+     *         coordinates are far smaller than chunk coordinates.
+     */
+    private long findEvictableRegion() {
+        for (final LongIterator it = this.regions.keySet().iterator(); it.hasNext(); ) {
+            final long regionKey = it.nextLong();
+            final int regionX = ChunkPos.getX(regionKey);
+            final int regionZ = ChunkPos.getZ(regionKey);
+
+            if (regionX < this.windowMinRegionX || regionX > this.windowMaxRegionX || regionZ < this.windowMinRegionZ || regionZ > this.windowMaxRegionZ) {
+                return regionKey;
+            }
+        }
+
+        return Long.MIN_VALUE;
+    }
+
+    private static long regionKey(int chunkX, int chunkZ) {
+        return ChunkPos.asLong(chunkX >> 5, chunkZ >> 5);
+    }
+
+    private static int chunkIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & (REGION_SIZE - 1)) * REGION_SIZE) + (chunkX & (REGION_SIZE - 1));
+    }
+
+    /**
+     * Turn a column index, (x * CHUNK_SIZE) + z, into the index of the same column in a texture row, (z * CHUNK_SIZE) + x.
+     */
+    private static int transpose(int column) {
+        return ((column & (CHUNK_SIZE - 1)) * CHUNK_SIZE) + (column / CHUNK_SIZE);
+    }
+
+    /**
+     * Store the shaded colors of a tile, as a palette and indices if they fit, or raw otherwise.
+     */
+    private static void encode(Region region, int chunkIndex, short[] shadedColors) {
+        final int paletteBase = chunkIndex * PALETTE_SIZE;
+        final int indexBase = chunkIndex * TILE_INDEX_LONGS;
+        int paletteSize = 0;
+
+        for (int word = 0; word < TILE_INDEX_LONGS; word++) {
+            long indices = 0;
+
+            for (int i = word * INDICES_PER_LONG; i < (word + 1) * INDICES_PER_LONG; i++) {
+                int paletteIndex = 0;
+
+                while (paletteIndex < paletteSize && region.palettes[paletteBase + paletteIndex] != shadedColors[i]) {
+                    paletteIndex++;
+                }
+
+                if (paletteIndex == paletteSize) {
+                    if (paletteSize == PALETTE_SIZE) { /* too many colors, give up on the palette */
+                        region.rawTiles.put(chunkIndex, shadedColors.clone());
+                        return;
+                    }
+
+                    region.palettes[paletteBase + paletteSize++] = shadedColors[i];
+                }
+
+                indices |= (long) paletteIndex << ((i - (word * INDICES_PER_LONG)) * INDEX_BITS);
+            }
+
+            region.indices[indexBase + word] = indices;
+        }
+
+        region.paletteSizes[chunkIndex] = (byte) paletteSize;
+        region.rawTiles.remove(chunkIndex);
+    }
+
+    /**
+     * Get the shaded colors of a tile back, indexed by (x * CHUNK_SIZE) + z.
+     */
+    private static void decode(Region region, int chunkIndex, short[] out) {
+        final short[] raw = region.rawTiles.get(chunkIndex);
+
+        if (raw != null) {
+            System.arraycopy(raw, 0, out, 0, PIXEL_COUNT);
+            return;
+        }
+
+        final int paletteBase = chunkIndex * PALETTE_SIZE;
+        final int indexBase = chunkIndex * TILE_INDEX_LONGS;
+
+        for (int i = 0; i < PIXEL_COUNT; i++) {
+            final long indices = region.indices[indexBase + (i / INDICES_PER_LONG)];
+
+            out[i] = region.palettes[paletteBase + (int) ((indices >>> ((i % INDICES_PER_LONG) * INDEX_BITS)) & (PALETTE_SIZE - 1))];
+        }
+    }
+
+    /**
+     * Shade a single column of a tile, using the height of this column and the one to the north to calculate a
+     * brightness for a shadow effect.
+     *
+     * @param region Region the tile is in.
+     * @param base Index of the tile's first column in the region's arrays.
+     * @param x X coordinate of the column within the tile.
+     * @param z Z coordinate of the column within the tile.
+     * @param northRegion Region the tile to the north is in, or null if there is no tile to the north.
+     * @param northBase Index of the first column of the tile to the north in its region's arrays.
+     * @param colorId MaterialColor id of the column.
+     * @return Shaded color of the column, as an index into the MapColorPalette RGB table.
+     */
+    private static short shadeColumn(Region region, int base, int x, int z, @Nullable Region northRegion, int northBase, int colorId) {
+        final int index = base + (x * CHUNK_SIZE) + z;
+        final int thisTopY = region.heights[index];
+        final int adjacentTopY;
+
+        if (z > 0) {
+            adjacentTopY = region.heights[index - 1];
+        } else if (northRegion != null) {
+            adjacentTopY = northRegion.heights[northBase + (x * CHUNK_SIZE) + CHUNK_SIZE - 1];
+        } else {
+            adjacentTopY = thisTopY;
+        }
+
+        return (short) MapColorPalette.getShadedColor(colorId, MapColorPalette.getBrightness(thisTopY, adjacentTopY));
+    }
+
+    /**
+     * The tileMemoryMB budget, shared by every store created with it. Not thread safe, like the stores.
+     */
+    public static final class Budget {
+        private final List<TileStore> stores = new ArrayList<>();
+        private long clock; /* stamp given to a region each time it is used, so regions of different stores can be compared */
+
+        /**
+         * Stop counting a store against the budget, once it has been thrown away.
+         */
+        public void remove(TileStore store) {
+            this.stores.remove(store);
+        }
+
+        /**
+         * Get the number of bytes taken up by the tile data of every store.
+         */
+        public long getMemoryUsage() {
+            long usage = 0;
+
+            for (int i = 0; i < this.stores.size(); i++) {
+                usage += this.stores.get(i).getMemoryUsage();
+            }
+
+            return usage;
+        }
+
+        /**
+         * Throw away the least recently used regions of any store, except those the map is on, until there is room for
+         * another region.
+         */
+        private void makeRoom() {
+            final long budget = DashMapConfig.CLIENT.tileMemoryMB.get() * 1024L * 1024L;
+
+            while (this.getMemoryUsage() + REGION_BYTES > budget) {
+                TileStore oldestStore = null;
+                long oldestKey = 0;
+                long oldestUse = Long.MAX_VALUE;
+
+                for (int i = 0; i < this.stores.size(); i++) {
+                    final TileStore store = this.stores.get(i);
+                    final long regionKey = store.findEvictableRegion();
+
+                    if (regionKey != Long.MIN_VALUE && store.regions.get(regionKey).lastUsed < oldestUse) {
+                        oldestStore = store;
+                        oldestKey = regionKey;
+                        oldestUse = store.regions.get(regionKey).lastUsed;
+                    }
+                }
+
+                if (oldestStore == null) {
+                    return;
+                }
+
+                oldestStore.regions.remove(oldestKey);
+            }
+        }
+    }
+
+    private static final class Region {
+        private final short[] heights = new short[REGION_CHUNK_COUNT * PIXEL_COUNT];      /* surface height of each column */
+        private final long[] indices = new long[REGION_CHUNK_COUNT * TILE_INDEX_LONGS];   /* palette index of each column, 4 bits each */
+        private final short[] palettes = new short[REGION_CHUNK_COUNT * PALETTE_SIZE];    /* shaded colors used by each tile */
+        private final byte[] paletteSizes = new byte[REGION_CHUNK_COUNT];                 /* number of colors in each tile's palette */
+        private final Int2ObjectOpenHashMap<short[]> rawTiles = new Int2ObjectOpenHashMap<>(); /* shaded colors of tiles with too many colors for a palette, keyed by chunk index */
+        private final long[] contentHashes = new long[REGION_CHUNK_COUNT];
+        private final long[] present = new long[REGION_CHUNK_COUNT / Long.SIZE];          /* which chunks of the region have a tile */
+        private long lastUsed;                                                            /* Budget clock when the region was last used */
+
+        private boolean isPresent(int chunkIndex) {
+            return (this.present[chunkIndex >> 6] & (1L << chunkIndex)) != 0;
+        }
+
+        private void setPresent(int chunkIndex) {
+            this.present[chunkIndex >> 6] |= 1L << chunkIndex;
+        }
+
+        private void clearPresent(int chunkIndex) {
+            this.present[chunkIndex >> 6] &= ~(1L << chunkIndex);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package org.appledash.dashmap;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.client.renderer.texture.DynamicTexture;
+import net.minecraft.client.renderer.texture.TextureManager;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.ChunkPos;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Fixed-size texture atlas of map entries for the world map screen. An entry is a 16x16 pixel square of the map at some
+ * level of detail: at level 0 it is a single chunk, and every level above that covers twice as many chunks along each
+ * edge, up to a whole region of 32x32 chunks. However much of the world is explored, the screen only ever draws from
+ * this one texture.
+ *
+ * Entries are built on demand. Where the four entries of the level below are already in the atlas, an entry is just
+ * those scaled down. Otherwise it is built from the tiles in the TileStore a chunk at a time, carrying on over as many
+ * frames as it takes, so that even an entry covering a whole region never blows the frame budget. Chunks that have
+ * fallen out of the TileStore are read back from the on-disk TileCache on a background thread, through a reader of its
+ * own, so the frame never waits on disk and the regions the map keeps open are left alone. When the atlas is full, the
+ * entries that were least recently drawn are dropped.
+ *
+ * Entries only ever show the slice of the map being shown: the atlas is cleared whenever the map switches slices, and
+ * the TileCache is only read from when it holds tiles of that slice. Everything except loading from disk happens on the
+ * render thread, and the builders entries are put together in are reused rather than allocated for every entry.
+ */
+public final class WorldMapAtlas {
+    public static final int ENTRY_SIZE = 16;                          /* Size of an entry along each edge, in pixels */
+    public static final int ATLAS_SIZE = 2048;                        /* Size of the atlas texture along each edge, in pixels */
+    public static final int MAX_LEVEL = 5;                            /* Coarsest level of detail, where an entry covers a region */
+    private static final int ENTRIES_PER_ROW = ATLAS_SIZE / ENTRY_SIZE;
+    private static final int SLOT_COUNT = ENTRIES_PER_ROW * ENTRIES_PER_ROW;
+    private static final int ENTRY_PIXELS = ENTRY_SIZE * ENTRY_SIZE;
+    private static final long FRAME_BUDGET_NANOS = 2_000_000;         /* Time spent building entries on the render thread per frame */
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final ResourceLocation TEXTURE_LOCATION = new ResourceLocation("dashmap", "world_map_atlas");
+
+    private final MapManager mapManager;
+    private NativeImage atlasImage;                                            /* created when the world map is first shown, null until then or once closed */
+    private DynamicTexture texture;
+    private final Long2IntLinkedOpenHashMap slots = new Long2IntLinkedOpenHashMap(); /* slot of each entry in the atlas, in least-recently-drawn order */
+    private final IntArrayList freeSlots = new IntArrayList();
+    private final LongOpenHashSet staleEntries = new LongOpenHashSet();        /* entries in the atlas whose chunks have changed since they were built */
+    private final LongLinkedOpenHashSet requestedEntries = new LongLinkedOpenHashSet(); /* entries wanted this frame, in the order they were asked for */
+    private final LongOpenHashSet loadingEntries = new LongOpenHashSet();      /* entries waiting on the background loader */
+    private final Queue<EntryBuilder> loadedEntries = new ConcurrentLinkedQueue<>(); /* entries finished by the background loader */
+    private final ArrayDeque<EntryBuilder> freeBuilders = new ArrayDeque<>();  /* builders that aren't in use, to be reused */
+    private final int[] tileColors = new int[CHUNK_SIZE * CHUNK_SIZE];
+    private final int[] entryPixels = new int[ENTRY_PIXELS];                  /* pixels of an entry built from the level below, reused */
+    private EntryBuilder building;                                             /* entry being built from the TileStore, carried over between frames */
+    private ExecutorService loader;
+    private TileCache.Reader loaderReader;                                     /* reader of the background loader, only used on it */
+    private TileCache loaderReaderCache;                                       /* cache loaderReader reads from */
+    private boolean textureRegistered;
+    private int generation;                                                    /* bumped on clear, so that entries loaded for an old map are thrown away */
+
+    public WorldMapAtlas(MapManager mapManager) {
+        this.mapManager = mapManager;
+        this.slots.defaultReturnValue(-1);
+
+        for (int slot = SLOT_COUNT - 1; slot >= 0; slot--) {
+            this.freeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Get the key of the entry at the given level of detail that covers the given entry coordinates.
+     *
+     * @param level Level of detail.
+     * @param entryX X coordinate of the entry, in entries of that level.
+     * @param entryZ Z coordinate of the entry, in entries of that level.
+     * @return Entry key.
+     */
+    public static long getKey(int level, int entryX, int entryZ) {
+        return ((long) level << 56) | ((entryX & 0xFFFFFFFL) << 28) | (entryZ & 0xFFFFFFFL);
+    }
+
+    private static int getLevel(long key) {
+        return (int) (key >>> 56);
+    }
+
+    private static int getEntryX(long key) {
+        return ((int) (key >>> 28) << 4) >> 4; /* sign extend from 28 bits */
+    }
+
+    private static int getEntryZ(long key) {
+        return ((int) key << 4) >> 4;
+    }
+
+    /**
+     * Get the slot an entry is in, marking it as recently drawn. If the entry isn't in the atlas yet, or is out of date,
+     * it is built later in the frame.
+     *
+     * @param key Entry key.
+     * @return Slot of the entry, or -1 if it isn't in the atlas.
+     */
+    public int getSlot(long key) {
+        final int slot = this.slots.getAndMoveToLast(key);
+
+        if (slot < 0 || this.staleEntries.contains(key)) {
+            this.requestedEntries.add(key);
+        }
+
+        return slot;
+    }
+
+    /**
+     * Get the U texture coordinate of the upper-left corner of a slot, from 0 to 1.
+     */
+    public static float getSlotU(int slot) {
+        return (float) ((slot % ENTRIES_PER_ROW) * ENTRY_SIZE) / ATLAS_SIZE;
+    }
+
+    /**
+     * Get the V texture coordinate of the upper-left corner of a slot, from 0 to 1.
+     */
+    public static float getSlotV(int slot) {
+        return (float) ((slot / ENTRIES_PER_ROW) * ENTRY_SIZE) / ATLAS_SIZE;
+    }
+
+    /**
+     * Put entries that have finished loading into the atlas, and build as many of the entries asked for this frame as
+     * fit in the frame budget. Called once per frame, after every visible entry has been asked for.
+     */
+    public void update() {
+        this.createTexture();
+
+        EntryBuilder loaded;
+
+        while ((loaded = this.loadedEntries.poll()) != null) {
+            if (loaded.generation == this.generation) {
+                this.loadingEntries.remove(loaded.key);
+                this.putEntry(loaded.key, loaded.finish());
+            }
+
+            this.freeBuilders.add(loaded);
+        }
+
+        final long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+
+        while (System.nanoTime() < deadline) {
+            if (this.building != null) {
+                this.buildNextChunk();
+            } else if (!this.requestedEntries.isEmpty()) {
+                this.startEntry(this.requestedEntries.removeFirstLong());
+            } else {
+                break;
+            }
+        }
+
+        /* Whatever didn't fit will be asked for again next frame if it's still visible */
+        this.requestedEntries.clear();
+    }
+
+    /**
+     * Mark every entry covering a chunk as out of date, so it is built again the next time it is drawn. Until then, the
+     * old entry is still drawn.
+     *
+     * @param chunkX X coordinate of the chunk that changed.
+     * @param chunkZ Z coordinate of the chunk that changed.
+     */
+    public void invalidateChunk(int chunkX, int chunkZ) {
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            final long key = getKey(level, chunkX >> level, chunkZ >> level);
+
+            /* An entry still being built may already have gone past the chunk */
+            if (this.slots.containsKey(key) || this.loadingEntries.contains(key) || (this.building != null && this.building.key == key)) {
+                this.staleEntries.add(key);
+            }
+        }
+    }
+
+    /**
+     * Throw away every entry - used when the map is cleared.
+     */
+    public void clear() {
+        this.generation++;
+        this.freeSlots.clear();
+
+        for (int slot = SLOT_COUNT - 1; slot >= 0; slot--) {
+            this.freeSlots.add(slot);
+        }
+
+        this.slots.clear();
+        this.staleEntries.clear();
+        this.requestedEntries.clear();
+        this.loadingEntries.clear();
+
+        if (this.building != null) {
+            this.freeBuilders.add(this.building);
+            this.building = null;
+        }
+    }
+
+    public ResourceLocation getTextureLocation(TextureManager textureManager) {
+        this.createTexture();
+
+        if (!this.textureRegistered) {
+            textureManager.register(TEXTURE_LOCATION, this.texture); /* replaces the texture from before the atlas was last closed */
+            this.textureRegistered = true;
+        }
+
+        return TEXTURE_LOCATION;
+    }
+
+    /**
+     * Throw away every entry and release the atlas image and texture, such as when leaving a server. They are created
+     * again if the world map is shown after that.
+     */
+    public void close() {
+        this.clear();
+
+        if (this.texture != null) {
+            this.texture.close(); /* closes the image as well */
+            this.texture = null;
+            this.atlasImage = null;
+            this.textureRegistered = false;
+        }
+    }
+
+    /**
+     * Create the atlas image and its texture if they don't exist yet, so that a map whose world map is never opened
+     * doesn't hold on to them.
+     */
+    private void createTexture() {
+        if (this.texture == null) {
+            this.atlasImage = new NativeImage(NativeImage.Format.RGBA, ATLAS_SIZE, ATLAS_SIZE, false);
+            this.texture = new DynamicTexture(this.atlasImage);
+        }
+    }
+
+    /**
+     * Start on an entry that was asked for, unless it is already in the atlas and up to date, or being loaded.
+     */
+    private void startEntry(long key) {
+        if (this.loadingEntries.contains(key) || (this.slots.containsKey(key) && !this.staleEntries.contains(key))) {
+            return;
+        }
+
+        this.staleEntries.remove(key);
+
+        if (getLevel(key) > 0 && this.buildFromChildren(key)) {
+            return;
+        }
+
+        EntryBuilder builder = this.freeBuilders.poll();
+
+        if (builder == null) {
+            builder = new EntryBuilder();
+        }
+
+        builder.reset(key);
+        this.building = builder;
+    }
+
+    /**
+     * Build an entry by scaling down the four entries of the level below, if they are all in the atlas and up to date.
+     *
+     * @return True if the entry was built.
+     */
+    private boolean buildFromChildren(long key) {
+        final int level = getLevel(key) - 1;
+        final int firstChildX = getEntryX(key) << 1;
+        final int firstChildZ = getEntryZ(key) << 1;
+
+        for (int child = 0; child < 4; child++) {
+            final long childKey = getKey(level, firstChildX + (child & 1), firstChildZ + (child >> 1));
+
+            if (!this.slots.containsKey(childKey) || this.staleEntries.contains(childKey) || this.loadingEntries.contains(childKey)) {
+                return false;
+            }
+        }
+
+        final int halfSize = ENTRY_SIZE / 2;
+
+        for (int child = 0; child < 4; child++) {
+            final int slot = this.slots.get(getKey(level, firstChildX + (child & 1), firstChildZ + (child >> 1))); /* not moved, it wasn't drawn */
+            final int slotX = (slot % ENTRIES_PER_ROW) * ENTRY_SIZE;
+            final int slotY = (slot / ENTRIES_PER_ROW) * ENTRY_SIZE;
+            final int offsetX = (child & 1) * halfSize;
+            final int offsetZ = (child >> 1) * halfSize;
+
+            for (int pixelZ = 0; pixelZ < halfSize; pixelZ++) {
+                for (int pixelX = 0; pixelX < halfSize; pixelX++) {
+                    this.entryPixels[((offsetZ + pixelZ) * ENTRY_SIZE) + offsetX + pixelX] = averageQuad(this.atlasImage, slotX + (pixelX * 2), slotY + (pixelZ * 2));
+                }
+            }
+        }
+
+        this.putEntry(key, this.entryPixels);
+
+        return true;
+    }
+
+    /**
+     * Average a 2x2 square of pixels of an image, leaving out those that haven't been sampled like EntryBuilder does.
+     *
+     * @param image Image to read the pixels from.
+     * @param x X coordinate of the upper left pixel of the square.
+     * @param y Y coordinate of the upper left pixel of the square.
+     * @return Average color, or 0 if none of the pixels have been sampled.
+     */
+    static int averageQuad(NativeImage image, int x, int y) {
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        int alpha = 0;
+        int count = 0;
+
+        for (int i = 0; i < 4; i++) {
+            final int color = image.getPixelRGBA(x + (i & 1), y + (i >> 1));
+
+            if (color != 0) {
+                red += color & 0xFF;
+                green += (color >>> 8) & 0xFF;
+                blue += (color >>> 16) & 0xFF;
+                alpha += color >>> 24;
+                count++;
+            }
+        }
+
+        return count == 0 ? 0 : (red / count) | ((green / count) << 8) | ((blue / count) << 16) | ((alpha / count) << 24);
+    }
+
+    /**
+     * Add the next chunk of the entry being built from the tiles in the TileStore, finishing the entry after its last
+     * chunk. Chunks the TileStore has no tile for are left for the background loader.
+     */
+    private void buildNextChunk() {
+        final EntryBuilder builder = this.building;
+        final int chunksPerEdge = 1 << builder.level;
+        final int offsetX = builder.nextChunk % chunksPerEdge;
+        final int offsetZ = builder.nextChunk / chunksPerEdge;
+        final int chunkX = builder.firstChunkX + offsetX;
+        final int chunkZ = builder.firstChunkZ + offsetZ;
+
+        if (this.mapManager.copyTileColors(chunkX, chunkZ, this.tileColors)) {
+            builder.add(offsetX, offsetZ, this.tileColors);
+        } else {
+            builder.missingChunks.add(ChunkPos.asLong(chunkX, chunkZ));
+        }
+
+        if (++builder.nextChunk < chunksPerEdge * chunksPerEdge) {
+            return;
+        }
+
+        final TileCache tileCache = this.mapManager.getSliceTileCache();
+
+        this.building = null;
+
+        if (builder.missingChunks.isEmpty() || tileCache == null) {
+            this.putEntry(builder.key, builder.finish());
+            this.freeBuilders.add(builder);
+            return;
+        }
+
+        builder.generation = this.generation;
+        builder.tileCache = tileCache;
+        this.loadingEntries.add(builder.key);
+        this.getLoader().execute(builder);
+    }
+
+    /**
+     * Write the pixels of an entry into its slot, dropping the least recently drawn entry if there is no free slot,
+     * and upload just that slot.
+     */
+    private void putEntry(long key, int[] pixels) {
+        int slot = this.slots.get(key);
+
+        if (slot < 0) {
+            if (this.freeSlots.isEmpty()) {
+                final long evictedKey = this.slots.firstLongKey();
+
+                this.freeSlots.add(this.slots.removeFirstInt());
+                this.staleEntries.remove(evictedKey);
+            }
+
+            slot = this.freeSlots.popInt();
+            this.slots.putAndMoveToLast(key, slot);
+        }
+
+        final int slotX = (slot % ENTRIES_PER_ROW) * ENTRY_SIZE;
+        final int slotY = (slot / ENTRIES_PER_ROW) * ENTRY_SIZE;
+
+        for (int pixelZ = 0; pixelZ < ENTRY_SIZE; pixelZ++) {
+            for (int pixelX = 0; pixelX < ENTRY_SIZE; pixelX++) {
+                this.atlasImage.setPixelRGBA(slotX + pixelX, slotY + pixelZ, pixels[(pixelZ * ENTRY_SIZE) + pixelX]);
+            }
+        }
+
+        this.texture.bind();
+        this.atlasImage.upload(0, slotX, slotY, slotX, slotY, ENTRY_SIZE, ENTRY_SIZE, false, false);
+    }
+
+    private ExecutorService getLoader() {
+        if (this.loader == null) {
+            this.loader = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "DashMap World Map Loader");
+
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+                return thread;
+            });
+        }
+
+        return this.loader;
+    }
+
+    /**
+     * Get the background loader's reader of a cache, opening a new one if the map has moved on to another cache.
+     */
+    private TileCache.Reader getLoaderReader(TileCache tileCache) {
+        if (this.loaderReaderCache != tileCache) {
+            this.loaderReader = tileCache.openReader();
+            this.loaderReaderCache = tileCache;
+        }
+
+        return this.loaderReader;
+    }
+
+    /**
+     * Averages the colors of the chunks covered by an entry down to the entry's resolution. Columns that haven't been
+     * sampled are left out, so the edge of explored terrain doesn't fade out.
+     *
+     * Chunks are added on the render thread, and then on the background loader for those that have to come from disk,
+     * after which the builder comes back through loadedEntries. It is only ever used by one thread at a time.
+     */
+    private final class EntryBuilder implements Runnable {
+        private final int[] sums = new int[ENTRY_PIXELS * 4]; /* running total of each channel of each pixel */
+        private final int[] counts = new int[ENTRY_PIXELS];
+        private final int[] pixels = new int[ENTRY_PIXELS];
+        private final int[] loadedColors = new int[CHUNK_SIZE * CHUNK_SIZE]; /* colors of the chunk being loaded from disk */
+        private final LongArrayList missingChunks = new LongArrayList(); /* chunks to load from disk, as ChunkPos.toLong() */
+        private final Long2ObjectOpenHashMap<MapTile> loadedTiles = new Long2ObjectOpenHashMap<>(); /* tiles of the missing chunks, null for ones never cached */
+        private long key;
+        private int level;
+        private int firstChunkX;
+        private int firstChunkZ;
+        private int nextChunk;          /* index of the next chunk to add from the TileStore, in rows */
+        private int generation;         /* generation of the atlas the entry is being loaded for */
+        private TileCache tileCache;    /* cache the missing chunks are being loaded from */
+
+        /**
+         * Start building another entry, forgetting the previous one.
+         */
+        private void reset(long key) {
+            this.key = key;
+            this.level = getLevel(key);
+            this.firstChunkX = getEntryX(key) << this.level;
+            this.firstChunkZ = getEntryZ(key) << this.level;
+            this.nextChunk = 0;
+            this.tileCache = null;
+            this.missingChunks.clear();
+            Arrays.fill(this.sums, 0);
+            Arrays.fill(this.counts, 0);
+        }
+
+        /**
+         * @param chunkX X coordinate of the chunk within the entry.
+         * @param chunkZ Z coordinate of the chunk within the entry.
+         * @param colors Colors of the chunk, in texture rows.
+         */
+        private void add(int chunkX, int chunkZ, int[] colors) {
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                for (int x = 0; x < CHUNK_SIZE; x++) {
+                    final int color = colors[(z * CHUNK_SIZE) + x];
+
+                    if (color == 0) {
+                        continue;
+                    }
+
+                    final int pixelX = ((chunkX * CHUNK_SIZE) + x) >> this.level;
+                    final int pixelZ = ((chunkZ * CHUNK_SIZE) + z) >> this.level;
+                    final int pixel = (pixelZ * ENTRY_SIZE) + pixelX;
+
+                    this.sums[pixel * 4] += color & 0xFF;
+                    this.sums[(pixel * 4) + 1] += (color >>> 8) & 0xFF;
+                    this.sums[(pixel * 4) + 2] += (color >>> 16) & 0xFF;
+                    this.sums[(pixel * 4) + 3] += color >>> 24;
+                    this.counts[pixel]++;
+                }
+            }
+        }
+
+        /**
+         * Work out the pixels of the entry from everything added so far.
+         *
+         * @return Pixels of the entry, in rows, which are only valid until the builder is reused.
+         */
+        private int[] finish() {
+            for (int pixel = 0; pixel < ENTRY_PIXELS; pixel++) {
+                final int count = this.counts[pixel];
+
+                if (count > 0) {
+                    this.pixels[pixel] = (this.sums[pixel * 4] / count) |
+                                         ((this.sums[(pixel * 4) + 1] / count) << 8) |
+                                         ((this.sums[(pixel * 4) + 2] / count) << 16) |
+                                         ((this.sums[(pixel * 4) + 3] / count) << 24);
+                } else {
+                    this.pixels[pixel] = 0;
+                }
+            }
+
+            return this.pixels;
+        }
+
+        /**
+         * Load the missing chunks from the tile cache, on the background loader.
+         */
+        @Override
+        public void run() {
+            try {
+                final TileCache.Reader reader = WorldMapAtlas.this.getLoaderReader(this.tileCache);
+
+                /* Missing chunks are in rows, so a chunk's northern neighbour has already been loaded unless it is in the
+                 * top row or was in the TileStore
+                 */
+                for (int i = 0; i < this.missingChunks.size(); i++) {
+                    final ChunkPos chunkPos = new ChunkPos(this.missingChunks.getLong(i));
+                    final TileCache.CachedTile cached = reader.load(chunkPos);
+
+                    this.loadedTiles.put(chunkPos.toLong(), cached == null ? null : cached.tile());
+
+                    if (cached != null) {
+                        cached.tile().shade(this.getNorthTile(reader, chunkPos), this.loadedColors);
+                        this.add(chunkPos.x - this.firstChunkX, chunkPos.z - this.firstChunkZ, this.loadedColors);
+                    }
+                }
+            } catch (RuntimeException e) { /* Show what we have rather than leaving a hole that is never filled */
+                LOGGER.error("Failed to load world map entry from the tile cache", e);
+            }
+
+            this.tileCache = null;
+            this.loadedTiles.clear();
+            WorldMapAtlas.this.loadedEntries.add(this);
+        }
+
+        /**
+         * Get the tile of the chunk north of a chunk being loaded, from the chunks loaded so far if it is one of them.
+         */
+        private MapTile getNorthTile(TileCache.Reader reader, ChunkPos chunkPos) {
+            final long northKey = ChunkPos.asLong(chunkPos.x, chunkPos.z - 1);
+
+            if (this.loadedTiles.containsKey(northKey)) {
+                return this.loadedTiles.get(northKey);
+            }
+
+            final TileCache.CachedTile north = reader.load(new ChunkPos(chunkPos.x, chunkPos.z - 1));
+
+            return north == null ? null : north.tile();
+        }
+    }
+}
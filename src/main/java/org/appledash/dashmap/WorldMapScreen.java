@@ -0,0 +1,167 @@
+package org.appledash.dashmap;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import com.mojang.blaze3d.vertex.BufferUploader;
+import com.mojang.blaze3d.vertex.DefaultVertexFormat;
+import com.mojang.blaze3d.vertex.PoseStack;
+import com.mojang.blaze3d.vertex.Tesselator;
+import com.mojang.blaze3d.vertex.VertexFormat;
+import com.mojang.math.Matrix4f;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.GuiComponent;
+import net.minecraft.client.gui.screens.Screen;
+import net.minecraft.client.renderer.GameRenderer;
+import net.minecraft.network.chat.TranslatableComponent;
+import net.minecraft.util.Mth;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * Full-screen map of everything that has been explored in the current dimension, which can be dragged around and zoomed
+ * with the mouse wheel.
+ *
+ * The screen is drawn as one quad per entry of the WorldMapAtlas, all in a single draw call. Entries that aren't in the
+ * atlas yet are skipped until they have been built, so opening the map over a large explored area never stalls a frame.
+ */
+public class WorldMapScreen extends Screen {
+    private static final int TEXT_COLOUR = 0xFFFFFFFF;      /* Colour of text rendered on the map */
+    private static final int BACKGROUND_COLOUR = 0xFF101010; /* Colour behind unexplored parts of the map */
+    private static final int PLAYER_COLOUR = 0xFFFF3030;    /* Colour of the marker showing where the player is */
+    private static final double MIN_BLOCKS_PER_PIXEL = 0.25;
+    private static final double MAX_BLOCKS_PER_PIXEL = 32.0;
+
+    private final MapManager mapManager;
+    private double centerX;         /* Block X coordinate at the centre of the screen */
+    private double centerZ;         /* Block Z coordinate at the centre of the screen */
+    private double blocksPerPixel = 1.0;
+
+    public WorldMapScreen(MapManager mapManager, double centerX, double centerZ) {
+        super(new TranslatableComponent("screen.dashmap.world_map"));
+        this.mapManager = mapManager;
+        this.centerX = centerX;
+        this.centerZ = centerZ;
+    }
+
+    @Override
+    public void render(PoseStack matrices, int mouseX, int mouseY, float partialTick) {
+        final WorldMapAtlas atlas = this.mapManager.getWorldMapAtlas();
+
+        GuiComponent.fill(matrices, 0, 0, this.width, this.height, BACKGROUND_COLOUR);
+
+        /* Use the most detailed level whose pixels are no smaller than a pixel on screen */
+        final int level = Math.min(Mth.log2(Math.max((int) this.blocksPerPixel, 1)), WorldMapAtlas.MAX_LEVEL);
+        final int entryBlocks = CHUNK_SIZE << level;
+        final double entryPixels = entryBlocks / this.blocksPerPixel;
+
+        /* Block coordinates of the upper-left corner of the screen */
+        final double minBlockX = this.centerX - ((this.width / 2.0) * this.blocksPerPixel);
+        final double minBlockZ = this.centerZ - ((this.height / 2.0) * this.blocksPerPixel);
+        final int firstEntryX = Mth.floor(minBlockX / entryBlocks);
+        final int firstEntryZ = Mth.floor(minBlockZ / entryBlocks);
+        final int lastEntryX = Mth.floor((minBlockX + (this.width * this.blocksPerPixel)) / entryBlocks);
+        final int lastEntryZ = Mth.floor((minBlockZ + (this.height * this.blocksPerPixel)) / entryBlocks);
+
+        final Matrix4f matrix = matrices.last().pose();
+        final BufferBuilder bufferBuilder = Tesselator.getInstance().getBuilder();
+        final float slotSize = (float) WorldMapAtlas.ENTRY_SIZE / WorldMapAtlas.ATLAS_SIZE;
+
+        RenderSystem.setShader(GameRenderer::getPositionTexShader);
+        RenderSystem.setShaderTexture(0, atlas.getTextureLocation(this.minecraft.getTextureManager()));
+        RenderSystem.setShaderColor(1.0F, 1.0F, 1.0F, 1.0F);
+        RenderSystem.enableBlend();
+        RenderSystem.defaultBlendFunc();
+        bufferBuilder.begin(VertexFormat.Mode.QUADS, DefaultVertexFormat.POSITION_TEX);
+
+        for (int entryZ = firstEntryZ; entryZ <= lastEntryZ; entryZ++) {
+            for (int entryX = firstEntryX; entryX <= lastEntryX; entryX++) {
+                final int slot = atlas.getSlot(WorldMapAtlas.getKey(level, entryX, entryZ));
+
+                if (slot < 0) {
+                    continue;
+                }
+
+                final float x0 = (float) ((((long) entryX * entryBlocks) - minBlockX) / this.blocksPerPixel);
+                final float y0 = (float) ((((long) entryZ * entryBlocks) - minBlockZ) / this.blocksPerPixel);
+                final float x1 = x0 + (float) entryPixels;
+                final float y1 = y0 + (float) entryPixels;
+                final float u0 = WorldMapAtlas.getSlotU(slot);
+                final float v0 = WorldMapAtlas.getSlotV(slot);
+
+                bufferBuilder.vertex(matrix, x0, y1, 0.0F).uv(u0, v0 + slotSize).endVertex();
+                bufferBuilder.vertex(matrix, x1, y1, 0.0F).uv(u0 + slotSize, v0 + slotSize).endVertex();
+                bufferBuilder.vertex(matrix, x1, y0, 0.0F).uv(u0 + slotSize, v0).endVertex();
+                bufferBuilder.vertex(matrix, x0, y0, 0.0F).uv(u0, v0).endVertex();
+            }
+        }
+
+        bufferBuilder.end();
+        BufferUploader.end(bufferBuilder);
+        RenderSystem.disableBlend();
+
+        /* Now that everything visible has been asked for, build what's missing for the next frame */
+        atlas.update();
+
+        /* Mark where the player is */
+        if (this.minecraft.player != null) {
+            final int playerX = (int) ((this.minecraft.player.getX() - minBlockX) / this.blocksPerPixel);
+            final int playerY = (int) ((this.minecraft.player.getZ() - minBlockZ) / this.blocksPerPixel);
+
+            GuiComponent.fill(matrices, playerX - 2, playerY - 2, playerX + 2, playerY + 2, PLAYER_COLOUR);
+        }
+
+        final int mouseBlockX = Mth.floor(minBlockX + (mouseX * this.blocksPerPixel));
+        final int mouseBlockZ = Mth.floor(minBlockZ + (mouseY * this.blocksPerPixel));
+
+        GuiComponent.drawString(matrices, this.font, String.format("X: %d Z: %d", mouseBlockX, mouseBlockZ), 5, this.height - 5 - this.font.lineHeight, TEXT_COLOUR);
+
+        super.render(matrices, mouseX, mouseY, partialTick);
+    }
+
+    @Override
+    public boolean mouseDragged(double mouseX, double mouseY, int button, double dragX, double dragY) {
+        this.centerX -= dragX * this.blocksPerPixel;
+        this.centerZ -= dragY * this.blocksPerPixel;
+
+        return true;
+    }
+
+    @Override
+    public boolean mouseScrolled(double mouseX, double mouseY, double delta) {
+        final double previousBlocksPerPixel = this.blocksPerPixel;
+
+        this.blocksPerPixel = Mth.clamp(delta > 0 ? this.blocksPerPixel / 2 : this.blocksPerPixel * 2, MIN_BLOCKS_PER_PIXEL, MAX_BLOCKS_PER_PIXEL);
+
+        /* Keep the block under the mouse where it is */
+        this.centerX += (mouseX - (this.width / 2.0)) * (previousBlocksPerPixel - this.blocksPerPixel);
+        this.centerZ += (mouseY - (this.height / 2.0)) * (previousBlocksPerPixel - this.blocksPerPixel);
+
+        return true;
+    }
+
+    @Override
+    public boolean keyPressed(int keyCode, int scanCode, int modifiers) {
+        if (DashMapKeys.WORLD_MAP.matches(keyCode, scanCode)) {
+            this.onClose();
+            return true;
+        }
+
+        return super.keyPressed(keyCode, scanCode, modifiers);
+    }
+
+    @Override
+    public boolean isPauseScreen() {
+        return false;
+    }
+
+    /**
+     * Open the world map centred on the player, if there is a map to show.
+     */
+    public static void open(Minecraft mc, MapManager mapManager) {
+        if (mc.player == null || mapManager.getUpperLeftPosition() == null) {
+            return;
+        }
+
+        mc.setScreen(new WorldMapScreen(mapManager, mc.player.getX(), mc.player.getZ()));
+    }
+}
@@ -0,0 +1,165 @@
+package org.appledash.dashmap;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that the map's per-tick and per-frame paths don't allocate once the map has settled, so that regressions show
+ * up as a failed build rather than as GC pauses in game.
+ *
+ * Each scenario is run until the JIT has compiled it, then measured by the bytes the thread allocates over many more
+ * runs. A scenario fails if it averages more than MAX_BYTES_PER_RUN, which leaves room for a stray allocation during
+ * measurement but not for one per run. Anything that needs a client - uploading textures, drawing text, walking the
+ * level's entities - is left out, and fed with what it would have produced instead. The frame scenario does go through
+ * the same profiling event and metrics the minimap records every frame, which have to stay free while JFR is off.
+ */
+public class AllocationTest implements MapManager.SnapshotSource {
+    private static final int WARMUP_RUNS = 50000;    /* Enough for the scenarios to be compiled, and allocations escape analysis removes to stop */
+    private static final int MEASURED_RUNS = 200000;
+    private static final double MAX_BYTES_PER_RUN = 1.0;
+    private static final int MAX_DRAIN_TICKS = 100000;
+    private static final int ENTITY_COUNT = 500;     /* Entities around the player, as in a mob farm */
+    private static final double EYE_Y = 70.0;
+
+    private final BlockPos.MutableBlockPos blockPos = new BlockPos.MutableBlockPos();
+    private MapManager mapManager;
+    private EntityMarkers entityMarkers;
+    private CoordinateLabel coordinateLabel;
+    private double playerX = 8.0;
+    private int run;
+
+    @BeforeAll
+    static void bootstrap() {
+        SyntheticWorld.bootstrap();
+    }
+
+    @Override
+    public boolean hasCeiling() {
+        return false;
+    }
+
+    @Override
+    public ChunkSnapshot takeSnapshot(int chunkX, int chunkZ, int originY, short[] ceilingSurfaceY, long contentHash) {
+        return SyntheticWorld.FOREST.createSnapshot(chunkX, chunkZ).withSurfaceSearch(originY, ceilingSurfaceY);
+    }
+
+    /**
+     * Put every chunk on the map and let it settle, and put entities around the player.
+     */
+    @BeforeEach
+    void setUp() {
+        final int radius = DashMapConfig.DEFAULT_MAP_RADIUS;
+
+        this.mapManager = new MapManager();
+        this.entityMarkers = new EntityMarkers();
+        this.coordinateLabel = new CoordinateLabel();
+        this.mapManager.setRadius(radius);
+        this.mapManager.setCenterPosition(new ChunkPos(0, 0));
+
+        for (int chunkX = -radius; chunkX <= radius; chunkX++) {
+            for (int chunkZ = -radius; chunkZ <= radius; chunkZ++) {
+                this.mapManager.refreshChunk(new ChunkPos(chunkX, chunkZ), false, 0);
+            }
+        }
+
+        for (int i = 0; i < MAX_DRAIN_TICKS && (this.mapManager.getDirtyChunkCount() > 0 || this.mapManager.getPendingRebuildCount() > 0); i++) {
+            this.mapManager.rebuildChunks(this, EYE_Y);
+            Thread.onSpinWait();
+        }
+
+        assertTrue(this.mapManager.getDirtyChunkCount() == 0 && this.mapManager.getPendingRebuildCount() == 0,
+                   "Map didn't settle after " + MAX_DRAIN_TICKS + " ticks");
+
+        for (final EntityMarkers.Category category : EntityMarkers.Category.values()) {
+            this.entityMarkers.setCap(category, 32);
+        }
+    }
+
+    /**
+     * A client tick with nothing left to rebuild: the map tick, and indexing the entities around the player.
+     */
+    @Test
+    void tickStandingStill() {
+        this.assertAllocationFree(() -> {
+            this.mapManager.rebuildChunks(this, EYE_Y);
+            this.entityMarkers.reset(0, 0);
+
+            for (int i = 0; i < ENTITY_COUNT; i++) {
+                this.entityMarkers.add((i * 7) % 200 - 100, (i * 13) % 200 - 100, EntityMarkers.Category.VALUES[i % EntityMarkers.Category.VALUES.length]);
+            }
+        });
+    }
+
+    /**
+     * A frame while walking within a chunk, as MapRenderer.renderMap goes through it without the drawing: the coordinate
+     * label changes every frame, the markers are queried, and the frame is recorded as an event and in the metrics.
+     */
+    @Test
+    void frameWalking() {
+        this.assertAllocationFree(() -> {
+            final MapEvents.MinimapRender event = new MapEvents.MinimapRender();
+            final long start = System.nanoTime();
+
+            event.begin();
+            this.playerX = this.playerX >= 15.0 ? 1.0 : this.playerX + 0.013;
+            this.coordinateLabel.update(this.playerX, 8.0);
+
+            final int markerCount = this.entityMarkers.query(this.playerX, 8.0, 80.0);
+
+            for (int i = 0; i < markerCount; i++) {
+                this.entityMarkers.getX(this.entityMarkers.getResult(i));
+            }
+
+            MapMetrics.RENDER_TIME.add(System.nanoTime() - start);
+            MapMetrics.MARKERS_DRAWN.add(markerCount);
+
+            if (event.shouldCommit()) {
+                event.markersDrawn = markerCount;
+                event.commit();
+            }
+        });
+    }
+
+    /**
+     * A block change in a chunk that is already waiting to be rebuilt, as happens many times a tick in an explosion.
+     */
+    @Test
+    void blockChangeInDirtyChunk() {
+        this.assertAllocationFree(() -> {
+            final int index = this.run++ & 0xFF;
+
+            this.blockPos.set(index >> 4, 60 + (index & 7), index & 15);
+            this.mapManager.invalidateSurfaceHeight(this.blockPos);
+            this.mapManager.markBlockDirty(this.blockPos);
+        });
+    }
+
+    private void assertAllocationFree(Runnable scenario) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "This JVM can't measure allocations per thread");
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            scenario.run();
+        }
+
+        final long before = threads.getCurrentThreadAllocatedBytes();
+
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            scenario.run();
+        }
+
+        final double bytesPerRun = (double) (threads.getCurrentThreadAllocatedBytes() - before) / MEASURED_RUNS;
+
+        assertTrue(bytesPerRun <= MAX_BYTES_PER_RUN, String.format("%.2f bytes allocated per run, at most %s allowed", bytesPerRun, MAX_BYTES_PER_RUN));
+    }
+}
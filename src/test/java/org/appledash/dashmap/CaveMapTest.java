@@ -0,0 +1,178 @@
+package org.appledash.dashmap;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the map of a Y band shows what is actually in the world after the changes that have broken it before,
+ * driving a real MapManager over a small world built in memory.
+ *
+ * The world is solid stone in a dimension with a ceiling, with a layer of gold a few blocks under the player's eyes,
+ * so the map shows stone wherever the column is a wall and gold wherever it has been dug down to.
+ */
+public class CaveMapTest implements MapManager.SnapshotSource {
+    private static final int MIN_Y = 0;
+    private static final int SECTION_COUNT = 16;
+    private static final int ROCK_TOP_Y = 120;
+    private static final int GOLD_Y = 60;         /* Y of the gold layer, beneath the window of the player's band */
+    private static final double EYE_Y = 70.0;     /* band 4, searched down from Y 83 to Y 64 */
+    private static final int MAX_DRAIN_TICKS = 100000;
+
+    private final Set<BlockPos> brokenBlocks = new HashSet<>(); /* blocks of the stone that have been dug out */
+    private MapManager mapManager;
+
+    @BeforeAll
+    static void bootstrap() {
+        SyntheticWorld.bootstrap();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.mapManager.setTileCache(null);
+    }
+
+    @Override
+    public boolean hasCeiling() {
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ChunkSnapshot takeSnapshot(int chunkX, int chunkZ, int originY, short[] ceilingSurfaceY, long contentHash) {
+        final PalettedContainer<BlockState>[] sections = new PalettedContainer[SECTION_COUNT];
+        final int[] surfaceY = new int[CHUNK_SIZE * CHUNK_SIZE];
+        final BlockPos.MutableBlockPos blockPos = new BlockPos.MutableBlockPos();
+
+        for (int y = MIN_Y; y <= ROCK_TOP_Y; y++) {
+            final int sectionIndex = (y - MIN_Y) >> 4;
+
+            if (sections[sectionIndex] == null) {
+                sections[sectionIndex] = new PalettedContainer<>(Block.BLOCK_STATE_REGISTRY, Blocks.AIR.defaultBlockState(), PalettedContainer.Strategy.SECTION_STATES);
+            }
+
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                for (int x = 0; x < CHUNK_SIZE; x++) {
+                    if (!this.brokenBlocks.contains(blockPos.set((chunkX * CHUNK_SIZE) + x, y, (chunkZ * CHUNK_SIZE) + z))) {
+                        sections[sectionIndex].getAndSetUnchecked(x, y & 15, z, y == GOLD_Y ? Blocks.GOLD_BLOCK.defaultBlockState() : Blocks.STONE.defaultBlockState());
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < surfaceY.length; i++) {
+            surfaceY[i] = ROCK_TOP_Y + 1;
+        }
+
+        return ChunkSnapshot.of(new ChunkPos(chunkX, chunkZ), sections, surfaceY, MIN_Y, true, originY, ceilingSurfaceY);
+    }
+
+    /**
+     * Dig out a pocket just above the gold in a column that was mapped as a wall, leaving the top of the wall in place.
+     * The pocket is inside the window, so the column has to be searched again and show the gold through it.
+     */
+    @Test
+    void digIntoWall() {
+        this.setUp();
+
+        final int wallColor = this.getColor(3, 3);
+
+        for (int y = GOLD_Y + 10; y > GOLD_Y; y--) {
+            this.breakBlock(new BlockPos(3, y, 3));
+        }
+
+        this.drain();
+
+        assertNotEquals(wallColor, this.getColor(3, 3));
+        assertEquals(wallColor, this.getColor(10, 10));
+    }
+
+    /**
+     * Map the world with a tile cache, which should end up with the tiles even though a Y band is being shown.
+     */
+    @Test
+    void cacheCeilingTiles() throws IOException {
+        final TileCache tileCache = new TileCache(Files.createTempDirectory("dashmap-test"));
+
+        this.setUp(tileCache);
+
+        assertNotNull(tileCache.load(new ChunkPos(0, 0)));
+    }
+
+    private void setUp() {
+        this.setUp(null);
+    }
+
+    /**
+     * Start over with a fresh map of untouched stone, centered on chunk 0, 0, and let it settle.
+     *
+     * @param tileCache On-disk cache for the map to use, or null for none.
+     */
+    private void setUp(TileCache tileCache) {
+        this.brokenBlocks.clear();
+        this.mapManager = new MapManager();
+        this.mapManager.setTileCache(tileCache);
+        this.mapManager.setRadius(1);
+        this.mapManager.setCenterPosition(new ChunkPos(0, 0));
+
+        for (int chunkX = -1; chunkX <= 1; chunkX++) {
+            for (int chunkZ = -1; chunkZ <= 1; chunkZ++) {
+                this.mapManager.refreshChunk(new ChunkPos(chunkX, chunkZ), false, 0);
+            }
+        }
+
+        this.drain();
+    }
+
+    private void breakBlock(BlockPos pos) {
+        this.brokenBlocks.add(pos);
+        this.mapManager.invalidateSurfaceHeight(pos);
+        this.mapManager.markBlockDirty(pos);
+    }
+
+    /**
+     * Tick the map until everything that is dirty has been rebuilt and applied, and the cache has been read from.
+     */
+    private void drain() {
+        for (int i = 0; i < MAX_DRAIN_TICKS && !this.isSettled(); i++) {
+            this.mapManager.rebuildChunks(this, EYE_Y);
+            Thread.onSpinWait();
+        }
+
+        assertTrue(this.isSettled(), "Map didn't settle after " + MAX_DRAIN_TICKS + " ticks");
+    }
+
+    private boolean isSettled() {
+        return this.mapManager.getDirtyChunkCount() == 0 && this.mapManager.getPendingRebuildCount() == 0 && this.mapManager.getAwaitingChunkCount() == 0;
+    }
+
+    /**
+     * Get the shaded color the map shows for a column of chunk 0, 0.
+     */
+    private int getColor(int x, int z) {
+        final int[] colors = new int[CHUNK_SIZE * CHUNK_SIZE];
+
+        if (!this.mapManager.copyTileColors(0, 0, colors)) {
+            throw new IllegalStateException("Chunk 0, 0 isn't on the map");
+        }
+
+        return colors[(z * CHUNK_SIZE) + x];
+    }
+}
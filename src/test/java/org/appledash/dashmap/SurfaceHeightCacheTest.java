@@ -0,0 +1,40 @@
+package org.appledash.dashmap;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that block changes aren't lost to searches of surface heights that were already under way.
+ */
+public class SurfaceHeightCacheTest {
+    private static final int SURFACE_Y = 60;
+    private static final double EYE_Y = 70.0; /* band 4, searched down from Y 83 to Y 64 */
+
+    /**
+     * Change a block while the heights of its chunk are out being searched, as happens when a worker thread is sampling
+     * it. Storing what the search found mustn't bring back the height of the column that changed.
+     */
+    @Test
+    void invalidateDuringSearch() {
+        final SurfaceHeightCache cache = new SurfaceHeightCache();
+        final ChunkPos chunkPos = new ChunkPos(0, 0);
+        final int band = SurfaceHeightCache.getBand(EYE_Y);
+        final short[] searched = cache.copyHeights(chunkPos, band);
+        final int stamp = cache.getStamp();
+
+        Arrays.fill(searched, (short) SURFACE_Y);
+        cache.invalidate(new BlockPos(3, SURFACE_Y + 1, 3));
+        cache.store(chunkPos, band, searched, stamp);
+
+        final short[] heights = cache.copyHeights(chunkPos, band);
+
+        assertEquals(SurfaceHeightCache.UNKNOWN, heights[(3 * CHUNK_SIZE) + 3]);
+        assertEquals(SURFACE_Y, heights[(10 * CHUNK_SIZE) + 10]);
+    }
+}
@@ -0,0 +1,242 @@
+package org.appledash.dashmap;
+
+import com.electronwill.nightconfig.core.CommentedConfig;
+import net.minecraft.SharedConstants;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.DoublePlantBlock;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.DoubleBlockHalf;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.appledash.dashmap.MapManager.CHUNK_SIZE;
+
+/**
+ * In-memory stand-ins for the kinds of terrain the map spends most of its time on, so that the sampler and the texture
+ * code can be tested and benchmarked without a server or a client. Only Minecraft's common code is needed, which runs
+ * headless.
+ *
+ * Every chunk is generated from a seed made from its position, so runs are comparable with each other.
+ */
+public enum SyntheticWorld {
+    FLAT(false),   /* Stone, dirt and a grass surface at sea level - the cheapest case for the sampler */
+    OCEAN(false),  /* Deep water over sand, so every column has to find the depth of the water */
+    FOREST(false), /* Uneven grass with tall grass and trees, which are looked through or land on leaves */
+    NETHER(true);  /* No heightmap to start from, so the surface under the ceiling has to be searched for */
+
+    private static final int OVERWORLD_MIN_Y = -64;
+    private static final int OVERWORLD_SECTIONS = 24;
+    private static final int NETHER_MIN_Y = 0;
+    private static final int NETHER_SECTIONS = 16;
+    private static final int SEA_LEVEL = 62;       /* Y of the top water block of the ocean */
+    private static final int NETHER_LAVA_LEVEL = 31;
+    private static final int NETHER_ORIGIN_Y = 75; /* Y the search starts from, for a player standing on the nether floor */
+    private static boolean bootstrapped;
+
+    private final boolean hasCeiling;
+
+    SyntheticWorld(boolean hasCeiling) {
+        this.hasCeiling = hasCeiling;
+    }
+
+    /**
+     * Set up just enough of Minecraft and DashMap to build and sample chunks: the block registries, and a config with
+     * every option at its default.
+     */
+    public static synchronized void bootstrap() {
+        if (bootstrapped) {
+            return;
+        }
+
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        DashMapConfig.SPEC.setConfig(CommentedConfig.inMemory()); /* an empty config is corrected to the defaults */
+        bootstrapped = true;
+    }
+
+    /**
+     * Generate a chunk of this world.
+     *
+     * @param chunkX X coordinate of the chunk.
+     * @param chunkZ Z coordinate of the chunk.
+     * @return Snapshot of the chunk, with no surface heights known yet in the nether.
+     */
+    public ChunkSnapshot createSnapshot(int chunkX, int chunkZ) {
+        final Random random = new Random((ChunkPos.asLong(chunkX, chunkZ) * 31) + this.ordinal());
+        final ChunkBuilder chunk = this.hasCeiling ? new ChunkBuilder(NETHER_MIN_Y, NETHER_SECTIONS) : new ChunkBuilder(OVERWORLD_MIN_Y, OVERWORLD_SECTIONS);
+
+        switch (this) {
+            case FLAT -> buildFlat(chunk);
+            case OCEAN -> buildOcean(chunk, random);
+            case FOREST -> buildForest(chunk, random);
+            case NETHER -> buildNether(chunk, random);
+        }
+
+        final short[] ceilingSurfaceY = new short[CHUNK_SIZE * CHUNK_SIZE];
+
+        Arrays.fill(ceilingSurfaceY, SurfaceHeightCache.UNKNOWN);
+
+        return ChunkSnapshot.of(new ChunkPos(chunkX, chunkZ), chunk.sections, chunk.getSurfaceY(), chunk.minY, this.hasCeiling, NETHER_ORIGIN_Y,
+                                this.hasCeiling ? ceilingSurfaceY : null);
+    }
+
+    private static void buildFlat(ChunkBuilder chunk) {
+        for (int x = 0; x < CHUNK_SIZE; x++) {
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                chunk.set(x, chunk.minY, z, Blocks.BEDROCK.defaultBlockState());
+                chunk.fill(x, z, chunk.minY + 1, 59, Blocks.STONE.defaultBlockState());
+                chunk.fill(x, z, 60, 62, Blocks.DIRT.defaultBlockState());
+                chunk.set(x, 63, z, Blocks.GRASS_BLOCK.defaultBlockState());
+            }
+        }
+    }
+
+    private static void buildOcean(ChunkBuilder chunk, Random random) {
+        for (int x = 0; x < CHUNK_SIZE; x++) {
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                final int floorY = 35 + random.nextInt(5);
+
+                chunk.set(x, chunk.minY, z, Blocks.BEDROCK.defaultBlockState());
+                chunk.fill(x, z, chunk.minY + 1, floorY - 3, Blocks.STONE.defaultBlockState());
+                chunk.fill(x, z, floorY - 2, floorY, random.nextInt(4) == 0 ? Blocks.GRAVEL.defaultBlockState() : Blocks.SAND.defaultBlockState());
+                chunk.fill(x, z, floorY + 1, SEA_LEVEL, Blocks.WATER.defaultBlockState());
+            }
+        }
+    }
+
+    private static void buildForest(ChunkBuilder chunk, Random random) {
+        final BlockState tallGrassLower = Blocks.TALL_GRASS.defaultBlockState();
+        final BlockState tallGrassUpper = tallGrassLower.setValue(DoublePlantBlock.HALF, DoubleBlockHalf.UPPER);
+        final int[] groundY = new int[CHUNK_SIZE * CHUNK_SIZE];
+
+        for (int x = 0; x < CHUNK_SIZE; x++) {
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                final int topY = 63 + random.nextInt(4);
+                final int plant = random.nextInt(10);
+
+                chunk.set(x, chunk.minY, z, Blocks.BEDROCK.defaultBlockState());
+                chunk.fill(x, z, chunk.minY + 1, topY - 3, Blocks.STONE.defaultBlockState());
+                chunk.fill(x, z, topY - 2, topY - 1, Blocks.DIRT.defaultBlockState());
+                chunk.set(x, topY, z, Blocks.GRASS_BLOCK.defaultBlockState());
+
+                if (plant < 4) {
+                    chunk.set(x, topY + 1, z, Blocks.GRASS.defaultBlockState());
+                } else if (plant == 4) {
+                    chunk.set(x, topY + 1, z, tallGrassLower);
+                    chunk.set(x, topY + 2, z, tallGrassUpper);
+                }
+
+                groundY[(x * CHUNK_SIZE) + z] = topY;
+            }
+        }
+
+        /* A couple of trees per chunk, kept away from the edges so they don't need the neighbouring chunks */
+        for (int tree = 0; tree < 2; tree++) {
+            final int trunkX = 2 + random.nextInt(CHUNK_SIZE - 4);
+            final int trunkZ = 2 + random.nextInt(CHUNK_SIZE - 4);
+            final int baseY = groundY[(trunkX * CHUNK_SIZE) + trunkZ] + 1;
+            final int trunkHeight = 4 + random.nextInt(3);
+
+            for (int y = baseY + trunkHeight - 2; y <= baseY + trunkHeight + 1; y++) {
+                final int leafRadius = y > baseY + trunkHeight ? 1 : 2;
+
+                for (int x = trunkX - leafRadius; x <= trunkX + leafRadius; x++) {
+                    for (int z = trunkZ - leafRadius; z <= trunkZ + leafRadius; z++) {
+                        chunk.set(x, y, z, Blocks.OAK_LEAVES.defaultBlockState());
+                    }
+                }
+            }
+
+            chunk.fill(trunkX, trunkZ, baseY, baseY + trunkHeight - 1, Blocks.OAK_LOG.defaultBlockState());
+        }
+    }
+
+    private static void buildNether(ChunkBuilder chunk, Random random) {
+        final int roofY = chunk.minY + (NETHER_SECTIONS * CHUNK_SIZE / 2) - 1;
+
+        for (int x = 0; x < CHUNK_SIZE; x++) {
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                final int floorY = 28 + random.nextInt(8);
+                final int ceilingY = 100 + random.nextInt(7);
+
+                chunk.set(x, chunk.minY, z, Blocks.BEDROCK.defaultBlockState());
+                chunk.fill(x, z, chunk.minY + 1, floorY, Blocks.NETHERRACK.defaultBlockState());
+
+                if (floorY < NETHER_LAVA_LEVEL) {
+                    chunk.fill(x, z, floorY + 1, NETHER_LAVA_LEVEL, Blocks.LAVA.defaultBlockState());
+                } else if (random.nextInt(10) == 0) {
+                    chunk.set(x, floorY, z, Blocks.SOUL_SAND.defaultBlockState());
+                }
+
+                chunk.fill(x, z, ceilingY, roofY - 1, Blocks.NETHERRACK.defaultBlockState());
+                chunk.set(x, roofY, z, Blocks.BEDROCK.defaultBlockState());
+            }
+        }
+    }
+
+    /**
+     * Builds up the sections of a chunk a block at a time.
+     */
+    private static final class ChunkBuilder {
+        private final int minY;
+        private final PalettedContainer<BlockState>[] sections;
+
+        @SuppressWarnings("unchecked")
+        private ChunkBuilder(int minY, int sectionCount) {
+            this.minY = minY;
+            this.sections = new PalettedContainer[sectionCount];
+        }
+
+        private void set(int x, int y, int z, BlockState state) {
+            final int sectionIndex = (y - this.minY) >> 4;
+
+            if (this.sections[sectionIndex] == null) {
+                this.sections[sectionIndex] = new PalettedContainer<>(Block.BLOCK_STATE_REGISTRY, Blocks.AIR.defaultBlockState(), PalettedContainer.Strategy.SECTION_STATES);
+            }
+
+            this.sections[sectionIndex].getAndSetUnchecked(x, y & 15, z, state);
+        }
+
+        /**
+         * Fill a column of the chunk from fromY to toY, inclusive.
+         */
+        private void fill(int x, int z, int fromY, int toY, BlockState state) {
+            for (int y = fromY; y <= toY; y++) {
+                this.set(x, y, z, state);
+            }
+        }
+
+        /**
+         * Work out the first free Y above the highest block of every column, as the WORLD_SURFACE heightmap would.
+         */
+        private int[] getSurfaceY() {
+            final int[] surfaceY = new int[CHUNK_SIZE * CHUNK_SIZE];
+            final int maxY = this.minY + (this.sections.length * CHUNK_SIZE) - 1;
+
+            for (int z = 0; z < CHUNK_SIZE; z++) {
+                for (int x = 0; x < CHUNK_SIZE; x++) {
+                    int y = maxY;
+
+                    while (y >= this.minY && this.isAir(x, y, z)) {
+                        y--;
+                    }
+
+                    surfaceY[(z * CHUNK_SIZE) + x] = y + 1;
+                }
+            }
+
+            return surfaceY;
+        }
+
+        private boolean isAir(int x, int y, int z) {
+            final PalettedContainer<BlockState> section = this.sections[(y - this.minY) >> 4];
+
+            return section == null || section.get(x, y & 15, z).isAir();
+        }
+    }
+}